@@ -0,0 +1,425 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmarks for the inventory stores, the snapshot format and concurrent use, with a regression check
+ * against saved baseline results.
+ *
+ * <p>This is a small self-contained harness in the manner of JMH, so it runs with nothing but the JDK: each
+ * benchmark is warmed up first, then measured over several fixed-length iterations, and the median throughput in
+ * operations per second is reported. Results go into a sink field so the JIT cannot drop the work. The clock is
+ * read once per batch of operations, never per operation: the warmup grows the batch until one takes at least
+ * {@value #BATCH_NANOS} ns, so reading the clock costs well under 1% even for lookups. The 50th and 99th
+ * percentile latencies are those of the batches divided by the batch size, so they are exact for operations
+ * slower than a batch, such as saves and loads, and averages over a few microseconds for the fastest ones.
+ *
+ * <p>Usage, after compiling {@code src} and {@code bench} into one output directory:
+ * <pre>
+ *   java -cp out InventoryBenchmark                              run and print the results
+ *   java -cp out InventoryBenchmark --save bench/baseline.properties
+ *   java -cp out InventoryBenchmark --check bench/baseline.properties [--threshold 0.3]
+ *   java -cp out InventoryBenchmark --sizes 1000,10000000 --filter compacto.lookup
+ * </pre>
+ * {@code --filter} runs only the benchmarks whose name starts with the given text; names are
+ * {@code group.operation.size}, with the groups {@code mapa}, {@code compacto}, {@code concurrente},
+ * {@code snapshot} and {@code journal}.
+ * {@code --check} exits with status 1 if any benchmark in the baseline is slower by more than the threshold
+ * (a fraction, 0.3 by default); the latency percentiles saved with it, {@code name.p50} and {@code name.p99} in
+ * microseconds, are compared for information only, as tail latencies vary too much between runs to gate on.
+ * The checked-in baseline is only meaningful on the machine it was recorded on; record a new one with
+ * {@code --save} before comparing on another machine. It covers 1K to 10M products; the 10M points need a heap
+ * of about 4 GB, so they are left out of the default sizes and were recorded in a separate
+ * {@code --sizes 10000000} run.
+ */
+public class InventoryBenchmark {
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    private static final int ITERATIONS = 3;
+    private static final long BATCH_NANOS = 10_000L;
+    private static final int PAGE = 50;
+
+    static volatile long sink;
+
+    /**
+     * One benchmarked operation; {@code i} counts the calls so operations can walk their data.
+     */
+    @FunctionalInterface
+    private interface Operation {
+        void run(long i) throws Exception;
+    }
+
+    /**
+     * State set up before each trial, the warmup and every measured iteration, and torn down after it; the
+     * harness drops its reference to the state then, so what only the state holds can be collected.
+     */
+    private interface Trial<T> {
+        T setUp() throws Exception;
+
+        void run(T state, long i) throws Exception;
+
+        default void tearDown(T state) throws Exception {
+        }
+    }
+
+    private final Map<String, Double> results = new TreeMap<>();
+    // The 50th and 99th percentile latencies in microseconds, as name.p50 and name.p99
+    private final Map<String, Double> latencies = new TreeMap<>();
+    private final String filter;
+
+    private InventoryBenchmark(String filter) {
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1_000, 100_000, 1_000_000};
+        String save = null;
+        String check = null;
+        String filter = "";
+        double threshold = 0.3;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sizes" -> sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                case "--save" -> save = args[++i];
+                case "--check" -> check = args[++i];
+                case "--threshold" -> threshold = Double.parseDouble(args[++i]);
+                case "--filter" -> filter = args[++i];
+                default -> {
+                    System.err.println("Argumento desconocido: " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+
+        InventoryBenchmark bench = new InventoryBenchmark(filter);
+        Path dir = Files.createTempDirectory("inventory-bench");
+        try {
+            for (int size : sizes) {
+                String[] codes = codes(size);
+                bench.stores(size, codes);
+                bench.persistence(size, codes, dir);
+                bench.concurrent(size, codes);
+            }
+            bench.journal(dir);
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+
+        if (save != null) {
+            bench.save(Path.of(save));
+            System.out.println("Resultados guardados en " + save);
+        }
+        if (check != null && !bench.check(Path.of(check), threshold)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Product codes in random order, the way a catalog is loaded from supplier feeds.
+     */
+    private static String[] codes(int size) {
+        String[] codes = new String[size];
+        for (int i = 0; i < size; i++) {
+            codes[i] = String.format("%s-%07d", BRANDS[i % BRANDS.length], i / BRANDS.length);
+        }
+        Collections.shuffle(Arrays.asList(codes), new Random(size));
+        return codes;
+    }
+
+    private static final String[] BRANDS = {"BOSCH", "FRENO", "MANN", "NGK", "SKF", "VALEO"};
+
+    private static Inventory filled(String store, String[] codes) {
+        Inventory inventory = switch (store) {
+            case "mapa" -> Inventory.of(new TreeMap<>());
+            case "compacto" -> new CompactInventory(codes.length);
+            default -> new ConcurrentInventory();
+        };
+        for (int i = 0; i < codes.length; i++) {
+            inventory.put(codes[i], i % 100);
+        }
+        return inventory;
+    }
+
+    /**
+     * The menu operations on each store: alta plus baja, cambio de stock, lookup and listings.
+     */
+    private void stores(int size, String[] codes) throws Exception {
+        for (String store : new String[]{"mapa", "compacto", "concurrente"}) {
+            if (!wanted(store)) {
+                continue;
+            }
+            Inventory inventory = filled(store, codes);
+            String[] extra = new String[4096];
+            for (int i = 0; i < extra.length; i++) {
+                extra[i] = "NUEVO-" + i;
+            }
+            String prefix = "FRENO-00000"; // About one hundred codes at every size
+            measure(store + ".lookup." + size, i -> sink += inventory.stock(codes[(int) (i % size)]));
+            measure(store + ".change." + size, i -> inventory.put(codes[(int) (i % size)], (int) (i & 0xFFFF)));
+            measure(store + ".adjust." + size, i -> sink += inventory.adjustStock(codes[(int) (i % size)], 1));
+            measure(store + ".addRemove." + size, i -> {
+                String code = extra[(int) (i & (extra.length - 1))];
+                inventory.put(code, 1);
+                inventory.remove(code);
+            });
+            measure(store + ".listPrefixPage." + size, i -> {
+                Writer out = Writer.nullWriter();
+                sink += StockListing.all().prefix(prefix).limit(PAGE).write(inventory, out) == null ? 0 : 1;
+            });
+            measure(store + ".listAll." + size, i -> inventory.forEachSorted((code, stock) -> sink += stock));
+        }
+    }
+
+    /**
+     * Snapshot throughput: save, full load into the compact store and lookups in a memory-mapped snapshot.
+     * The snapshot is mapped once per trial and released after it, as Java only unmaps a file once its buffer is
+     * collected: mapping it on every operation would pile up mappings faster than the collector drops them.
+     */
+    private void persistence(int size, String[] codes, Path dir) throws Exception {
+        if (!wanted("snapshot")) {
+            return;
+        }
+        Inventory inventory = filled("compacto", codes);
+        File file = dir.resolve("existencias-" + size + ".dat").toFile();
+        measure("snapshot.save." + size, i -> InventorySnapshot.write(file, inventory));
+        measure("snapshot.loadFull." + size, i -> {
+            CompactInventory loaded = new CompactInventory(size);
+            InventorySnapshot.readInto(file, loaded);
+            sink += loaded.size();
+        });
+        measure("snapshot.mappedLookup." + size, new Trial<MappedInventory>() {
+            @Override
+            public MappedInventory setUp() throws IOException {
+                return MappedInventory.open(file);
+            }
+
+            @Override
+            public void run(MappedInventory mapped, long i) {
+                sink += mapped.stock(codes[(int) (i % size)]);
+            }
+        });
+    }
+
+    /**
+     * Mixed load on the server store: several threads doing 90% lookups and 10% sales of random products.
+     */
+    private void concurrent(int size, String[] codes) throws Exception {
+        String name = "concurrente.mixed90r10w." + size;
+        if (!wanted("concurrente") || !name.startsWith(filter)) {
+            return;
+        }
+        Inventory inventory = filled("concurrente", codes);
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        runThreads(inventory, codes, threads, WARMUP_NANOS);
+        double[] rates = new double[ITERATIONS];
+        for (int it = 0; it < ITERATIONS; it++) {
+            rates[it] = runThreads(inventory, codes, threads, ITERATION_NANOS);
+        }
+        record(name, rates);
+    }
+
+    private static double runThreads(Inventory inventory, String[] codes, int threads, long nanos)
+            throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long local = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < deadline[0]) {
+                    for (int k = 0; k < 64; k++) {
+                        String code = codes[random.nextInt(codes.length)];
+                        if (random.nextInt(10) == 0) {
+                            if (inventory.reserve(code, 1) == Inventory.INSUFFICIENT_STOCK) {
+                                inventory.adjustStock(code, 100);
+                            }
+                        } else {
+                            local += inventory.stock(code);
+                        }
+                    }
+                    ops.add(64);
+                }
+                sink += local;
+            });
+            workers[t].start();
+        }
+        long began = System.nanoTime();
+        deadline[0] = began + nanos;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.sum() * 1e9 / (System.nanoTime() - began);
+    }
+
+    /**
+     * Journaled changes, each made durable before the next, as the menu does. Bound by the disk's fsync latency.
+     */
+    private void journal(Path dir) throws Exception {
+        if (!wanted("journal")) {
+            return;
+        }
+        File file = dir.resolve("journal.dat").toFile();
+        Inventory inventory = Inventory.of(new TreeMap<>());
+        try (InventoryJournal journal = InventoryJournal.open(file, inventory, InventorySnapshot::write)) {
+            measure("journal.putSync", i -> {
+                inventory.put("P" + (i & 1023), (int) (i & 0xFFFF));
+                journal.sync();
+            });
+        }
+    }
+
+    /**
+     * Whether any benchmark of a group can match the filter, so the data for a skipped group is not even built.
+     */
+    private boolean wanted(String group) {
+        return filter.startsWith(group) || group.startsWith(filter);
+    }
+
+    private void measure(String name, Operation op) throws Exception {
+        measure(name, new Trial<Void>() {
+            @Override
+            public Void setUp() {
+                return null;
+            }
+
+            @Override
+            public void run(Void state, long i) throws Exception {
+                op.run(i);
+            }
+        });
+    }
+
+    private <T> void measure(String name, Trial<T> trial) throws Exception {
+        if (!name.startsWith(filter)) {
+            return;
+        }
+        long i = 0;
+        long batch = 1;
+        T state = trial.setUp();
+        try {
+            long end = System.nanoTime() + WARMUP_NANOS;
+            long now;
+            do {
+                long began = System.nanoTime();
+                for (long k = 0; k < batch; k++) {
+                    trial.run(state, i++);
+                }
+                now = System.nanoTime();
+                if (now - began < BATCH_NANOS) {
+                    batch *= 2;
+                }
+            } while (now < end);
+        } finally {
+            trial.tearDown(state);
+            state = null;
+        }
+        double[] rates = new double[ITERATIONS];
+        long[] batchNanos = new long[1024];
+        int batches = 0;
+        for (int it = 0; it < ITERATIONS; it++) {
+            state = trial.setUp();
+            try {
+                long ops = 0;
+                long began = System.nanoTime();
+                long deadline = began + ITERATION_NANOS;
+                long last = began;
+                long now;
+                do {
+                    for (long k = 0; k < batch; k++) {
+                        trial.run(state, i++);
+                    }
+                    ops += batch;
+                    now = System.nanoTime();
+                    if (batches == batchNanos.length) {
+                        batchNanos = Arrays.copyOf(batchNanos, batches * 2);
+                    }
+                    batchNanos[batches++] = now - last;
+                    last = now;
+                } while (now < deadline);
+                rates[it] = ops * 1e9 / (now - began);
+            } finally {
+                trial.tearDown(state);
+                state = null;
+            }
+        }
+        Arrays.sort(batchNanos, 0, batches);
+        latencies.put(name + ".p50", batchNanos[batches / 2] / 1e3 / batch);
+        latencies.put(name + ".p99", batchNanos[(int) (batches * 0.99)] / 1e3 / batch);
+        record(name, rates);
+    }
+
+    private void record(String name, double[] rates) {
+        Arrays.sort(rates);
+        double median = rates[rates.length / 2];
+        double spread = (rates[rates.length - 1] - rates[0]) / median * 100;
+        results.put(name, median);
+        Double p50 = latencies.get(name + ".p50");
+        System.out.printf(Locale.ROOT, "%-40s %16.1f ops/s  %10.3f us/op  (±%.0f%%)%s%n",
+                name, median, 1e6 / median, spread / 2, p50 == null ? ""
+                        : String.format(Locale.ROOT, "  p50 %.3f us  p99 %.3f us", p50, latencies.get(name + ".p99")));
+    }
+
+    private void save(Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("# Median throughput in ops/s, and latency percentiles in us (.p50, .p99), recorded by"
+                    + " InventoryBenchmark --save\n");
+            Map<String, String> all = new TreeMap<>();
+            results.forEach((name, rate) -> all.put(name, String.format(Locale.ROOT, "%.1f", rate)));
+            latencies.forEach((name, micros) -> all.put(name, String.format(Locale.ROOT, "%.3f", micros)));
+            for (Map.Entry<String, String> result : all.entrySet()) {
+                out.write(result.getKey() + "=" + result.getValue() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Compares the results with a baseline.
+     *
+     * @return false if any benchmark is slower than the baseline by more than the threshold.
+     */
+    private boolean check(Path file, double threshold) throws IOException {
+        Properties baseline = new Properties();
+        try (Reader in = Files.newBufferedReader(file)) {
+            baseline.load(in);
+        }
+        boolean ok = true;
+        System.out.println();
+        for (String name : new TreeSet<>(baseline.stringPropertyNames())) {
+            Double latency = latencies.get(name);
+            if (latency != null) {
+                double change = latency / Double.parseDouble(baseline.getProperty(name)) - 1;
+                System.out.printf(Locale.ROOT, "%-40s %+7.1f%%  latencia, informativo%n", name, change * 100);
+                continue;
+            }
+            Double current = results.get(name);
+            if (current == null) {
+                continue; // Not run this time, for example because of --sizes or --filter
+            }
+            double ratio = current / Double.parseDouble(baseline.getProperty(name));
+            boolean regressed = ratio < 1 - threshold;
+            ok &= !regressed;
+            System.out.printf(Locale.ROOT, "%-40s %+7.1f%%  %s%n", name, (ratio - 1) * 100,
+                    regressed ? "REGRESIÓN" : "ok");
+        }
+        System.out.println(ok ? "Sin regresiones."
+                : "Hay regresiones por encima del " + Math.round(threshold * 100) + "%.");
+        return ok;
+    }
+}
@@ -0,0 +1,27 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Base class for {@link Inventory} implementations: keeps the change listeners.
+ */
+public abstract class AbstractInventory implements Inventory {
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Tells every listener about a change that has just been applied.
+     *
+     * @param code     The product code.
+     * @param oldStock The stock before the change, or {@link #NOT_FOUND}.
+     * @param newStock The stock after the change, or {@link #NOT_FOUND}.
+     */
+    protected void fireChange(String code, int oldStock, int newStock) {
+        for (ChangeListener listener : listeners) {
+            listener.onChange(code, oldStock, newStock);
+        }
+    }
+}
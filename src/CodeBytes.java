@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for product codes stored as UTF-8 bytes with a varint length prefix, shared by the snapshot format
+ * and the inventories that keep codes in byte form instead of as {@link String} objects.
+ */
+final class CodeBytes {
+
+    private CodeBytes() {
+    }
+
+    /**
+     * Compares a UTF-8 code in a buffer with a {@link String}, in {@link String#compareTo} order.
+     * Decodes on the fly so lookups do not allocate.
+     *
+     * @param data     The buffer holding the encoded code.
+     * @param position Absolute position of the first code byte.
+     * @param length   Number of code bytes.
+     * @param code     The code to compare against.
+     * @return A negative number, zero or a positive number as the stored code sorts before, equal to or after code.
+     */
+    static int compare(ByteBuffer data, int position, int length, String code) {
+        int end = position + length;
+        int i = 0;
+        int n = code.length();
+        while (position < end) {
+            int b = data.get(position) & 0xFF;
+            int cp;
+            if (b < 0x80) {
+                cp = b;
+                position += 1;
+            } else if (b < 0xE0) {
+                cp = ((b & 0x1F) << 6) | (data.get(position + 1) & 0x3F);
+                position += 2;
+            } else if (b < 0xF0) {
+                cp = ((b & 0x0F) << 12) | ((data.get(position + 1) & 0x3F) << 6) | (data.get(position + 2) & 0x3F);
+                position += 3;
+            } else {
+                cp = ((b & 0x07) << 18) | ((data.get(position + 1) & 0x3F) << 12)
+                        | ((data.get(position + 2) & 0x3F) << 6) | (data.get(position + 3) & 0x3F);
+                position += 4;
+            }
+            // A supplementary code point is two UTF-16 units, compared one at a time like String does
+            int units = cp < Character.MIN_SUPPLEMENTARY_CODE_POINT ? 1 : 2;
+            for (int u = 0; u < units; u++) {
+                if (i >= n) {
+                    return 1;
+                }
+                char unit = units == 1 ? (char) cp : u == 0 ? Character.highSurrogate(cp) : Character.lowSurrogate(cp);
+                char c = code.charAt(i++);
+                if (unit != c) {
+                    return unit - c;
+                }
+            }
+        }
+        return i < n ? -1 : 0;
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint at an absolute position.
+     */
+    static int varintAt(ByteBuffer data, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data.get(position++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Number of bytes the minimal varint encoding of a value takes.
+     */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint at the buffer's position.
+     */
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,853 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Search index of the product codes, for clerks who know only part of a code: codes starting with a prefix, codes
+ * containing a fragment, and codes within a few typing mistakes of one that was not found.
+ *
+ * <p>The index is an immutable base plus a small overlay of the codes added and removed since the base was built.
+ * The base keeps every code, sorted, in one {@code char[]} with an array of start offsets, so a search touches
+ * two flat arrays instead of millions of strings. Prefix searches are binary searches. Fragment searches use an
+ * inverted index from trigrams (three consecutive characters, hashed into a fixed number of buckets) to the
+ * positions of the codes containing them, stored as delta-encoded varints; only the shortest list among the
+ * fragment's trigrams is scanned and each candidate is checked, up to {@value #MAX_CANDIDATES} of them, so a search
+ * never holds up changes for long. A fragment must therefore have at least {@value #MIN_FRAGMENT} characters.
+ * Similar codes are found by walking the sorted codes as a trie: the edit-distance rows of a shared prefix are
+ * computed once, and once a prefix is too far from the query every code under it is skipped with a galloping
+ * search.
+ *
+ * <p>The overlay is kept up to date as an {@link Inventory.ChangeListener}; once it grows past a fraction of the
+ * base, a new base is built in the background. Stock changes do not touch the index.
+ *
+ * <p>The base is saved next to every full snapshot, as {@code existencias.dat.codigos}:
+ * <pre>
+ *   magic "TRCI" (4) | version (1) | snapshot length (8) | snapshot crc32 (4)
+ *   code count (4) | codes, sorted and front-coded: shared prefix (varint) | suffix length (varint) | suffix (UTF-8)
+ *   bucket count (4) | posting offsets (4 each, count + 1) | postings (varint gaps between code positions)
+ *   crc32 of everything before it (4)
+ * </pre>
+ * At startup the saved base is used if it belongs to the current snapshot (same length and checksum), and only the
+ * codes in the deltas and journal since then are checked; otherwise the index is built from the inventory.
+ */
+public final class CodeIndex implements Inventory.ChangeListener {
+    static final byte[] MAGIC = {'T', 'R', 'C', 'I'};
+    static final byte VERSION = 1;
+    private static final int MIN_REBUILD = 1024;
+    /**
+     * The shortest fragment {@link #containing} accepts: one trigram.
+     */
+    static final int MIN_FRAGMENT = 3;
+    // Candidates checked at most by a fragment search, while it holds the read lock
+    static final int MAX_CANDIDATES = 1 << 16;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Base base;
+    // Differences from the base, guarded by the lock
+    private final TreeSet<String> added = new TreeSet<>();
+    private final HashSet<String> removed = new HashSet<>();
+    private boolean rebuilding;
+    private volatile CompletableFuture<Void> rebuilt = CompletableFuture.completedFuture(null);
+
+    private CodeIndex(Base base) {
+        this.base = base;
+    }
+
+    static File fileFor(File snapshotFile) {
+        return new File(snapshotFile.getPath() + ".codigos");
+    }
+
+    /**
+     * Builds the index for an inventory and keeps it up to date from then on.
+     * Call it right after loading, before the inventory is shared.
+     *
+     * @param inventory The inventory to index.
+     * @return The index.
+     */
+    public static CodeIndex attach(Inventory inventory) {
+        CodeIndex index = new CodeIndex(Base.of(inventory));
+        inventory.addListener(index);
+        return index;
+    }
+
+    /**
+     * Opens the index saved with a snapshot file, brings it up to date with the deltas and journal replayed since,
+     * and keeps it up to date from then on. Falls back to building it when there is no saved index for this
+     * snapshot. Call it right after loading, before the inventory is shared.
+     *
+     * @param snapshotFile The snapshot file the inventory was loaded from.
+     * @param inventory    The loaded inventory, deltas and journal included.
+     * @return The index.
+     */
+    public static CodeIndex attach(File snapshotFile, Inventory inventory) {
+        Base saved = null;
+        File file = fileFor(snapshotFile);
+        if (file.exists()) {
+            try {
+                saved = read(file, snapshotFile);
+            } catch (IOException e) {
+                System.err.println("Índice de códigos dañado, se reconstruye: " + e.getMessage());
+            }
+        }
+        if (saved == null) {
+            return attach(inventory);
+        }
+        CodeIndex index = new CodeIndex(saved);
+        try {
+            InventoryJournal.forEachLoggedCode(snapshotFile, code -> index.update(code, inventory.contains(code)));
+        } catch (IOException e) {
+            System.err.println("No se pudo leer el registro de cambios, se reconstruye el índice de códigos: "
+                    + e.getMessage());
+            return attach(inventory);
+        }
+        inventory.addListener(index);
+        return index;
+    }
+
+    @Override
+    public void onChange(String code, int oldStock, int newStock) {
+        if ((oldStock == Inventory.NOT_FOUND) != (newStock == Inventory.NOT_FOUND)) {
+            update(code, newStock != Inventory.NOT_FOUND);
+        }
+    }
+
+    private void update(String code, boolean present) {
+        boolean rebuild;
+        lock.writeLock().lock();
+        try {
+            applyLocked(code, present);
+            rebuild = !rebuilding && added.size() + removed.size() >= Math.max(MIN_REBUILD, base.size() / 32);
+            rebuilding |= rebuild;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (rebuild) {
+            rebuilt = CompletableFuture.runAsync(this::rebuild);
+        }
+    }
+
+    private void applyLocked(String code, boolean present) {
+        if (base.contains(code)) {
+            added.remove(code);
+            if (present) {
+                removed.remove(code);
+            } else {
+                removed.add(code);
+            }
+        } else {
+            removed.remove(code);
+            if (present) {
+                added.add(code);
+            } else {
+                added.remove(code);
+            }
+        }
+    }
+
+    /**
+     * Folds the overlay into a new base while changes go on, then recomputes the overlay against the new base for
+     * every code changed since the old one.
+     */
+    private void rebuild() {
+        Base old;
+        String[] frozenAdded;
+        String[] frozenRemoved;
+        lock.readLock().lock();
+        try {
+            old = base;
+            frozenAdded = added.toArray(new String[0]);
+            frozenRemoved = removed.toArray(new String[0]);
+        } finally {
+            lock.readLock().unlock();
+        }
+        Base merged;
+        try {
+            Arrays.sort(frozenRemoved);
+            merged = old.merge(frozenRemoved, frozenAdded);
+        } catch (RuntimeException e) {
+            lock.writeLock().lock();
+            rebuilding = false;
+            lock.writeLock().unlock();
+            throw e;
+        }
+        lock.writeLock().lock();
+        try {
+            Set<String> touched = new HashSet<>(added);
+            touched.addAll(removed);
+            Collections.addAll(touched, frozenRemoved);
+            Collections.addAll(touched, frozenAdded);
+            Map<String, Boolean> present = new HashMap<>();
+            for (String code : touched) {
+                present.put(code, added.contains(code) || old.contains(code) && !removed.contains(code));
+            }
+            base = merged;
+            added.clear();
+            removed.clear();
+            present.forEach(this::applyLocked);
+            rebuilding = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for the most recently started background rebuild, if any, to finish.
+     */
+    void awaitRebuild() {
+        rebuilt.join();
+    }
+
+    /**
+     * @return The number of codes indexed.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return base.size() - removed.size() + added.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param prefix The start of the code.
+     * @param limit  The most codes returned.
+     * @return The codes starting with the prefix, in code order.
+     */
+    public List<String> withPrefix(String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            List<String> found = new ArrayList<>();
+            for (int i = base.lowerBound(prefix); i < base.size() && found.size() < limit
+                    && base.startsWith(i, prefix); i++) {
+                addUnlessRemoved(found, base.code(i));
+            }
+            for (String code : added.tailSet(prefix)) {
+                if (!code.startsWith(prefix)) {
+                    break;
+                }
+                found.add(code);
+            }
+            return sortedPrefix(found, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the codes containing a fragment. At most {@value #MAX_CANDIDATES} codes sharing a trigram with it are
+     * checked, so a fragment found in a large part of the catalog may return fewer codes than there are.
+     *
+     * @param fragment Part of the code, anywhere in it, of at least {@value #MIN_FRAGMENT} characters.
+     * @param limit    The most codes returned.
+     * @return The codes containing the fragment, in code order.
+     * @throws IllegalArgumentException If the fragment is too short to be looked up in the index.
+     */
+    public List<String> containing(String fragment, int limit) {
+        if (fragment.length() < MIN_FRAGMENT) {
+            throw new IllegalArgumentException("Fragment must have at least " + MIN_FRAGMENT + " characters");
+        }
+        lock.readLock().lock();
+        try {
+            List<String> found = new ArrayList<>();
+            int[] checked = {0};
+            base.forEachCandidate(fragment, i -> {
+                if (base.contains(i, fragment)) {
+                    addUnlessRemoved(found, base.code(i));
+                }
+                return found.size() < limit && ++checked[0] < MAX_CANDIDATES;
+            });
+            for (String code : added) {
+                if (code.contains(fragment)) {
+                    found.add(code);
+                }
+            }
+            return sortedPrefix(found, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the codes a mistyped one was probably meant to be, for "did you mean" suggestions.
+     *
+     * @param code        The code that was typed.
+     * @param maxDistance The most single-character insertions, deletions or substitutions allowed.
+     * @param limit       The most codes returned.
+     * @return The codes within that edit distance, closest first and then in code order.
+     */
+    public List<String> similar(String code, int maxDistance, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Match> matches = new ArrayList<>();
+            base.similar(code, maxDistance, (i, distance) -> {
+                String candidate = base.code(i);
+                if (!removed.contains(candidate)) {
+                    matches.add(new Match(distance, candidate));
+                }
+            });
+            for (String candidate : added) {
+                int distance = distance(code, candidate, maxDistance);
+                if (distance <= maxDistance) {
+                    matches.add(new Match(distance, candidate));
+                }
+            }
+            matches.sort(Comparator.comparingInt(Match::distance).thenComparing(Match::code));
+            List<String> found = new ArrayList<>();
+            for (int i = 0; i < matches.size() && i < limit; i++) {
+                found.add(matches.get(i).code());
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void addUnlessRemoved(List<String> found, String code) {
+        if (removed.isEmpty() || !removed.contains(code)) {
+            found.add(code);
+        }
+    }
+
+    private static List<String> sortedPrefix(List<String> found, int limit) {
+        Collections.sort(found);
+        return found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+    }
+
+    private record Match(int distance, String code) {
+    }
+
+    /**
+     * Levenshtein distance, or {@code maxDistance + 1} once it is certain to exceed it.
+     */
+    static int distance(String a, String b, int maxDistance) {
+        if (Math.abs(a.length() - b.length()) > maxDistance) {
+            return maxDistance + 1;
+        }
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            int diagonal = row[0];
+            row[0] = i;
+            int min = row[0];
+            for (int j = 1; j < row.length; j++) {
+                int above = row[j];
+                row[j] = Math.min(Math.min(above, row[j - 1]) + 1,
+                        diagonal + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+                diagonal = above;
+                min = Math.min(min, row[j]);
+            }
+            if (min > maxDistance) {
+                return maxDistance + 1;
+            }
+        }
+        return Math.min(row[b.length()], maxDistance + 1);
+    }
+
+    /**
+     * Writes the index of an inventory next to the snapshot it was just written to.
+     *
+     * @param snapshotFile The snapshot file, already written from the same inventory.
+     * @param inventory    The inventory.
+     * @throws IOException If the index cannot be written.
+     */
+    public static void write(File snapshotFile, Inventory inventory) throws IOException {
+        write(fileFor(snapshotFile), snapshotFile, Base.of(inventory));
+    }
+
+    private static void write(File file, File snapshotFile, Base base) throws IOException {
+        File snapshot = InventorySnapshot.current(snapshotFile);
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.put(MAGIC).put(VERSION).putLong(snapshot.length()).putInt(snapshotChecksum(snapshot));
+            buffer.putInt(base.size());
+            byte[] previous = new byte[0];
+            for (int i = 0; i < base.size(); i++) {
+                byte[] bytes = base.code(i).getBytes(StandardCharsets.UTF_8);
+                int shared = 0;
+                while (shared < previous.length && shared < bytes.length && previous[shared] == bytes[shared]) {
+                    shared++;
+                }
+                buffer = ensure(out, buffer, crc, 10 + bytes.length - shared);
+                CodeBytes.putVarint(buffer, shared);
+                CodeBytes.putVarint(buffer, bytes.length - shared);
+                buffer.put(bytes, shared, bytes.length - shared);
+                previous = bytes;
+            }
+            buffer = ensure(out, buffer, crc, 4);
+            buffer.putInt(base.offsets.length - 1);
+            for (int offset : base.offsets) {
+                buffer = ensure(out, buffer, crc, 4);
+                buffer.putInt(offset);
+            }
+            for (int from = 0; from < base.postingLength; ) {
+                buffer = ensure(out, buffer, crc, 1);
+                int n = Math.min(buffer.remaining(), base.postingLength - from);
+                buffer.put(base.postings, from, n);
+                from += n;
+            }
+            drain(out, buffer, crc);
+            buffer.putInt((int) crc.getValue()).flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ByteBuffer ensure(FileChannel out, ByteBuffer buffer, CRC32 crc, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(out, buffer, crc);
+            if (buffer.capacity() < bytes) {
+                return ByteBuffer.allocate(bytes);
+            }
+        }
+        return buffer;
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buffer, CRC32 crc) throws IOException {
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads a saved index.
+     *
+     * @return The base, or null if it was saved with another snapshot.
+     * @throws InventorySnapshot.CorruptSnapshotException If the file is damaged.
+     */
+    private static Base read(File file, File snapshotFile) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int header = MAGIC.length + 1 + 8 + 4;
+        if (bytes.length < header + 4 + 4 + 4 + 4
+                || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC) || bytes[MAGIC.length] != VERSION) {
+            throw new InventorySnapshot.CorruptSnapshotException("Not a code index: " + file);
+        }
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        data.position(MAGIC.length + 1);
+        File snapshot = InventorySnapshot.current(snapshotFile);
+        if (data.getLong() != snapshot.length() || data.getInt() != snapshotChecksum(snapshot)) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if (data.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            throw new InventorySnapshot.CorruptSnapshotException("Checksum mismatch in " + file);
+        }
+        try {
+            int count = data.getInt();
+            Builder codes = new Builder(count);
+            byte[] code = new byte[64];
+            for (int i = 0; i < count; i++) {
+                int shared = CodeBytes.varintAt(data, data.position());
+                data.position(data.position() + CodeBytes.varintSize(shared));
+                int suffix = CodeBytes.varintAt(data, data.position());
+                data.position(data.position() + CodeBytes.varintSize(suffix));
+                if (shared + suffix > code.length) {
+                    code = Arrays.copyOf(code, Math.max(code.length * 2, shared + suffix));
+                }
+                data.get(code, shared, suffix);
+                codes.add(new String(code, 0, shared + suffix, StandardCharsets.UTF_8));
+            }
+            int[] offsets = new int[data.getInt() + 1];
+            if (Integer.bitCount(offsets.length - 1) != 1) {
+                throw new InventorySnapshot.CorruptSnapshotException("Invalid bucket count in " + file);
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = data.getInt();
+            }
+            int postingLength = offsets[offsets.length - 1];
+            if (postingLength != data.remaining() - 4) {
+                throw new InventorySnapshot.CorruptSnapshotException("Invalid posting length in " + file);
+            }
+            byte[] postings = new byte[postingLength];
+            data.get(postings);
+            return new Base(codes.chars, codes.starts, count, offsets, postings, postingLength);
+        } catch (RuntimeException e) {
+            throw new InventorySnapshot.CorruptSnapshotException("Truncated code index " + file);
+        }
+    }
+
+    /**
+     * @return The checksum at the end of a snapshot generation, which identifies its contents; 0 if there is none.
+     */
+    private static int snapshotChecksum(File snapshotFile) throws IOException {
+        if (!snapshotFile.exists() || snapshotFile.length() < 4) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer tail = ByteBuffer.allocate(4);
+            long position = in.size() - 4;
+            while (tail.hasRemaining()) {
+                if (in.read(tail, position + tail.position()) < 0) {
+                    return 0;
+                }
+            }
+            return tail.getInt(0);
+        }
+    }
+
+    /**
+     * Appends sorted codes into one {@code char[]}.
+     */
+    private static final class Builder {
+        char[] chars;
+        int[] starts;
+        int count;
+        int length;
+
+        Builder(int expected) {
+            chars = new char[Math.max(16, expected * 12)];
+            starts = new int[expected + 1];
+        }
+
+        void add(String code) {
+            if (length + code.length() > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + code.length()));
+            }
+            if (count + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            code.getChars(0, code.length(), chars, length);
+            length += code.length();
+            starts[++count] = length;
+        }
+
+        Base build() {
+            return Base.build(chars, starts, count);
+        }
+    }
+
+    @FunctionalInterface
+    private interface PositionVisitor {
+        boolean visit(int position);
+    }
+
+    @FunctionalInterface
+    private interface MatchConsumer {
+        void accept(int position, int distance);
+    }
+
+    /**
+     * The immutable part of the index: the sorted codes and, for every trigram bucket, the positions of the codes
+     * with a trigram in it.
+     */
+    private static final class Base {
+        // Code i is chars[starts[i]] up to chars[starts[i + 1]]
+        final char[] chars;
+        final int[] starts;
+        final int count;
+        // lcp[i] is the length of the prefix code i shares with code i - 1
+        final char[] lcp;
+        final int[] offsets;
+        final byte[] postings;
+        final int postingLength;
+
+        Base(char[] chars, int[] starts, int count, int[] offsets, byte[] postings, int postingLength) {
+            this.chars = chars;
+            this.starts = starts;
+            this.count = count;
+            this.offsets = offsets;
+            this.postings = postings;
+            this.postingLength = postingLength;
+            this.lcp = new char[count];
+            for (int i = 1; i < count; i++) {
+                lcp[i] = (char) commonPrefix(i - 1, i, Character.MAX_VALUE);
+            }
+        }
+
+        static Base of(Inventory inventory) {
+            Builder builder = new Builder(inventory.size());
+            inventory.forEachSorted((code, stock) -> builder.add(code));
+            return builder.build();
+        }
+
+        /**
+         * Builds the postings in two passes: size every bucket's varint gaps, then write them in code order.
+         */
+        static Base build(char[] chars, int[] starts, int count) {
+            int buckets = Integer.highestOneBit(Math.max(1024, Math.min(count, 1 << 20)));
+            int mask = buckets - 1;
+            int[] offsets = new int[buckets + 1];
+            int[] last = new int[buckets];
+            Arrays.fill(last, -1);
+            for (int id = 0; id < count; id++) {
+                for (int p = starts[id]; p + 3 <= starts[id + 1]; p++) {
+                    int bucket = bucket(chars[p], chars[p + 1], chars[p + 2]) & mask;
+                    if (last[bucket] != id) {
+                        offsets[bucket + 1] += CodeBytes.varintSize(id - last[bucket]);
+                        last[bucket] = id;
+                    }
+                }
+            }
+            for (int b = 0; b < buckets; b++) {
+                offsets[b + 1] += offsets[b];
+            }
+            ByteBuffer postings = ByteBuffer.allocate(offsets[buckets]);
+            int[] next = Arrays.copyOf(offsets, buckets);
+            Arrays.fill(last, -1);
+            for (int id = 0; id < count; id++) {
+                for (int p = starts[id]; p + 3 <= starts[id + 1]; p++) {
+                    int bucket = bucket(chars[p], chars[p + 1], chars[p + 2]) & mask;
+                    if (last[bucket] != id) {
+                        postings.position(next[bucket]);
+                        CodeBytes.putVarint(postings, id - last[bucket]);
+                        next[bucket] = postings.position();
+                        last[bucket] = id;
+                    }
+                }
+            }
+            return new Base(chars, starts, count, offsets, postings.array(), offsets[buckets]);
+        }
+
+        private static int bucket(char a, char b, char c) {
+            int h = (a * 31 + b) * 31 + c;
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        int size() {
+            return count;
+        }
+
+        String code(int i) {
+            return new String(chars, starts[i], starts[i + 1] - starts[i]);
+        }
+
+        private int compare(int i, String code) {
+            int p = starts[i];
+            int n = Math.min(starts[i + 1] - p, code.length());
+            for (int k = 0; k < n; k++) {
+                int cmp = chars[p + k] - code.charAt(k);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return (starts[i + 1] - p) - code.length();
+        }
+
+        int lowerBound(String code) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(mid, code) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        boolean contains(String code) {
+            int i = lowerBound(code);
+            return i < count && compare(i, code) == 0;
+        }
+
+        boolean startsWith(int i, String prefix) {
+            int p = starts[i];
+            if (starts[i + 1] - p < prefix.length()) {
+                return false;
+            }
+            for (int k = 0; k < prefix.length(); k++) {
+                if (chars[p + k] != prefix.charAt(k)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean contains(int i, String fragment) {
+            int last = starts[i + 1] - fragment.length();
+            outer:
+            for (int p = starts[i]; p <= last; p++) {
+                for (int k = 0; k < fragment.length(); k++) {
+                    if (chars[p + k] != fragment.charAt(k)) {
+                        continue outer;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Visits, in code order, the positions of the codes that may contain a fragment of three or more
+         * characters: those in the smallest bucket among the fragment's trigrams.
+         */
+        void forEachCandidate(String fragment, PositionVisitor visitor) {
+            int mask = offsets.length - 2;
+            int from = 0;
+            int to = Integer.MAX_VALUE;
+            for (int k = 0; k + 3 <= fragment.length(); k++) {
+                int bucket = bucket(fragment.charAt(k), fragment.charAt(k + 1), fragment.charAt(k + 2)) & mask;
+                if (offsets[bucket + 1] - offsets[bucket] < to - from) {
+                    from = offsets[bucket];
+                    to = offsets[bucket + 1];
+                }
+            }
+            ByteBuffer data = ByteBuffer.wrap(postings);
+            int id = -1;
+            for (int p = from; p < to; ) {
+                int gap = CodeBytes.varintAt(data, p);
+                p += CodeBytes.varintSize(gap);
+                id += gap;
+                if (!visitor.visit(id)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Walks the sorted codes as a trie: the edit-distance rows of a shared prefix are computed once, and when
+         * every cell of a prefix's row exceeds the limit, all the codes under that prefix are skipped.
+         */
+        void similar(String query, int maxDistance, MatchConsumer matches) {
+            int width = query.length() + 1;
+            int[][] rows = new int[16][];
+            rows[0] = new int[width];
+            for (int j = 0; j < width; j++) {
+                rows[0][j] = j;
+            }
+            int valid = 0; // Rows 0..valid hold the prefixes of the previous code visited
+            int i = 0;
+            while (i < count) {
+                int start = starts[i];
+                int length = starts[i + 1] - start;
+                // The codes skipped since the previous one visited share more with it than this one does
+                int depth = Math.min(lcp[i], valid);
+                boolean pruned = false;
+                for (int d = depth + 1; d <= length; d++) {
+                    if (d == rows.length) {
+                        rows = Arrays.copyOf(rows, rows.length * 2);
+                    }
+                    if (rows[d] == null) {
+                        rows[d] = new int[width];
+                    }
+                    int[] above = rows[d - 1];
+                    int[] row = rows[d];
+                    row[0] = d;
+                    int min = d;
+                    char c = chars[start + d - 1];
+                    for (int j = 1; j < width; j++) {
+                        row[j] = Math.min(Math.min(above[j], row[j - 1]) + 1,
+                                above[j - 1] + (query.charAt(j - 1) == c ? 0 : 1));
+                        min = Math.min(min, row[j]);
+                    }
+                    if (min > maxDistance) {
+                        valid = d - 1;
+                        i = endOfPrefix(i, d);
+                        pruned = true;
+                        break;
+                    }
+                }
+                if (!pruned) {
+                    int distance = rows[length][width - 1];
+                    if (distance <= maxDistance) {
+                        matches.accept(i, distance);
+                    }
+                    valid = length;
+                    i++;
+                }
+            }
+        }
+
+        private int commonPrefix(int a, int b, int limit) {
+            int pa = starts[a];
+            int pb = starts[b];
+            int n = Math.min(limit, Math.min(starts[a + 1] - pa, starts[b + 1] - pb));
+            int k = 0;
+            while (k < n && chars[pa + k] == chars[pb + k]) {
+                k++;
+            }
+            return k;
+        }
+
+        /**
+         * @return The position of the first code after {@code i} that does not share its first {@code length}
+         *         characters. Most skipped subtrees are small, so the shared prefix lengths of the next codes are
+         *         scanned first; a larger subtree is then crossed by galloping and binary search.
+         */
+        private int endOfPrefix(int i, int length) {
+            int j = i + 1;
+            int scanned = Math.min(count, i + 64);
+            while (j < scanned && lcp[j] >= length) {
+                j++;
+            }
+            if (j < scanned || j == count) {
+                return j;
+            }
+            int low = j - 1; // Shares the prefix
+            int step = 1;
+            int high;
+            while (true) {
+                int probe = low + step;
+                if (probe >= count) {
+                    high = count;
+                    break;
+                }
+                if (commonPrefix(i, probe, length) < length) {
+                    high = probe;
+                    break;
+                }
+                low = probe;
+                step <<= 1;
+            }
+            while (high - low > 1) { // low shares the prefix, high does not
+                int mid = (low + high) >>> 1;
+                if (commonPrefix(i, mid, length) < length) {
+                    high = mid;
+                } else {
+                    low = mid;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * @return A new base with the given sorted codes removed and added.
+         */
+        Base merge(String[] removedCodes, String[] addedCodes) {
+            Builder builder = new Builder(count - removedCodes.length + addedCodes.length);
+            int r = 0;
+            int a = 0;
+            for (int i = 0; i < count; i++) {
+                while (a < addedCodes.length && compare(i, addedCodes[a]) > 0) {
+                    builder.add(addedCodes[a++]);
+                }
+                while (r < removedCodes.length && compare(i, removedCodes[r]) > 0) {
+                    r++;
+                }
+                if (r < removedCodes.length && compare(i, removedCodes[r]) == 0) {
+                    r++;
+                    continue;
+                }
+                builder.add(code(i));
+            }
+            while (a < addedCodes.length) {
+                builder.add(addedCodes[a++]);
+            }
+            return builder.build();
+        }
+    }
+}
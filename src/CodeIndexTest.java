@@ -0,0 +1,113 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CodeIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static Inventory sample() {
+        Inventory inventory = new ConcurrentInventory();
+        for (String code : List.of("FILTRO-ACEITE-01", "FILTRO-AIRE-02", "PASTILLA-FRENO-10", "DISCO-FRENO-11",
+                "P101", "P102", "P110", "Q101")) {
+            inventory.put(code, 5);
+        }
+        return inventory;
+    }
+
+    @Test
+    public void testSearch_prefixSubstringAndSimilar() {
+        CodeIndex index = CodeIndex.attach(sample());
+
+        assertEquals(List.of("FILTRO-ACEITE-01", "FILTRO-AIRE-02"), index.withPrefix("FILTRO", 10));
+        assertEquals(List.of("DISCO-FRENO-11", "PASTILLA-FRENO-10"), index.containing("FRENO", 10));
+        assertEquals(List.of("P101", "Q101"), index.containing("101", 10), "Short fragments should match too.");
+        assertThrows(IllegalArgumentException.class, () -> index.containing("10", 10),
+                "A fragment shorter than a trigram would need a scan of every code.");
+        assertEquals(List.of("DISCO-FRENO-11"), index.containing("FRENO", 1), "Results should respect the limit.");
+        assertEquals(List.of("P101", "P102", "P110", "Q101"), index.similar("P10l", 2, 10).subList(0, 4));
+        assertEquals("P101", index.similar("P1O1", 1, 10).get(0), "A one-character typo should be suggested first.");
+        assertTrue(index.similar("ZZZZZZZZ", 2, 10).isEmpty());
+    }
+
+    @Test
+    public void testChanges_updateTheIndexIncrementally() {
+        Inventory inventory = sample();
+        CodeIndex index = CodeIndex.attach(inventory);
+        inventory.put("FILTRO-COMBUSTIBLE-03", 1);
+        inventory.remove("FILTRO-AIRE-02");
+        inventory.put("P101", 99); // Stock change only
+
+        assertEquals(List.of("FILTRO-ACEITE-01", "FILTRO-COMBUSTIBLE-03"), index.withPrefix("FILTRO", 10));
+        assertEquals(List.of("FILTRO-COMBUSTIBLE-03"), index.containing("COMBUS", 10));
+        assertEquals(List.of(), index.containing("AIRE", 10), "Removed codes should not be found.");
+        assertEquals(8, index.size());
+    }
+
+    @Test
+    public void testRebuild_foldsManyChangesIntoANewBase() {
+        Inventory inventory = new ConcurrentInventory();
+        CodeIndex index = CodeIndex.attach(inventory);
+        for (int i = 0; i < 5000; i++) {
+            inventory.put(String.format("R%05d", i), i);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            inventory.remove(String.format("R%05d", i));
+        }
+        assertEquals(List.of("R04999"), index.containing("4999", 10), "Results should be right during a rebuild.");
+        index.awaitRebuild();
+        assertEquals(2500, index.size());
+        assertEquals(List.of("R00001", "R00003"), index.withPrefix("R0000", 2));
+        assertEquals(List.of("R04999"), index.containing("4999", 10));
+        assertEquals("R01235", index.similar("R01235", 1, 1).get(0));
+    }
+
+    @Test
+    public void testSavedIndex_isReusedAndUpdatedFromTheJournal() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Main.writeSnapshot(snapshot, sample());
+        assertTrue(CodeIndex.fileFor(snapshot).exists(), "The index should be saved with the snapshot.");
+        Inventory loaded = Main.loadInto(snapshot, new ConcurrentInventory());
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, loaded, Main::writeSnapshot)) {
+            loaded.put("P999", 1);
+            loaded.remove("P102");
+            journal.sync();
+        }
+
+        Inventory reloaded = Main.loadInto(snapshot, new ConcurrentInventory());
+        CodeIndex index = CodeIndex.attach(snapshot, reloaded);
+        assertEquals(List.of("P101", "P110"), index.withPrefix("P1", 10),
+                "Codes changed in the journal since the snapshot should be reconciled.");
+        assertEquals(List.of("P999"), index.containing("999", 10));
+    }
+
+    @Test
+    public void testDistance_isLevenshtein() {
+        assertEquals(0, CodeIndex.distance("P101", "P101", 2));
+        assertEquals(1, CodeIndex.distance("P101", "P1011", 2));
+        assertEquals(2, CodeIndex.distance("P101", "1P01", 2));
+        assertEquals(3, CodeIndex.distance("P101", "XXXXXXX", 2), "Past the limit the result is the limit plus one.");
+    }
+
+    @Test
+    public void testMenu_suggestsSimilarCodesAndSearchesFragments() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        String input = "1\nnorte\n" + "1\nP101\n5\n" + "3\nP1O1\n" + "8\n10\n" + "8\n101\n" + "5\n5\n";
+        Main.runWarehouses(tempDir.toFile(), List.of("norte"), new Scanner(new StringReader(input)),
+                new PrintStream(output, true));
+
+        String text = output.toString();
+        assertTrue(text.contains("¿Quiso decir P101?"), text);
+        assertTrue(text.contains("Error: Escriba al menos 3 caracteres del código."), text);
+        assertTrue(text.contains("Product Code: P101, Stock: 5"), text);
+    }
+}
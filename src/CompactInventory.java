@@ -0,0 +1,314 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Low-allocation, on-heap {@link Inventory} for large catalogs.
+ *
+ * <p>Product codes are dictionary-encoded: their UTF-8 bytes are packed into one byte arena instead of being kept
+ * as {@link String} objects, and each product is an id into parallel {@code int} columns (code offset, hash, stock).
+ * An open-addressing hash table with linear probing maps codes to ids. Compared with a {@code TreeMap} of boxed
+ * {@code Integer}s this takes less than half the heap per product, and a lookup or a stock update on an existing
+ * product does not allocate at all.
+ *
+ * <p>The sorted view used for listing is an array of ids built on demand and kept until a product is added or
+ * removed. Not thread-safe. Copies do not inherit listeners.
+ */
+public class CompactInventory extends AbstractInventory {
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private byte[] arena;
+    private ByteBuffer arenaView;
+    private int arenaUsed;
+    private int arenaGarbage;
+
+    private int[] codeOffsets;
+    private int[] hashes;
+    private int[] stocks;
+    private int size;
+
+    /** Hash table of entry id + 1; 0 marks an empty slot. Its length is a power of two. */
+    private int[] slots;
+    private int mask;
+
+    private int[] sortedIds;
+
+    public CompactInventory() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The number of products to size the tables for.
+     */
+    public CompactInventory(int expectedSize) {
+        int tableSize = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        int capacity = (int) (tableSize * LOAD_FACTOR);
+        codeOffsets = new int[capacity];
+        hashes = new int[capacity];
+        stocks = new int[capacity];
+        arena = new byte[Math.max(64, expectedSize * 8)];
+        arenaView = ByteBuffer.wrap(arena);
+    }
+
+    @Override
+    public int stock(String code) {
+        int slot = find(code, hash(code));
+        return slot < 0 ? NOT_FOUND : stocks[slots[slot] - 1];
+    }
+
+    @Override
+    public void put(String code, int stock) {
+        Inventory.checkCode(code);
+        if (stock < 0) {
+            throw new IllegalArgumentException("Stock must be a non-negative number");
+        }
+        int hash = hash(code);
+        int slot = find(code, hash);
+        if (slot >= 0) {
+            int id = slots[slot] - 1;
+            int old = stocks[id];
+            stocks[id] = stock;
+            fireChange(code, old, stock);
+            return;
+        }
+        if (size == codeOffsets.length) {
+            resize();
+            slot = find(code, hash);
+        }
+        int id = size++;
+        codeOffsets[id] = appendCode(code);
+        hashes[id] = hash;
+        stocks[id] = stock;
+        slots[~slot] = id + 1;
+        sortedIds = null;
+        fireChange(code, NOT_FOUND, stock);
+    }
+
+    @Override
+    public int adjustStock(String code, int delta) {
+        int slot = find(code, hash(code));
+        if (slot < 0) {
+            return NOT_FOUND;
+        }
+        int id = slots[slot] - 1;
+        int old = stocks[id];
+        int adjusted = Inventory.adjusted(old, delta);
+        if (adjusted != INSUFFICIENT_STOCK) {
+            stocks[id] = adjusted;
+            fireChange(code, old, adjusted);
+        }
+        return adjusted;
+    }
+
+    @Override
+    public boolean remove(String code) {
+        int slot = find(code, hash(code));
+        if (slot < 0) {
+            return false;
+        }
+        int id = slots[slot] - 1;
+        int old = stocks[id];
+        arenaGarbage += codeLength(id);
+        deleteSlot(slot);
+        int last = --size;
+        if (id != last) {
+            // Keep the columns dense: move the last entry into the freed id
+            slots[slotOf(last)] = id + 1;
+            codeOffsets[id] = codeOffsets[last];
+            hashes[id] = hashes[last];
+            stocks[id] = stocks[last];
+        }
+        sortedIds = null;
+        if (arenaGarbage > 4096 && arenaGarbage > arenaUsed / 2) {
+            compactArena();
+        }
+        fireChange(code, old, NOT_FOUND);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEachSorted(StockConsumer action) {
+        int[] order = sortedIds();
+        for (int id : order) {
+            action.accept(code(id), stocks[id]);
+        }
+    }
+
+    @Override
+    public void forEachFrom(String from, boolean inclusive, StockVisitor visitor) {
+        int[] order = sortedIds();
+        int start = 0;
+        if (from != null) {
+            // First position whose code sorts after from (or at it, when inclusive)
+            int lo = 0;
+            int hi = order.length;
+            int skip = inclusive ? 0 : 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int offset = codeOffsets[order[mid]];
+                int length = CodeBytes.varintAt(arenaView, offset);
+                if (CodeBytes.compare(arenaView, offset + CodeBytes.varintSize(length), length, from) < skip) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            start = lo;
+        }
+        for (int i = start; i < order.length; i++) {
+            int id = order[i];
+            if (!visitor.visit(code(id), stocks[id])) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public CompactInventory copy() {
+        CompactInventory copy = new CompactInventory(0);
+        copy.arena = arena.clone();
+        copy.arenaView = ByteBuffer.wrap(copy.arena);
+        copy.arenaUsed = arenaUsed;
+        copy.arenaGarbage = arenaGarbage;
+        copy.codeOffsets = codeOffsets.clone();
+        copy.hashes = hashes.clone();
+        copy.stocks = stocks.clone();
+        copy.size = size;
+        copy.slots = slots.clone();
+        copy.mask = mask;
+        copy.sortedIds = sortedIds;
+        return copy;
+    }
+
+    private static int hash(String code) {
+        int h = code.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The slot holding the code, or the bitwise complement of the empty slot where it would go.
+     */
+    private int find(String code, int hash) {
+        int slot = hash & mask;
+        while (true) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return ~slot;
+            }
+            if (hashes[id] == hash) {
+                int offset = codeOffsets[id];
+                int length = CodeBytes.varintAt(arenaView, offset);
+                if (CodeBytes.compare(arenaView, offset + CodeBytes.varintSize(length), length, code) == 0) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int slotOf(int id) {
+        int slot = hashes[id] & mask;
+        while (slots[slot] != id + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Backward-shift deletion, so linear probing never needs tombstones.
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (slots[next] != 0) {
+            int home = hashes[slots[next] - 1] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = 0;
+    }
+
+    private void resize() {
+        int tableSize = slots.length * 2;
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+        int capacity = (int) (tableSize * LOAD_FACTOR);
+        codeOffsets = Arrays.copyOf(codeOffsets, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        stocks = Arrays.copyOf(stocks, capacity);
+    }
+
+    private int appendCode(String code) {
+        byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+        int needed = CodeBytes.varintSize(bytes.length) + bytes.length;
+        if (arenaUsed + needed > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaUsed + needed));
+            arenaView = ByteBuffer.wrap(arena);
+        }
+        int offset = arenaUsed;
+        arenaView.position(offset);
+        CodeBytes.putVarint(arenaView, bytes.length);
+        arenaView.put(bytes);
+        arenaUsed = arenaView.position();
+        return offset;
+    }
+
+    private int codeLength(int id) {
+        int length = CodeBytes.varintAt(arenaView, codeOffsets[id]);
+        return CodeBytes.varintSize(length) + length;
+    }
+
+    private String code(int id) {
+        int offset = codeOffsets[id];
+        int length = CodeBytes.varintAt(arenaView, offset);
+        return new String(arena, offset + CodeBytes.varintSize(length), length, StandardCharsets.UTF_8);
+    }
+
+    private void compactArena() {
+        byte[] compacted = new byte[Math.max(64, arenaUsed - arenaGarbage)];
+        int used = 0;
+        for (int id = 0; id < size; id++) {
+            int length = codeLength(id);
+            System.arraycopy(arena, codeOffsets[id], compacted, used, length);
+            codeOffsets[id] = used;
+            used += length;
+        }
+        arena = compacted;
+        arenaView = ByteBuffer.wrap(arena);
+        arenaUsed = used;
+        arenaGarbage = 0;
+    }
+
+    private int[] sortedIds() {
+        if (sortedIds == null) {
+            String[] codes = new String[size];
+            for (int id = 0; id < size; id++) {
+                codes[id] = code(id);
+            }
+            Arrays.sort(codes);
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = slots[find(codes[i], hash(codes[i]))] - 1;
+            }
+            sortedIds = order;
+        }
+        return sortedIds;
+    }
+}
@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompactInventoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static Map<String, Integer> toMap(Inventory inventory) {
+        Map<String, Integer> map = new LinkedHashMap<>();
+        inventory.forEachSorted(map::put);
+        return map;
+    }
+
+    @Test
+    public void testPutStockRemove_basicOperations() {
+        CompactInventory inventory = new CompactInventory();
+        inventory.put("P101", 10);
+        inventory.put("P102", 0);
+        inventory.put("P101", 30);
+
+        assertEquals(2, inventory.size());
+        assertEquals(30, inventory.stock("P101"), "Second put should overwrite the stock.");
+        assertEquals(0, inventory.stock("P102"));
+        assertEquals(Inventory.NOT_FOUND, inventory.stock("P999"));
+        assertTrue(inventory.remove("P101"));
+        assertFalse(inventory.remove("P101"), "Removing twice should report the product as missing.");
+        assertFalse(inventory.contains("P101"));
+        assertEquals(1, inventory.size());
+    }
+
+    @Test
+    public void testPut_rejectsNegativeStock() {
+        CompactInventory inventory = new CompactInventory();
+        assertThrows(IllegalArgumentException.class, () -> inventory.put("P101", -1));
+    }
+
+    @Test
+    public void testAdjustStockAndReserve() {
+        CompactInventory inventory = new CompactInventory();
+        inventory.put("P101", 10);
+        assertEquals(15, inventory.adjustStock("P101", 5), "adjustStock should return the new stock.");
+        assertEquals(0, inventory.reserve("P101", 15), "Reserving all the stock should leave zero.");
+        assertEquals(Inventory.INSUFFICIENT_STOCK, inventory.reserve("P101", 1), "Stock cannot go below zero.");
+        assertEquals(0, inventory.stock("P101"), "A rejected reservation should not change the stock.");
+        assertEquals(Inventory.NOT_FOUND, inventory.adjustStock("P999", 1), "Unknown codes should be reported.");
+        assertThrows(IllegalArgumentException.class, () -> inventory.reserve("P101", -1));
+        inventory.put("P102", Integer.MAX_VALUE);
+        assertThrows(IllegalArgumentException.class, () -> inventory.adjustStock("P102", 1));
+    }
+
+    @Test
+    public void testRandomOperations_matchTreeMap() {
+        CompactInventory inventory = new CompactInventory();
+        TreeMap<String, Integer> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            String code = "R" + random.nextInt(5_000) + (random.nextInt(20) == 0 ? "-Ñ" : "");
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(code) != null, inventory.remove(code), "remove " + code);
+            } else {
+                int stock = random.nextInt(1_000);
+                expected.put(code, stock);
+                inventory.put(code, stock);
+            }
+        }
+        assertEquals(expected.size(), inventory.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), inventory.stock(entry.getKey()), "stock of " + entry.getKey());
+        }
+        assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(toMap(inventory).entrySet()),
+                "Sorted view should list every product in code order.");
+    }
+
+    @Test
+    public void testCopy_isIndependent() {
+        CompactInventory inventory = new CompactInventory();
+        inventory.put("P201", 1);
+        Inventory copy = inventory.copy();
+        inventory.put("P201", 2);
+        inventory.put("P202", 3);
+
+        assertEquals(1, copy.stock("P201"));
+        assertFalse(copy.contains("P202"));
+        assertEquals(1, copy.size());
+    }
+
+    @Test
+    public void testSnapshot_roundTrip() throws IOException {
+        CompactInventory inventory = new CompactInventory();
+        for (int i = 0; i < 1_000; i++) {
+            inventory.put("P" + i, i);
+        }
+        File file = tempDir.resolve("existencias.dat").toFile();
+        InventorySnapshot.write(file, inventory);
+
+        CompactInventory loaded = new CompactInventory();
+        InventorySnapshot.readInto(file, loaded);
+        assertEquals(toMap(inventory), toMap(loaded));
+    }
+}
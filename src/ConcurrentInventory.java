@@ -0,0 +1,200 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe {@link Inventory} shared by every session of the {@link InventoryServer}.
+ *
+ * <p>Products live in a {@link ConcurrentSkipListMap}, so lookups and sorted listings never block.
+ * Changes take one of a fixed set of striped locks chosen by product code: changes to different codes almost
+ * never contend, while changes to the same code are applied one at a time, so none is lost and listeners
+ * (the journal in particular) see them in the order they were applied.
+ */
+public class ConcurrentInventory extends AbstractInventory {
+    private static final int STRIPES = 64;
+
+    /**
+     * Mutable stock holder, so overwriting the stock of an existing product does not touch the skip list.
+     */
+    private static final class Cell {
+        volatile int stock;
+
+        Cell(int stock) {
+            this.stock = stock;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Cell> cells = new ConcurrentSkipListMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final AtomicInteger size = new AtomicInteger();
+
+    public ConcurrentInventory() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    private ReentrantLock lockFor(String code) {
+        int h = code.hashCode() * 0x9E3779B9;
+        return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static void checkStock(int stock) {
+        if (stock < 0) {
+            throw new IllegalArgumentException("Stock must be a non-negative number");
+        }
+    }
+
+    @Override
+    public int stock(String code) {
+        Cell cell = cells.get(code);
+        return cell == null ? NOT_FOUND : cell.stock;
+    }
+
+    @Override
+    public void put(String code, int stock) {
+        Inventory.checkCode(code);
+        checkStock(stock);
+        ReentrantLock lock = lockFor(code);
+        lock.lock();
+        try {
+            Cell cell = cells.get(code);
+            if (cell == null) {
+                cells.put(code, new Cell(stock));
+                size.incrementAndGet();
+                fireChange(code, NOT_FOUND, stock);
+            } else {
+                int old = cell.stock;
+                cell.stock = stock;
+                fireChange(code, old, stock);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String code, int stock) {
+        Inventory.checkCode(code);
+        checkStock(stock);
+        ReentrantLock lock = lockFor(code);
+        lock.lock();
+        try {
+            if (cells.containsKey(code)) {
+                return false;
+            }
+            cells.put(code, new Cell(stock));
+            size.incrementAndGet();
+            fireChange(code, NOT_FOUND, stock);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(String code, int stock) {
+        checkStock(stock);
+        ReentrantLock lock = lockFor(code);
+        lock.lock();
+        try {
+            Cell cell = cells.get(code);
+            if (cell == null) {
+                return false;
+            }
+            int old = cell.stock;
+            cell.stock = stock;
+            fireChange(code, old, stock);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int adjustStock(String code, int delta) {
+        ReentrantLock lock = lockFor(code);
+        lock.lock();
+        try {
+            Cell cell = cells.get(code);
+            if (cell == null) {
+                return NOT_FOUND;
+            }
+            int old = cell.stock;
+            int adjusted = Inventory.adjusted(old, delta);
+            if (adjusted != INSUFFICIENT_STOCK) {
+                cell.stock = adjusted;
+                fireChange(code, old, adjusted);
+            }
+            return adjusted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String code) {
+        ReentrantLock lock = lockFor(code);
+        lock.lock();
+        try {
+            Cell cell = cells.remove(code);
+            if (cell == null) {
+                return false;
+            }
+            size.decrementAndGet();
+            fireChange(code, cell.stock, NOT_FOUND);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Visits every product in code order. The walk does not block changes; each product is seen
+     * with a value it had at some point during the walk.
+     */
+    @Override
+    public void forEachSorted(StockConsumer action) {
+        for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+            action.accept(entry.getKey(), entry.getValue().stock);
+        }
+    }
+
+    @Override
+    public void forEachFrom(String from, boolean inclusive, StockVisitor visitor) {
+        for (Map.Entry<String, Cell> entry : (from == null ? cells : cells.tailMap(from, inclusive)).entrySet()) {
+            if (!visitor.visit(entry.getKey(), entry.getValue().stock)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the products without blocking changes. This is a fuzzy copy taken while writers run, not a
+     * point-in-time one: each product is copied with a value it had at some point during the copy, and two
+     * products may be copied from different moments. It is only correct as the base of a snapshot because the
+     * journal replays the log written since the copy started on top of it, and log records hold absolute stock
+     * values: replaying a change the copy already has sets the same value again, and replaying a later one
+     * brings the product to its final value.
+     */
+    @Override
+    public ConcurrentInventory copy() {
+        ConcurrentInventory copy = new ConcurrentInventory();
+        for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+            copy.cells.put(entry.getKey(), new Cell(entry.getValue().stock));
+        }
+        copy.size.set(copy.cells.size());
+        return copy;
+    }
+
+    @Override
+    public boolean copiesConcurrently() {
+        return true;
+    }
+}
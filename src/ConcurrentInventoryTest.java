@@ -0,0 +1,136 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrentInventoryTest {
+
+    private static final int THREADS = 8;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testPutIfAbsent_onlyOneSessionWins() throws Exception {
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        AtomicInteger wins = new AtomicInteger();
+        runConcurrently(t -> {
+            for (int i = 0; i < 1000; i++) {
+                if (inventory.putIfAbsent("P" + i, t)) {
+                    wins.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(1000, wins.get(), "Each code should be added by exactly one thread.");
+        assertEquals(1000, inventory.size(), "Size should count each code once.");
+    }
+
+    @Test
+    public void testConcurrentChanges_journalRebuildsFinalState() throws Exception {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, inventory, Main::writeSnapshot, 4096)) {
+            runConcurrently(t -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 5000; i++) {
+                    String code = "P" + random.nextInt(50);
+                    switch (random.nextInt(3)) {
+                        case 0 -> inventory.put(code, random.nextInt(1000));
+                        case 1 -> inventory.replace(code, random.nextInt(1000));
+                        default -> inventory.remove(code);
+                    }
+                    if (i % 100 == 0) {
+                        journal.sync();
+                    }
+                }
+                journal.sync();
+            });
+        }
+
+        Map<String, Integer> expected = new TreeMap<>();
+        inventory.forEachSorted(expected::put);
+        assertEquals(inventory.size(), expected.size(), "Size should match the products listed.");
+        assertEquals(expected, Main.loadInventory(snapshot),
+                "Snapshot plus journal should hold the last value applied to every product.");
+    }
+
+    @Test
+    public void testReserve_neverOversells() throws Exception {
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        inventory.put("P1", 1000);
+        AtomicInteger sold = new AtomicInteger();
+        runConcurrently(t -> {
+            for (int i = 0; i < 500; i++) {
+                int left = inventory.reserve("P1", 1 + i % 3);
+                if (left != Inventory.INSUFFICIENT_STOCK) {
+                    sold.addAndGet(1 + i % 3);
+                }
+            }
+        });
+
+        assertEquals(1000 - sold.get(), inventory.stock("P1"), "Every accepted reservation should be taken once.");
+        assertTrue(inventory.stock("P1") >= 0, "Stock should never go below zero.");
+    }
+
+    @Test
+    public void testAdjustStock_concurrentDeltasAreNotLost() throws Exception {
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        inventory.put("P1", 0);
+        runConcurrently(t -> {
+            for (int i = 0; i < 1000; i++) {
+                inventory.adjustStock("P1", 2);
+                inventory.adjustStock("P1", -1);
+            }
+        });
+
+        assertEquals(THREADS * 1000, inventory.stock("P1"), "No increment or decrement should be lost.");
+    }
+
+    @Test
+    public void testCopy_isIndependent() {
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        inventory.put("P1", 10);
+        Inventory copy = inventory.copy();
+        inventory.put("P1", 20);
+        inventory.put("P2", 5);
+
+        assertEquals(10, copy.stock("P1"), "The copy should keep the value it was taken with.");
+        assertFalse(copy.contains("P2"), "Products added later should not appear in the copy.");
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runConcurrently(Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                worker.run(thread);
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
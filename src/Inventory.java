@@ -0,0 +1,297 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Stock by product code. Stock values are plain {@code int}s, so implementations can store them without boxing.
+ * The menu operations in {@link Main} work against this interface; {@link #of(Map)} adapts a plain map.
+ */
+public interface Inventory {
+    /**
+     * Returned by {@link #stock(String)} for an unknown product code.
+     */
+    int NOT_FOUND = -1;
+
+    /**
+     * Returned by {@link #adjustStock(String, int)} and {@link #reserve(String, int)} when the change would leave
+     * the stock below zero. The stock is left unchanged.
+     */
+    int INSUFFICIENT_STOCK = -2;
+
+    /**
+     * The longest product code, in UTF-8 bytes, that the journal can record. Longer codes are rejected before they
+     * change an inventory, so every applied change can be logged.
+     */
+    int MAX_CODE_BYTES = 0xFFFF;
+
+    /**
+     * Receives entries from {@link #forEachSorted(StockConsumer)}.
+     */
+    @FunctionalInterface
+    interface StockConsumer {
+        void accept(String code, int stock);
+    }
+
+    /**
+     * Receives entries from {@link #forEachFrom(String, boolean, StockVisitor)} until it asks to stop.
+     */
+    @FunctionalInterface
+    interface StockVisitor {
+        /**
+         * @return true to visit the next product, false to stop.
+         */
+        boolean visit(String code, int stock);
+    }
+
+    /**
+     * Told about every change after it is applied. Implementations call listeners while the change is still
+     * exclusive for that product code, so listeners see the changes to one code in the order they were applied.
+     */
+    @FunctionalInterface
+    interface ChangeListener {
+        /**
+         * @param code     The product code.
+         * @param oldStock The stock before the change, or {@link #NOT_FOUND} if the product was added.
+         * @param newStock The stock after the change, or {@link #NOT_FOUND} if the product was removed.
+         */
+        void onChange(String code, int oldStock, int newStock);
+    }
+
+    /**
+     * Returns the stock of a product.
+     *
+     * @param code The product code.
+     * @return The stock quantity, or {@link #NOT_FOUND} if the code is not in the inventory.
+     */
+    int stock(String code);
+
+    /**
+     * Tells whether a product is in the inventory.
+     *
+     * @param code The product code.
+     * @return true if the code is present.
+     */
+    default boolean contains(String code) {
+        return stock(code) != NOT_FOUND;
+    }
+
+    /**
+     * Adds a product or overwrites its stock.
+     *
+     * @param code  The product code; at most {@link #MAX_CODE_BYTES} long.
+     * @param stock The stock quantity; must not be negative.
+     * @throws IllegalArgumentException If the code is too long or the stock negative; nothing is changed.
+     */
+    void put(String code, int stock);
+
+    /**
+     * Adds a product only if it is not already in the inventory, atomically in thread-safe implementations.
+     *
+     * @param code  The product code; at most {@link #MAX_CODE_BYTES} long.
+     * @param stock The stock quantity; must not be negative.
+     * @return true if the product was added, false if the code already existed.
+     * @throws IllegalArgumentException If the code is too long or the stock negative; nothing is changed.
+     */
+    default boolean putIfAbsent(String code, int stock) {
+        if (contains(code)) {
+            return false;
+        }
+        put(code, stock);
+        return true;
+    }
+
+    /**
+     * Overwrites the stock of a product only if it is in the inventory, atomically in thread-safe implementations.
+     *
+     * @param code  The product code.
+     * @param stock The new stock quantity; must not be negative.
+     * @return true if the stock was changed, false if the code was not found.
+     */
+    default boolean replace(String code, int stock) {
+        if (!contains(code)) {
+            return false;
+        }
+        put(code, stock);
+        return true;
+    }
+
+    /**
+     * Adds a signed quantity to the stock of a product, atomically in thread-safe implementations, so concurrent
+     * sales and receipts of the same product are never lost. The change is rejected if the stock would go below zero.
+     *
+     * @param code  The product code.
+     * @param delta The quantity to add; negative to take stock out.
+     * @return The stock after the change, {@link #NOT_FOUND} if the code is not in the inventory, or
+     *         {@link #INSUFFICIENT_STOCK} if the change was rejected.
+     * @throws IllegalArgumentException If the stock would exceed {@link Integer#MAX_VALUE}.
+     */
+    default int adjustStock(String code, int delta) {
+        int stock = stock(code);
+        if (stock == NOT_FOUND) {
+            return NOT_FOUND;
+        }
+        int adjusted = adjusted(stock, delta);
+        if (adjusted != INSUFFICIENT_STOCK) {
+            put(code, adjusted);
+        }
+        return adjusted;
+    }
+
+    /**
+     * Takes a quantity out of the stock of a product if there is enough, atomically in thread-safe implementations.
+     *
+     * @param code     The product code.
+     * @param quantity The quantity to take; must not be negative.
+     * @return The stock left, {@link #NOT_FOUND} if the code is not in the inventory, or
+     *         {@link #INSUFFICIENT_STOCK} if there was not enough stock.
+     */
+    default int reserve(String code, int quantity) {
+        if (quantity < 0) {
+            throw new IllegalArgumentException("Quantity must be a non-negative number");
+        }
+        return adjustStock(code, -quantity);
+    }
+
+    /**
+     * Applies a delta to a stock value for {@link #adjustStock(String, int)}.
+     *
+     * @param stock The current stock.
+     * @param delta The quantity to add.
+     * @return The new stock, or {@link #INSUFFICIENT_STOCK} if it would be negative.
+     * @throws IllegalArgumentException If the new stock would exceed {@link Integer#MAX_VALUE}.
+     */
+    static int adjusted(int stock, int delta) {
+        long adjusted = (long) stock + delta;
+        if (adjusted < 0) {
+            return INSUFFICIENT_STOCK;
+        }
+        if (adjusted > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Stock cannot exceed " + Integer.MAX_VALUE);
+        }
+        return (int) adjusted;
+    }
+
+    /**
+     * Tells whether a product code fits in the journal.
+     *
+     * @param code The product code.
+     * @return true if its UTF-8 form is at most {@link #MAX_CODE_BYTES} long.
+     */
+    static boolean isStorableCode(String code) {
+        // A char takes at most 3 UTF-8 bytes, so short codes need no encoding
+        return code.length() <= MAX_CODE_BYTES / 3 || code.getBytes(StandardCharsets.UTF_8).length <= MAX_CODE_BYTES;
+    }
+
+    /**
+     * Rejects a product code the journal could not record, before it changes anything.
+     *
+     * @param code The product code.
+     * @throws IllegalArgumentException If the code is longer than {@link #MAX_CODE_BYTES} in UTF-8.
+     */
+    static void checkCode(String code) {
+        if (!isStorableCode(code)) {
+            throw new IllegalArgumentException("Product code cannot exceed " + MAX_CODE_BYTES + " bytes");
+        }
+    }
+
+    /**
+     * Removes a product.
+     *
+     * @param code The product code.
+     * @return true if the product was present.
+     */
+    boolean remove(String code);
+
+    /**
+     * @return The number of products in the inventory.
+     */
+    int size();
+
+    /**
+     * @return true if the inventory has no products.
+     */
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Visits every product in product code order.
+     *
+     * @param action Receives each code and its stock.
+     */
+    void forEachSorted(StockConsumer action);
+
+    /**
+     * Visits products in product code order starting at a given code, until the visitor returns false.
+     * Sorted implementations seek straight to the start, so a range or a page costs time proportional to the
+     * products visited rather than to the size of the inventory.
+     *
+     * @param from      The code to start at, or null to start at the first product.
+     * @param inclusive Whether a product with exactly the code from is visited.
+     * @param visitor   Receives each code and its stock.
+     */
+    default void forEachFrom(String from, boolean inclusive, StockVisitor visitor) {
+        boolean[] stopped = new boolean[1];
+        forEachSorted((code, stock) -> {
+            if (!stopped[0] && (from == null || code.compareTo(from) > (inclusive ? -1 : 0))) {
+                stopped[0] = !visitor.visit(code, stock);
+            }
+        });
+    }
+
+    /**
+     * Returns an independent point-in-time copy, used to write a snapshot while this inventory keeps changing.
+     *
+     * @return A copy that later changes to this inventory do not affect.
+     */
+    Inventory copy();
+
+    /**
+     * Tells whether {@link #copy()} may be called from another thread while this inventory is being changed,
+     * so a snapshot can be copied in the background instead of on the thread that triggered it. Such a copy may
+     * be fuzzy rather than point-in-time; the journal makes it consistent by replaying its log on top.
+     *
+     * @return true for thread-safe implementations.
+     */
+    default boolean copiesConcurrently() {
+        return false;
+    }
+
+    /**
+     * Told that a full snapshot of a copy of this inventory was written, so an inventory read from the snapshot
+     * file can move to the new file and drop what the file now holds. Called by the journal on its compaction
+     * thread, while this inventory may be changing.
+     *
+     * @param file The snapshot file that was written.
+     * @param copy The copy, returned by {@link #copy()}, that was written.
+     * @throws IOException If the new file cannot be read; the inventory stays as it was.
+     */
+    default void snapshotWritten(File file, Inventory copy) throws IOException {
+    }
+
+    /**
+     * Registers a listener for every later change made through this inventory.
+     *
+     * @param listener The listener.
+     */
+    void addListener(ChangeListener listener);
+
+    /**
+     * Checks that the data behind this inventory is intact before it is written to a new snapshot.
+     *
+     * @throws IOException If the backing data is damaged.
+     */
+    default void checkIntegrity() throws IOException {
+    }
+
+    /**
+     * Adapts a map of product code to quantity. Changes go straight through to the map.
+     *
+     * @param map The map to adapt.
+     * @return An inventory view of the map.
+     */
+    static Inventory of(Map<String, Integer> map) {
+        return new MapInventory(map);
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Bulk loads and listings of stock in CSV or TSV files, such as the nightly supplier feed.
+ *
+ * <p>Each row is a product code and its stock ({@code P101,25}); a first row that is not a valid product row,
+ * such as {@code codigo,stock}, is taken as a header. Files ending in {@code .tsv} or {@code .tab} are tab-separated,
+ * any other file is comma-separated. Fields may be quoted with {@code "}, doubling quotes inside them.
+ *
+ * <p>Imports stream the file in chunks: while one chunk is being applied, the following ones are parsed and
+ * validated in parallel, and at most a few chunks are held in memory at a time. Valid rows are applied in file
+ * order, so the last row for a code wins; invalid rows are skipped and written to a report. Given the journal, an
+ * import syncs it once every {@value #SYNC_CHUNKS} chunks and at the end rather than once per row, so the journal
+ * never buffers more than those rows, however long the file.
+ */
+public final class InventoryBatch {
+    static final int CHUNK_ROWS = 8192;
+    static final int SYNC_CHUNKS = 8;
+
+    /**
+     * Outcome of an import.
+     *
+     * @param added    Rows that added a new product.
+     * @param updated  Rows that overwrote the stock of an existing product.
+     * @param rejected Rows skipped because they were not valid; they are listed in the report.
+     */
+    public record ImportResult(long added, long updated, long rejected) {
+    }
+
+    /**
+     * A chunk of consecutive lines after parsing: the valid rows in order, plus the rejected lines.
+     */
+    private static final class Chunk {
+        final String[] codes;
+        final int[] stocks;
+        int count;
+        final List<String> rejections = new ArrayList<>();
+
+        Chunk(int capacity) {
+            codes = new String[capacity];
+            stocks = new int[capacity];
+        }
+    }
+
+    private InventoryBatch() {
+    }
+
+    /**
+     * Imports a CSV or TSV file, adding new products and overwriting the stock of existing ones.
+     * The caller makes the import durable, if the inventory is journaled.
+     *
+     * @param source    The file to import.
+     * @param inventory The inventory to load into.
+     * @param report    Where rejected rows are written, one per line with the line number and the reason.
+     *                  Not created when every row is valid.
+     * @return How many rows were added, updated and rejected.
+     * @throws IOException If the file cannot be read or the report cannot be written. Rows read before the
+     *                     error stay applied.
+     */
+    public static ImportResult importFile(Path source, Inventory inventory, Path report) throws IOException {
+        return importFile(source, inventory, report, null);
+    }
+
+    /**
+     * Imports a CSV or TSV file into a journaled inventory, adding new products and overwriting the stock of
+     * existing ones. The journal is synced every {@value #SYNC_CHUNKS} chunks and once more at the end, so the
+     * whole import is durable when this returns.
+     *
+     * @param source    The file to import.
+     * @param inventory The inventory to load into.
+     * @param report    Where rejected rows are written, one per line with the line number and the reason.
+     *                  Not created when every row is valid.
+     * @param journal   The journal of the inventory, or null to leave syncing to the caller.
+     * @return How many rows were added, updated and rejected.
+     * @throws IOException If the file cannot be read, the report cannot be written or the journal cannot be
+     *                     synced. Rows read before the error stay applied, and those synced stay durable.
+     */
+    public static ImportResult importFile(Path source, Inventory inventory, Path report, InventoryJournal journal)
+            throws IOException {
+        char separator = separatorFor(source);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int maxInFlight = pool.getParallelism() + 1;
+        ArrayDeque<CompletableFuture<Chunk>> inFlight = new ArrayDeque<>();
+        long[] counts = new long[3];
+        long applied = 0;
+        Writer rejects = null;
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            long lineNumber = 1;
+            while (true) {
+                String[] lines = new String[CHUNK_ROWS];
+                int n = 0;
+                String line;
+                while (n < CHUNK_ROWS && (line = reader.readLine()) != null) {
+                    lines[n++] = line;
+                }
+                if (n == 0) {
+                    break;
+                }
+                long firstLine = lineNumber;
+                int rows = n;
+                inFlight.add(CompletableFuture.supplyAsync(() -> parse(lines, rows, firstLine, separator), pool));
+                lineNumber += n;
+                if (inFlight.size() >= maxInFlight) {
+                    rejects = apply(inFlight.poll().join(), inventory, counts, rejects, report);
+                    syncIfDue(journal, ++applied);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                rejects = apply(inFlight.poll().join(), inventory, counts, rejects, report);
+                syncIfDue(journal, ++applied);
+            }
+            if (journal != null && applied % SYNC_CHUNKS != 0) {
+                journal.sync();
+            }
+        } finally {
+            if (rejects != null) {
+                rejects.close();
+            }
+        }
+        return new ImportResult(counts[0], counts[1], counts[2]);
+    }
+
+    private static void syncIfDue(InventoryJournal journal, long applied) throws IOException {
+        if (journal != null && applied % SYNC_CHUNKS == 0) {
+            journal.sync(); // Bounds the records the journal holds in memory, and starts a compaction when due
+        }
+    }
+
+    private static Writer apply(Chunk chunk, Inventory inventory, long[] counts, Writer rejects, Path report)
+            throws IOException {
+        for (int i = 0; i < chunk.count; i++) {
+            String code = chunk.codes[i];
+            if (inventory.stock(code) == Inventory.NOT_FOUND) {
+                counts[0]++;
+            } else {
+                counts[1]++;
+            }
+            inventory.put(code, chunk.stocks[i]);
+        }
+        if (!chunk.rejections.isEmpty()) {
+            if (rejects == null) {
+                rejects = Files.newBufferedWriter(report, StandardCharsets.UTF_8);
+            }
+            for (String rejection : chunk.rejections) {
+                rejects.write(rejection);
+                rejects.write('\n');
+            }
+            counts[2] += chunk.rejections.size();
+        }
+        return rejects;
+    }
+
+    private static Chunk parse(String[] lines, int n, long firstLine, char separator) {
+        Chunk chunk = new Chunk(n);
+        String[] fields = new String[2];
+        for (int i = 0; i < n; i++) {
+            String line = lines[i];
+            if (firstLine == 1 && i == 0 && !line.isEmpty() && line.charAt(0) == '\uFEFF') {
+                line = line.substring(1); // Byte order mark written by some spreadsheets
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+            String reason = parseRow(line, separator, fields);
+            if (reason == null) {
+                chunk.codes[chunk.count] = fields[0];
+                chunk.stocks[chunk.count] = Integer.parseInt(fields[1]);
+                chunk.count++;
+            } else if (firstLine != 1 || i != 0) {
+                chunk.rejections.add((firstLine + i) + ": " + reason + ": " + line);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Splits and validates one row.
+     *
+     * @return null if the row is valid, with the code and the stock text in fields; otherwise the reason it is not.
+     */
+    private static String parseRow(String line, char separator, String[] fields) {
+        int field = 0;
+        int pos = 0;
+        int length = line.length();
+        while (true) {
+            StringBuilder value = new StringBuilder();
+            int start = pos;
+            while (start < length && line.charAt(start) == ' ') {
+                start++;
+            }
+            if (start < length && line.charAt(start) == '"') {
+                pos = start + 1;
+                while (true) {
+                    if (pos >= length) {
+                        return "comillas sin cerrar";
+                    }
+                    char c = line.charAt(pos++);
+                    if (c == '"') {
+                        if (pos < length && line.charAt(pos) == '"') {
+                            value.append('"');
+                            pos++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        value.append(c);
+                    }
+                }
+                while (pos < length && line.charAt(pos) != separator) {
+                    if (line.charAt(pos++) != ' ') {
+                        return "texto después de las comillas";
+                    }
+                }
+            } else {
+                int end = line.indexOf(separator, start);
+                pos = end < 0 ? length : end;
+                value.append(line, start, pos);
+            }
+            if (field == 2) {
+                return "se esperaban 2 columnas";
+            }
+            fields[field++] = value.toString().strip();
+            if (pos >= length) {
+                break;
+            }
+            pos++; // Skip the separator
+        }
+        if (field < 2) {
+            return "se esperaban 2 columnas";
+        }
+        String code = fields[0];
+        if (code.isEmpty() || code.chars().anyMatch(Character::isWhitespace)) {
+            return "código de producto inválido";
+        }
+        if (!Inventory.isStorableCode(code)) {
+            return "código de producto demasiado largo";
+        }
+        String stock = fields[1];
+        if (stock.isEmpty() || stock.length() > 10 || !stock.chars().allMatch(c -> c >= '0' && c <= '9')
+                || Long.parseLong(stock) > Integer.MAX_VALUE) {
+            return "stock inválido";
+        }
+        return null;
+    }
+
+    /**
+     * Writes every product in code order, with a header row, in the format chosen by the file name.
+     * The listing is streamed through one buffer and written to a temporary file that replaces the target
+     * only when complete.
+     *
+     * @param inventory The inventory to list.
+     * @param target    The file to write.
+     * @return The number of products written.
+     * @throws IOException If the file cannot be written.
+     */
+    public static long exportFile(Inventory inventory, Path target) throws IOException {
+        char separator = separatorFor(target);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        long[] count = new long[1];
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write("codigo" + separator + "stock\n");
+            try {
+                inventory.forEachSorted((code, stock) -> {
+                    try {
+                        writeField(out, code, separator);
+                        out.write(separator);
+                        out.write(Integer.toString(stock));
+                        out.write('\n');
+                        count[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    private static void writeField(Writer out, String value, char separator) throws IOException {
+        if (value.indexOf(separator) < 0 && value.indexOf('"') < 0) {
+            out.write(value);
+        } else {
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+    }
+
+    static char separatorFor(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".tsv") || name.endsWith(".tab") ? '\t' : ',';
+    }
+}
@@ -0,0 +1,122 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InventoryBatchTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testImport_appliesValidRowsAndReportsRejected() throws IOException {
+        Path source = tempDir.resolve("proveedor.csv");
+        Files.writeString(source, """
+                codigo,stock
+                P101,10
+                P102,-3
+                "FRENO-\"\"A\"\"",7
+                P103
+                P104,abc
+                P101,12
+
+                P105, 99999999999
+                """);
+        Path report = tempDir.resolve("rechazos.txt");
+        Map<String, Integer> inventory = new TreeMap<>(Map.of("P100", 1, "P101", 5));
+
+        InventoryBatch.ImportResult result = InventoryBatch.importFile(source, Inventory.of(inventory), report);
+
+        assertEquals(Map.of("P100", 1, "P101", 12, "FRENO-\"A\"", 7), inventory,
+                "Only valid rows should be applied, the last one winning.");
+        assertEquals(1, result.added(), "The quoted code should be added.");
+        assertEquals(2, result.updated(), "Both P101 rows updated the stock.");
+        assertEquals(4, result.rejected(), "Every invalid row should be counted.");
+        List<String> rejected = Files.readAllLines(report);
+        assertEquals(4, rejected.size(), "Every invalid row should be reported.");
+        assertTrue(rejected.get(0).startsWith("3: "), "Rejections should give the line number.");
+    }
+
+    @Test
+    public void testImport_largeTsvAcrossChunks() throws IOException {
+        Path source = tempDir.resolve("proveedor.tsv");
+        int rows = InventoryBatch.CHUNK_ROWS * 5 + 17;
+        try (BufferedWriter out = Files.newBufferedWriter(source, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < rows; i++) {
+                out.write("P" + (i % (rows - 100)) + "\t" + i + "\n");
+            }
+        }
+        CompactInventory inventory = new CompactInventory();
+
+        InventoryBatch.ImportResult result = InventoryBatch.importFile(source, inventory, tempDir.resolve("r.txt"));
+
+        assertEquals(rows - 100, result.added(), "Each distinct code should be added once.");
+        assertEquals(100, result.updated(), "Repeated codes should update.");
+        assertEquals(rows - 1, inventory.stock("P99"), "The later row should win across chunks.");
+        assertFalse(Files.exists(tempDir.resolve("r.txt")), "No report should be written without rejections.");
+    }
+
+    @Test
+    public void testImport_isJournaledWithOneSync() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Path source = tempDir.resolve("proveedor.csv");
+        Files.writeString(source, "P1,1\nP2,2\nP3,3\n");
+        Map<String, Integer> inventory = new TreeMap<>();
+        Inventory view = Inventory.of(inventory);
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, view, Main::writeSnapshot)) {
+            InventoryBatch.importFile(source, view, tempDir.resolve("r.txt"));
+            journal.sync();
+        }
+
+        assertEquals(inventory, Main.loadInventory(snapshot), "The imported rows should survive a restart.");
+    }
+
+    @Test
+    public void testLongImport_syncsTheJournalAsItGoes() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Path source = tempDir.resolve("proveedor.csv");
+        int rows = InventoryBatch.CHUNK_ROWS * InventoryBatch.SYNC_CHUNKS + 1;
+        try (BufferedWriter out = Files.newBufferedWriter(source, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < rows; i++) {
+                out.write("P" + i + "," + i + "\n");
+            }
+        }
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        long[] loggedBeforeLastRow = {-1};
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, inventory, Main::writeSnapshot)) {
+            File log = InventoryJournal.logFileFor(snapshot);
+            inventory.addListener((code, oldStock, newStock) -> {
+                if (code.equals("P" + (rows - 1))) {
+                    loggedBeforeLastRow[0] = log.length();
+                }
+            });
+            InventoryBatch.importFile(source, inventory, tempDir.resolve("r.txt"), journal);
+
+            assertTrue(loggedBeforeLastRow[0] > 0, "Earlier chunks should be synced before the import ends.");
+            assertEquals(rows, Main.loadInventory(snapshot).size(), "The whole import should be durable.");
+        }
+    }
+
+    @Test
+    public void testExport_roundTrip() throws IOException {
+        Map<String, Integer> inventory = new TreeMap<>(Map.of("P1", 4, "FRENO,\"A\"", 2, "ÑANDÚ", 0));
+        Path target = tempDir.resolve("listado.csv");
+
+        assertEquals(3, InventoryBatch.exportFile(Inventory.of(inventory), target), "Every product should be written.");
+        assertEquals("codigo,stock", Files.readAllLines(target).get(0), "The listing should have a header.");
+
+        Map<String, Integer> imported = new TreeMap<>();
+        InventoryBatch.ImportResult result =
+                InventoryBatch.importFile(target, Inventory.of(imported), tempDir.resolve("r"));
+        assertEquals(inventory, imported, "Importing an export should give the same inventory.");
+        assertEquals(0, result.rejected(), "The header should not be rejected.");
+    }
+}
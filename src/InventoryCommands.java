@@ -0,0 +1,382 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Line-oriented command mode for scripts and other programs, with compact replies and no menus or prompts:
+ * <pre>
+ *   ADD P101 10     alta with an initial stock      OK | ERR existe
+ *   SET P101 30     cambio de stock                 OK | ERR no existe
+ *   ADJ P101 -2     entrada o venta de stock        OK 28 | ERR no existe | ERR stock insuficiente
+ *   DEL P101        baja                            OK | ERR no existe
+ *   GET P101        stock of one product            OK 28 | ERR no existe
+ *   LIST P1*        products by code prefix         one "code stock" line per product, then END
+ * </pre>
+ * Verbs are case-insensitive, {@code LIST} without a pattern lists everything, and blank lines and lines starting
+ * with {@code #} are ignored. Every other line gets exactly one reply, in order.
+ *
+ * <p>Input is read in blocks and all the complete lines of a block run as one batch. Lines are split in place in
+ * the read buffer and numbers are parsed straight from its bytes; only product codes become strings. The replies
+ * of a batch are collected in one buffer and written after a single journal sync, so a client can pipeline
+ * thousands of commands without waiting for each reply, and an {@code OK} to a change means it is durable.
+ *
+ * <p>Read replicas run the same commands read-only: {@code GET} and {@code LIST} work and changes are answered
+ * with {@code ERR solo lectura}.
+ */
+public final class InventoryCommands {
+    static final int BUFFER_SIZE = 1 << 16;
+    static final int MAX_LINE = 1 << 20;
+    private static final int MAX_TOKENS = 3;
+    private static final int BAD_NUMBER = Integer.MIN_VALUE;
+
+    private final Inventory inventory;
+    private final InventoryJournal journal;
+    private final boolean readOnly;
+    private final OutputStream out;
+    private byte[] replies = new byte[BUFFER_SIZE];
+    private int replyLength;
+    private boolean changed;
+    private long executed;
+    // Bounds of the tokens of the current line, as offsets into the read buffer
+    private final int[] starts = new int[MAX_TOKENS];
+    private final int[] ends = new int[MAX_TOKENS];
+
+    private InventoryCommands(Inventory inventory, InventoryJournal journal, boolean readOnly, OutputStream out) {
+        this.inventory = inventory;
+        this.journal = journal;
+        this.readOnly = readOnly;
+        this.out = out;
+    }
+
+    /**
+     * Executes commands until the input ends.
+     *
+     * @param inventory The inventory to work on.
+     * @param in        The commands, one per line, in UTF-8.
+     * @param out       Where the replies are written, in UTF-8. Flushed after every batch.
+     * @param journal   The journal to sync after each batch that changed the inventory, or null.
+     * @return The number of commands executed.
+     * @throws IOException If reading, writing or the journal sync fails. Replies not yet written are lost, but the
+     *                     changes stay applied in memory.
+     */
+    public static long run(Inventory inventory, InputStream in, OutputStream out, InventoryJournal journal)
+            throws IOException {
+        InventoryCommands commands = new InventoryCommands(inventory, journal, false, out);
+        commands.readLoop(in);
+        return commands.executed;
+    }
+
+    /**
+     * Executes queries until the input ends, refusing changes.
+     *
+     * @param inventory The inventory to query.
+     * @param in        The commands, one per line, in UTF-8.
+     * @param out       Where the replies are written, in UTF-8. Flushed after every batch.
+     * @return The number of commands executed.
+     * @throws IOException If reading or writing fails.
+     */
+    public static long runReadOnly(Inventory inventory, InputStream in, OutputStream out) throws IOException {
+        InventoryCommands commands = new InventoryCommands(inventory, null, true, out);
+        commands.readLoop(in);
+        return commands.executed;
+    }
+
+    private void readLoop(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        boolean skipping = false; // Discarding the rest of a line that was too long
+        int n;
+        while ((n = in.read(buffer, length, buffer.length - length)) >= 0) {
+            int searchFrom = length;
+            length += n;
+            int start = 0;
+            for (int i = searchFrom; i < length; i++) {
+                if (buffer[i] == '\n') {
+                    if (!skipping) {
+                        execute(buffer, start, i);
+                    }
+                    skipping = false;
+                    start = i + 1;
+                }
+            }
+            endBatch();
+            // Keep the incomplete last line for the next read
+            length -= start;
+            System.arraycopy(buffer, start, buffer, 0, length);
+            if (length == buffer.length) {
+                if (buffer.length < MAX_LINE) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                } else {
+                    if (!skipping) {
+                        executed++;
+                        append("ERR línea demasiado larga\n");
+                    }
+                    skipping = true;
+                    length = 0;
+                }
+            }
+        }
+        if (length > 0 && !skipping) {
+            execute(buffer, 0, length); // Last line without a newline
+        }
+        endBatch();
+    }
+
+    private void execute(byte[] line, int from, int to) throws IOException {
+        if (to > from && line[to - 1] == '\r') {
+            to--;
+        }
+        int tokens = tokenize(line, from, to);
+        if (tokens == 0 || line[starts[0]] == '#') {
+            return;
+        }
+        executed++;
+        long began = System.nanoTime();
+        InventoryMetrics.Operation operation = null;
+        if (isVerb(line, "GET") && tokens == 2) {
+            operation = InventoryMetrics.Operation.CONSULTA;
+            int stock = inventory.stock(code(line, 1));
+            if (stock == Inventory.NOT_FOUND) {
+                append("ERR no existe\n");
+            } else {
+                okWith(stock);
+            }
+        } else if (readOnly && (isVerb(line, "ADD") || isVerb(line, "SET") || isVerb(line, "ADJ")
+                || isVerb(line, "DEL"))) {
+            append("ERR solo lectura\n");
+        } else if (isVerb(line, "ADD") && tokens == 3) {
+            operation = InventoryMetrics.Operation.ALTA;
+            int stock = number(line, 2);
+            if (stock < 0) {
+                append("ERR stock inválido\n");
+            } else if (inventory.putIfAbsent(code(line, 1), stock)) {
+                changed = true;
+                append("OK\n");
+            } else {
+                append("ERR existe\n");
+            }
+        } else if (isVerb(line, "SET") && tokens == 3) {
+            operation = InventoryMetrics.Operation.CAMBIO;
+            int stock = number(line, 2);
+            if (stock < 0) {
+                append("ERR stock inválido\n");
+            } else if (inventory.replace(code(line, 1), stock)) {
+                changed = true;
+                append("OK\n");
+            } else {
+                append("ERR no existe\n");
+            }
+        } else if (isVerb(line, "ADJ") && tokens == 3) {
+            operation = InventoryMetrics.Operation.AJUSTE;
+            adjust(code(line, 1), number(line, 2));
+        } else if (isVerb(line, "DEL") && tokens == 2) {
+            operation = InventoryMetrics.Operation.BAJA;
+            if (inventory.remove(code(line, 1))) {
+                changed = true;
+                append("OK\n");
+            } else {
+                append("ERR no existe\n");
+            }
+        } else if (isVerb(line, "LIST") && tokens <= 2) {
+            list(tokens == 2 ? code(line, 1) : "*");
+        } else {
+            append("ERR comando inválido\n");
+        }
+        if (operation != null) {
+            InventoryMetrics.record(operation, began);
+        }
+    }
+
+    private void adjust(String code, int delta) {
+        if (delta == BAD_NUMBER) {
+            append("ERR cantidad inválida\n");
+            return;
+        }
+        try {
+            int stock = inventory.adjustStock(code, delta);
+            if (stock == Inventory.NOT_FOUND) {
+                append("ERR no existe\n");
+            } else if (stock == Inventory.INSUFFICIENT_STOCK) {
+                append("ERR stock insuficiente\n");
+            } else {
+                changed = true;
+                okWith(stock);
+            }
+        } catch (IllegalArgumentException e) {
+            append("ERR stock demasiado alto\n");
+        }
+    }
+
+    /**
+     * Lists the products matching a pattern, either a code or a prefix followed by {@code *}.
+     * The batch so far is ended first, so the listing can be streamed without holding it all in memory.
+     */
+    private void list(String pattern) throws IOException {
+        endBatch();
+        long began = System.nanoTime();
+        boolean prefix = pattern.endsWith("*");
+        String start = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+        IOException[] failure = new IOException[1];
+        inventory.forEachFrom(start.isEmpty() ? null : start, true, (code, stock) -> {
+            if (prefix ? !code.startsWith(start) : !code.equals(start)) {
+                return false;
+            }
+            append(code);
+            append(" ");
+            appendNumber(stock);
+            append("\n");
+            if (replyLength >= BUFFER_SIZE) {
+                try {
+                    writeReplies();
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return false;
+                }
+            }
+            return true;
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        append("END\n");
+        InventoryMetrics.record(InventoryMetrics.Operation.LISTADO, began);
+    }
+
+    /**
+     * Makes the changes of the batch durable, then writes its replies.
+     */
+    private void endBatch() throws IOException {
+        if (changed && journal != null) {
+            journal.sync();
+        }
+        changed = false;
+        if (replyLength > 0) {
+            writeReplies();
+        }
+    }
+
+    private void writeReplies() throws IOException {
+        out.write(replies, 0, replyLength);
+        out.flush();
+        replyLength = 0;
+    }
+
+    /**
+     * Splits a line on spaces and tabs, recording where each token starts and ends.
+     *
+     * @return The number of tokens, or {@code MAX_TOKENS + 1} if there are more than can be recorded.
+     */
+    private int tokenize(byte[] line, int from, int to) {
+        int count = 0;
+        int i = from;
+        while (true) {
+            while (i < to && (line[i] == ' ' || line[i] == '\t')) {
+                i++;
+            }
+            if (i == to) {
+                return count;
+            }
+            if (count == MAX_TOKENS) {
+                return MAX_TOKENS + 1;
+            }
+            starts[count] = i;
+            while (i < to && line[i] != ' ' && line[i] != '\t') {
+                i++;
+            }
+            ends[count++] = i;
+        }
+    }
+
+    /**
+     * Compares the first token with an upper-case ASCII verb, ignoring case.
+     */
+    private boolean isVerb(byte[] line, String verb) {
+        int start = starts[0];
+        if (ends[0] - start != verb.length()) {
+            return false;
+        }
+        for (int i = 0; i < verb.length(); i++) {
+            if ((line[start + i] & ~0x20) != verb.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String code(byte[] line, int token) {
+        return new String(line, starts[token], ends[token] - starts[token], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a token as a signed decimal int without making a string of it.
+     *
+     * @return The number, or {@code BAD_NUMBER} if the token is not a number that fits in an int.
+     */
+    private int number(byte[] line, int token) {
+        int i = starts[token];
+        int end = ends[token];
+        boolean negative = line[i] == '-';
+        if (negative || line[i] == '+') {
+            i++;
+        }
+        if (i == end || end - i > 10) {
+            return BAD_NUMBER;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return BAD_NUMBER;
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE || value <= BAD_NUMBER ? BAD_NUMBER : (int) value;
+    }
+
+    private void okWith(int stock) {
+        append("OK ");
+        appendNumber(stock);
+        append("\n");
+    }
+
+    private void appendNumber(int value) {
+        ensureReplySpace(11);
+        if (value == 0) {
+            replies[replyLength++] = '0';
+            return;
+        }
+        int digits = 0;
+        for (int v = value; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = replyLength + digits - 1; i >= replyLength; i--) {
+            replies[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        replyLength += digits;
+    }
+
+    private void append(String text) {
+        int n = text.length();
+        ensureReplySpace(n);
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // Not ASCII: encode the rest properly
+                byte[] encoded = text.substring(i).getBytes(StandardCharsets.UTF_8);
+                ensureReplySpace(encoded.length);
+                System.arraycopy(encoded, 0, replies, replyLength, encoded.length);
+                replyLength += encoded.length;
+                return;
+            }
+            replies[replyLength++] = (byte) c;
+        }
+    }
+
+    private void ensureReplySpace(int bytes) {
+        if (replyLength + bytes > replies.length) {
+            replies = Arrays.copyOf(replies, Math.max(replies.length * 2, replyLength + bytes));
+        }
+    }
+}
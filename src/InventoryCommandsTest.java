@@ -0,0 +1,117 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InventoryCommandsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testCommands_replyOnePerLine() throws IOException {
+        Map<String, Integer> inventory = new TreeMap<>(Map.of("P100", 5));
+
+        String replies = run(Inventory.of(inventory), """
+                ADD P101 10
+                add P101 3
+                SET P101 30
+                SET P999 1
+                ADJ P101 -2
+                ADJ P100 -6
+                # comment
+
+                GET P101
+                DEL P100
+                DEL P100
+                GET P100
+                ADD P102 -1
+                ADD P102 abc
+                BORRAR P101
+                GET
+                """);
+
+        assertEquals("""
+                OK
+                ERR existe
+                OK
+                ERR no existe
+                OK 28
+                ERR stock insuficiente
+                OK 28
+                OK
+                ERR no existe
+                ERR no existe
+                ERR stock inválido
+                ERR stock inválido
+                ERR comando inválido
+                ERR comando inválido
+                """, replies, "Each command should get one compact reply, in order.");
+        assertEquals(Map.of("P101", 28), inventory, "The changes should be applied.");
+    }
+
+    @Test
+    public void testList_byPrefix() throws IOException {
+        Map<String, Integer> inventory = new TreeMap<>(Map.of("P1", 1, "P10", 2, "P2", 3, "Q1", 4, "ÑANDÚ", 5));
+
+        String replies = run(Inventory.of(inventory), "LIST P1*\nLIST P2\nLIST Z*\nLIST\nGET ÑANDÚ\r\n");
+
+        assertEquals("P1 1\nP10 2\nEND\nP2 3\nEND\nEND\nP1 1\nP10 2\nP2 3\nQ1 4\nÑANDÚ 5\nEND\nOK 5\n", replies,
+                "Listings should end with END and follow the pattern.");
+    }
+
+    @Test
+    public void testPipelinedBatches_acrossBufferBoundaries() throws IOException {
+        StringBuilder input = new StringBuilder();
+        int count = InventoryCommands.BUFFER_SIZE / 4;
+        for (int i = 0; i < count; i++) {
+            input.append("ADD P").append(i).append(' ').append(i).append('\n');
+        }
+        input.append("GET P").append(count - 1); // Last line without a newline
+        CompactInventory inventory = new CompactInventory();
+
+        String replies = run(inventory, input.toString());
+
+        assertEquals(count, inventory.size(), "Commands split across reads should all run.");
+        assertTrue(replies.endsWith("OK\nOK " + (count - 1) + "\n"), "The last line should run too.");
+        assertEquals(count + 1, replies.lines().count(), "Every command should get a reply.");
+    }
+
+    @Test
+    public void testChanges_areJournaled() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Map<String, Integer> inventory = new TreeMap<>();
+        Inventory view = Inventory.of(inventory);
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, view, Main::writeSnapshot)) {
+            InventoryCommands.run(view, new ByteArrayInputStream("ADD P1 4\nADJ P1 3\nADD P2 1\nDEL P2\n"
+                    .getBytes(StandardCharsets.UTF_8)), OutputStream.nullOutputStream(), journal);
+        }
+
+        assertEquals(Map.of("P1", 7), Main.loadInventory(snapshot), "Confirmed changes should survive a restart.");
+    }
+
+    @Test
+    public void testReadOnly_refusesChanges() throws IOException {
+        Map<String, Integer> inventory = new TreeMap<>(Map.of("P1", 1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        InventoryCommands.runReadOnly(Inventory.of(inventory), new ByteArrayInputStream(
+                "ADD P2 1\nset P1 5\nADJ P1 1\nDEL P1\nGET P1\nLIST\n".getBytes(StandardCharsets.UTF_8)), out);
+
+        assertEquals("ERR solo lectura\nERR solo lectura\nERR solo lectura\nERR solo lectura\nOK 1\nP1 1\nEND\n",
+                out.toString(StandardCharsets.UTF_8), "A replica should answer queries only.");
+        assertEquals(Map.of("P1", 1), inventory);
+    }
+
+    private static String run(Inventory inventory, String input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InventoryCommands.run(inventory, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out, null);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+
+/**
+ * Delta snapshots: the products changed between two checkpoints, written instead of the whole inventory.
+ *
+ * <p>Layout:
+ * <pre>
+ *   magic "TRDL" (4) | version (1) | entry count (4)
+ *   entries, sorted by product code: codeLength (varint) | code (UTF-8) | stock + 1 (varint), 0 for a removal
+ *   crc32 of everything before it (4)
+ * </pre>
+ * Deltas sit next to the base snapshot as {@code existencias.dat.delta.N}, numbered in the order they were
+ * written. The inventory is the base snapshot with every delta applied in that order, then the journal.
+ * Like snapshots, deltas are written to a temporary file, forced to disk and atomically renamed.
+ */
+final class InventoryDelta {
+    static final byte[] MAGIC = {'T', 'R', 'D', 'L'};
+    static final byte VERSION = 1;
+    private static final String SUFFIX = ".delta.";
+
+    /**
+     * The decoded entries of one delta, in code order; removed products have stock {@link Inventory#NOT_FOUND}.
+     */
+    record Changes(String[] codes, int[] stocks) {
+        void applyTo(Inventory inventory) {
+            for (int i = 0; i < codes.length; i++) {
+                if (stocks[i] == Inventory.NOT_FOUND) {
+                    inventory.remove(codes[i]);
+                } else {
+                    inventory.put(codes[i], stocks[i]);
+                }
+            }
+        }
+    }
+
+    private InventoryDelta() {
+    }
+
+    static File fileFor(File snapshotFile, long sequence) {
+        return new File(snapshotFile.getPath() + SUFFIX + sequence);
+    }
+
+    /**
+     * Lists the deltas of a snapshot file.
+     *
+     * @param snapshotFile The base snapshot.
+     * @return Their sequence numbers, in the order they must be applied.
+     */
+    static long[] sequences(File snapshotFile) {
+        File dir = snapshotFile.getAbsoluteFile().getParentFile();
+        String prefix = snapshotFile.getName() + SUFFIX;
+        String[] names = dir == null ? null : dir.list((d, name) -> name.startsWith(prefix)
+                && name.length() > prefix.length()
+                && name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+        if (names == null) {
+            return new long[0];
+        }
+        long[] sequences = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            sequences[i] = Long.parseLong(names[i].substring(prefix.length()));
+        }
+        Arrays.sort(sequences);
+        return sequences;
+    }
+
+    /**
+     * Writes a delta.
+     *
+     * @param file    The delta file.
+     * @param changes The new stock of every changed product, {@link Inventory#NOT_FOUND} for removed ones.
+     * @return The size of the file written.
+     * @throws IOException If the file cannot be written.
+     */
+    static long write(File file, SortedMap<String, Integer> changes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffer.put(MAGIC).put(VERSION).putInt(changes.size());
+        for (Map.Entry<String, Integer> entry : changes.entrySet()) {
+            byte[] code = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < code.length + 10 + 4) {
+                ByteBuffer bigger = ByteBuffer.allocate(
+                        Math.max(buffer.capacity() * 2, buffer.position() + code.length + 14));
+                buffer.flip();
+                buffer = bigger.put(buffer);
+            }
+            CodeBytes.putVarint(buffer, code.length);
+            buffer.put(code);
+            CodeBytes.putVarint(buffer, entry.getValue() + 1);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        long size = buffer.remaining();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /**
+     * Reads and verifies a delta.
+     *
+     * @param file The delta file.
+     * @return Its entries.
+     * @throws InventorySnapshot.CorruptSnapshotException If the file is damaged.
+     * @throws IOException                                If the file cannot be read.
+     */
+    static Changes read(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < MAGIC.length + 1 + 4 + 4
+                || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC) || bytes[MAGIC.length] != VERSION) {
+            throw new InventorySnapshot.CorruptSnapshotException("Not an inventory delta: " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        if (data.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            throw new InventorySnapshot.CorruptSnapshotException("Checksum mismatch in " + file);
+        }
+        data.position(MAGIC.length + 1);
+        int count = data.getInt();
+        if (count < 0 || count > bytes.length) {
+            throw new InventorySnapshot.CorruptSnapshotException("Invalid entry count in " + file);
+        }
+        String[] codes = new String[count];
+        int[] stocks = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = CodeBytes.varintAt(data, data.position());
+                data.position(data.position() + CodeBytes.varintSize(length));
+                codes[i] = new String(bytes, data.position(), length, StandardCharsets.UTF_8);
+                data.position(data.position() + length);
+                int stock = CodeBytes.varintAt(data, data.position());
+                data.position(data.position() + CodeBytes.varintSize(stock));
+                stocks[i] = stock - 1;
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException e) {
+            throw new InventorySnapshot.CorruptSnapshotException("Truncated entries in " + file);
+        }
+        return new Changes(codes, stocks);
+    }
+
+    /**
+     * Applies every delta of a snapshot file to the inventory loaded from it. Only the reading, verifying and
+     * decoding of the deltas runs in parallel; applying them is sequential, one delta after another in the order
+     * they were written, on the calling thread. A later delta must overwrite the stock an earlier one set for the
+     * same code, and the inventory being recovered need not be thread-safe.
+     *
+     * @param snapshotFile The base snapshot.
+     * @param inventory    The inventory loaded from the base; updated in place.
+     * @return The number of entries applied.
+     * @throws IOException If a delta cannot be read or is damaged; none is applied then.
+     */
+    static int applyAll(File snapshotFile, Inventory inventory) throws IOException {
+        long[] sequences = sequences(snapshotFile);
+        List<CompletableFuture<Changes>> reads = new ArrayList<>();
+        for (long sequence : sequences) {
+            File file = fileFor(snapshotFile, sequence);
+            reads.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return read(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        List<Changes> deltas = new ArrayList<>();
+        try {
+            for (CompletableFuture<Changes> read : reads) {
+                deltas.add(read.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+        int applied = 0;
+        for (Changes delta : deltas) {
+            delta.applyTo(inventory);
+            applied += delta.codes().length;
+        }
+        return applied;
+    }
+}
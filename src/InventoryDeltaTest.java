@@ -0,0 +1,64 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InventoryDeltaTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testWriteAndRead_roundTripWithRemovals() throws IOException {
+        SortedMap<String, Integer> changes = new TreeMap<>();
+        changes.put("P101", 0);
+        changes.put("P102", Inventory.NOT_FOUND);
+        changes.put("FRENO-ÑANDÚ", Integer.MAX_VALUE);
+        File file = tempDir.resolve("existencias.dat.delta.1").toFile();
+
+        InventoryDelta.write(file, changes);
+        InventoryDelta.Changes read = InventoryDelta.read(file);
+
+        Map<String, Integer> back = new TreeMap<>();
+        for (int i = 0; i < read.codes().length; i++) {
+            back.put(read.codes()[i], read.stocks()[i]);
+        }
+        assertEquals(changes, back, "A delta should read back exactly what was written, removals included.");
+        assertFalse(new File(file.getPath() + ".tmp").exists(), "The temporary file should have been renamed.");
+    }
+
+    @Test
+    public void testRead_detectsFlippedByte() throws IOException {
+        File file = tempDir.resolve("existencias.dat.delta.1").toFile();
+        InventoryDelta.write(file, new TreeMap<>(Map.of("P201", 10, "P202", 20)));
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[bytes.length - 6] ^= 0x01;
+        Files.write(file.toPath(), bytes);
+
+        assertThrows(InventorySnapshot.CorruptSnapshotException.class, () -> InventoryDelta.read(file),
+                "A damaged delta should be rejected.");
+    }
+
+    @Test
+    public void testApplyAll_appliesDeltasInSequenceOrder() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        InventoryDelta.write(InventoryDelta.fileFor(snapshot, 2),
+                new TreeMap<>(Map.of("P301", 2, "P302", Inventory.NOT_FOUND)));
+        InventoryDelta.write(InventoryDelta.fileFor(snapshot, 10), new TreeMap<>(Map.of("P301", 10)));
+        InventoryDelta.write(InventoryDelta.fileFor(snapshot, 1), new TreeMap<>(Map.of("P301", 1, "P302", 1)));
+        Files.writeString(tempDir.resolve("existencias.dat.delta.3.tmp"), "incompleto");
+
+        Map<String, Integer> inventory = new TreeMap<>(Map.of("P303", 3));
+        InventoryDelta.applyAll(snapshot, Inventory.of(inventory));
+
+        assertEquals(Map.of("P301", 10, "P303", 3), inventory,
+                "Deltas should be applied by sequence number, ignoring temporary files.");
+    }
+}
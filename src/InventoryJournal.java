@@ -0,0 +1,743 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log for inventory changes.
+ * Every change is appended as a small fixed-format record and made durable with a group-commit fsync,
+ * so a crash loses nothing that was confirmed to the user and a save costs time proportional to the change.
+ * When the {@link SnapshotPolicy} says so (log size, number of changes or time since the last snapshot) the log is
+ * rotated and the inventory is compacted into a new snapshot on a background thread, while changes go on.
+ * If the disk cannot keep up and the new log segment outgrows the policy's backpressure limit before the snapshot
+ * is written, syncs wait for it, so the log cannot grow without bound.
+ *
+ * <p>With {@link SnapshotPolicy#maxDeltas()} set, most checkpoints write only the products changed in the rotated
+ * segment, as an {@link InventoryDelta} next to the snapshot, and every so often a full snapshot folds the deltas
+ * back in. A checkpoint then costs time proportional to the changes rather than to the catalog, and recovery
+ * reads the base snapshot, the deltas (read in parallel, applied in order) and the short log tail.
+ *
+ * <p>Record layout: {@code op(1) | codeLength(2) | code (UTF-8) | stock(4) | crc32(4)}.
+ * The CRC covers the preceding bytes of the record, so a torn write at the tail is detected on replay.
+ *
+ * <p>The journal is registered as a {@link Inventory.ChangeListener}, so it is safe to share between sessions
+ * changing the inventory concurrently.
+ */
+public class InventoryJournal implements Inventory.ChangeListener, Closeable {
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int RECORD_OVERHEAD = 1 + 2 + 4 + 4;
+    private static final long DEFAULT_COMPACT_THRESHOLD = 4L * 1024 * 1024;
+
+    /**
+     * Writes a full snapshot of the inventory to a file, failing loudly so compaction never drops log segments
+     * that were not folded into a snapshot. The file must be replaced atomically.
+     */
+    public interface SnapshotWriter {
+        void write(File file, Inventory inventory) throws IOException;
+    }
+
+    /**
+     * When the log is folded into a new snapshot. The conditions are checked as changes are synced, so an idle
+     * inventory is not snapshotted again; its changes are already durable in the log.
+     *
+     * @param maxLogBytes       Snapshot once the current log segment reaches this size.
+     * @param maxChanges        Snapshot once this many changes were logged since the last snapshot; 0 for no limit.
+     * @param interval          Snapshot at the first sync this long after the last snapshot; null for no limit.
+     * @param backpressureBytes While a snapshot is being written, syncs wait for it once the new log segment
+     *                          reaches this size.
+     * @param maxDeltas         Checkpoints written as deltas between two full snapshots; 0 to always write full
+     *                          snapshots.
+     */
+    public record SnapshotPolicy(long maxLogBytes, long maxChanges, Duration interval, long backpressureBytes,
+                                 int maxDeltas) {
+        /**
+         * Snapshots every 4 MB of log, waiting for a slow snapshot at four times that.
+         */
+        public static final SnapshotPolicy DEFAULT = bySize(DEFAULT_COMPACT_THRESHOLD);
+
+        /**
+         * @param maxLogBytes The log size that triggers a snapshot.
+         * @return A policy triggered by log size only, with backpressure at four times that size.
+         */
+        public static SnapshotPolicy bySize(long maxLogBytes) {
+            return new SnapshotPolicy(maxLogBytes, 0, null, 4 * maxLogBytes);
+        }
+
+        /**
+         * A policy that always writes full snapshots.
+         */
+        public SnapshotPolicy(long maxLogBytes, long maxChanges, Duration interval, long backpressureBytes) {
+            this(maxLogBytes, maxChanges, interval, backpressureBytes, 0);
+        }
+
+        /**
+         * @param changes The number of changes that triggers a snapshot; 0 for no limit.
+         * @return This policy, also triggered by that many changes.
+         */
+        public SnapshotPolicy withMaxChanges(long changes) {
+            return new SnapshotPolicy(maxLogBytes, changes, interval, backpressureBytes, maxDeltas);
+        }
+
+        /**
+         * @param every The time after which a sync triggers a snapshot; null for no limit.
+         * @return This policy, also triggered by time.
+         */
+        public SnapshotPolicy withInterval(Duration every) {
+            return new SnapshotPolicy(maxLogBytes, maxChanges, every, backpressureBytes, maxDeltas);
+        }
+
+        /**
+         * @param deltas The checkpoints written as deltas between two full snapshots; 0 for none.
+         * @return This policy, writing deltas.
+         */
+        public SnapshotPolicy withMaxDeltas(int deltas) {
+            return new SnapshotPolicy(maxLogBytes, maxChanges, interval, backpressureBytes, deltas);
+        }
+    }
+
+    private final File snapshotFile;
+    private final File logFile;
+    private final File oldLogFile;
+    private final Inventory inventory;
+    private final SnapshotWriter snapshotWriter;
+    private final SnapshotPolicy policy;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "inventory-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long segmentBytes;
+    private long segmentRecords;
+    private long rotatedNanos = System.nanoTime();
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private boolean compacting;
+    private Future<?> compaction;
+    private IOException failure;
+    // Set when records could not be written; every later sync reports it, as nothing after it is durable
+    private IOException broken;
+    // Deltas on disk since the last full snapshot, and the sequence number of the next one
+    private int deltaCount;
+    private long nextDelta;
+
+    /**
+     * Opens the journal that belongs to a snapshot file, appending to any existing log, and registers it as a
+     * listener of the inventory. The inventory must already contain the snapshot plus the replayed log
+     * (see {@link #replay}).
+     *
+     * @param snapshotFile   The snapshot file the log applies to.
+     * @param inventory      The live inventory, copied when a compaction starts.
+     * @param snapshotWriter Writes compacted snapshots.
+     * @return The journal.
+     * @throws IOException If the log file cannot be opened.
+     */
+    public static InventoryJournal open(File snapshotFile, Inventory inventory, SnapshotWriter snapshotWriter)
+            throws IOException {
+        return open(snapshotFile, inventory, snapshotWriter, SnapshotPolicy.DEFAULT);
+    }
+
+    static InventoryJournal open(File snapshotFile, Inventory inventory, SnapshotWriter snapshotWriter,
+                                 long compactThreshold) throws IOException {
+        return open(snapshotFile, inventory, snapshotWriter, SnapshotPolicy.bySize(compactThreshold));
+    }
+
+    /**
+     * Opens the journal with a given snapshot policy.
+     *
+     * @param snapshotFile   The snapshot file the log applies to.
+     * @param inventory      The live inventory, copied when a compaction starts.
+     * @param snapshotWriter Writes compacted snapshots.
+     * @param policy         When to write a new snapshot.
+     * @return The journal.
+     * @throws IOException If the log file cannot be opened.
+     * @see #open(File, Inventory, SnapshotWriter)
+     */
+    public static InventoryJournal open(File snapshotFile, Inventory inventory, SnapshotWriter snapshotWriter,
+                                        SnapshotPolicy policy) throws IOException {
+        InventoryJournal journal = new InventoryJournal(snapshotFile, inventory, snapshotWriter, policy);
+        // Registered once fully constructed, so no change can reach a half-built journal
+        inventory.addListener(journal);
+        return journal;
+    }
+
+    private InventoryJournal(File snapshotFile, Inventory inventory, SnapshotWriter snapshotWriter,
+                             SnapshotPolicy policy) throws IOException {
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFileFor(snapshotFile);
+        this.oldLogFile = oldLogFileFor(snapshotFile);
+        this.inventory = inventory;
+        this.snapshotWriter = snapshotWriter;
+        this.policy = policy;
+        this.channel = openSegment(logFile);
+        this.segmentBytes = channel.size();
+        long[] deltas = InventoryDelta.sequences(snapshotFile);
+        this.deltaCount = deltas.length;
+        this.nextDelta = deltas.length == 0 ? 1 : deltas[deltas.length - 1] + 1;
+    }
+
+    /**
+     * @return The snapshot file the log applies to.
+     */
+    File snapshotFile() {
+        return snapshotFile;
+    }
+
+    static File logFileFor(File snapshotFile) {
+        return new File(snapshotFile.getPath() + ".log");
+    }
+
+    static File oldLogFileFor(File snapshotFile) {
+        return new File(snapshotFile.getPath() + ".log.old");
+    }
+
+    /**
+     * Records a change applied to the inventory. The record is only buffered; {@link #sync()} makes it durable.
+     * Inventories call this right after applying the change, while it is still exclusive for that product code,
+     * so the log keeps the order in which changes to one code were applied.
+     */
+    @Override
+    public void onChange(String code, int oldStock, int newStock) {
+        if (newStock == Inventory.NOT_FOUND) {
+            append(OP_REMOVE, code, 0);
+        } else {
+            append(OP_PUT, code, newStock);
+        }
+    }
+
+    private void append(byte op, String code, int stock) {
+        byte[] codeBytes = code.getBytes(StandardCharsets.UTF_8);
+        int recordLength = RECORD_OVERHEAD + codeBytes.length;
+        synchronized (lock) {
+            if (codeBytes.length > Inventory.MAX_CODE_BYTES) {
+                // Inventories reject such codes before applying them (Inventory#checkCode), and a listener cannot
+                // undo a change; should one get through anyway, the next sync reports it
+                failure = new IOException("Product code too long for the journal: " + codeBytes.length + " bytes");
+                return;
+            }
+            if (pending.remaining() < recordLength) {
+                pending = grow(pending, recordLength);
+            }
+            int start = pending.position();
+            pending.put(op).putShort((short) codeBytes.length).put(codeBytes).putInt(stock);
+            crc.reset();
+            crc.update(pending.array(), start, pending.position() - start);
+            pending.putInt((int) crc.getValue());
+            segmentBytes += recordLength;
+            segmentRecords++;
+            appendedSeq++;
+        }
+    }
+
+    /**
+     * Waits until every change recorded so far is on disk. Callers sync once per operation before confirming it
+     * to the user; concurrent callers share one fsync (group commit). Starts a compaction when the policy says so,
+     * or waits for the running one when the log has outgrown it.
+     *
+     * @throws IOException If the records cannot be written.
+     */
+    public void sync() throws IOException {
+        compactIfDue();
+        awaitDurable(recordedSeq());
+    }
+
+    /**
+     * @return The sequence number of the last record appended, after reporting a failure recorded by append.
+     */
+    private long recordedSeq() throws IOException {
+        synchronized (lock) {
+            checkNotBrokenLocked();
+            if (failure != null) {
+                IOException e = failure;
+                failure = null;
+                throw e;
+            }
+            return appendedSeq;
+        }
+    }
+
+    /**
+     * Rotates the log and compacts it in the background once the policy says so. Every change in the
+     * rotated segment must already be applied to the inventory, because the segment is deleted once a copy of
+     * the inventory has been written as the new snapshot.
+     */
+    private void compactIfDue() throws IOException {
+        boolean compact;
+        Future<?> slowSnapshot = null;
+        synchronized (lock) {
+            compact = !compacting && isDueLocked();
+            if (!compact && compacting && segmentBytes >= policy.backpressureBytes()) {
+                slowSnapshot = compaction;
+            }
+            if (compact) {
+                // Claimed before rotating: the rotation may wait for a flush, which releases the lock
+                compacting = true;
+                try {
+                    rotateLocked();
+                } catch (IOException | RuntimeException e) {
+                    compacting = false;
+                    throw e;
+                }
+            }
+        }
+        if (compact) {
+            startCompaction();
+        } else if (slowSnapshot != null) {
+            awaitCompaction(slowSnapshot);
+        }
+    }
+
+    private boolean isDueLocked() {
+        return segmentBytes >= policy.maxLogBytes()
+                || policy.maxChanges() > 0 && segmentRecords >= policy.maxChanges()
+                || policy.interval() != null && segmentRecords > 0
+                && System.nanoTime() - rotatedNanos >= policy.interval().toNanos();
+    }
+
+    /**
+     * Holds a sync back until the running snapshot is written, because the log is growing faster than the disk
+     * can fold it into snapshots.
+     */
+    private static void awaitCompaction(Future<?> running) throws InterruptedIOException {
+        long began = System.nanoTime();
+        try {
+            running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a snapshot");
+        } catch (ExecutionException | CancellationException e) {
+            // Reported by the compaction task; its log segment stays for the next replay
+        }
+        InventoryMetrics.record(InventoryMetrics.Operation.ESPERA, began);
+    }
+
+    /**
+     * Blocks until the record with the given sequence number is on disk.
+     * The first waiter becomes the leader and fsyncs every record appended so far in one go;
+     * the others wait for that group commit instead of issuing their own.
+     */
+    private void awaitDurable(long seq) throws IOException {
+        ByteBuffer batch;
+        long batchSeq;
+        FileChannel target;
+        synchronized (lock) {
+            while (durableSeq < seq && flushing) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            checkNotBrokenLocked();
+            if (durableSeq >= seq) {
+                return;
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            spare = null;
+            batchSeq = appendedSeq;
+            target = channel;
+        }
+        IOException error = null;
+        try {
+            writeFully(target, batch);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (lock) {
+            flushing = false;
+            if (error == null) {
+                batch.clear();
+                spare = batch;
+                durableSeq = batchSeq;
+            } else {
+                // Keep the failed records ahead of those appended meanwhile, so nothing is silently skipped
+                ByteBuffer appended = pending;
+                appended.flip();
+                if (batch.remaining() < appended.remaining()) {
+                    batch = grow(batch, appended.remaining());
+                }
+                batch.put(appended);
+                appended.clear();
+                pending = batch;
+                spare = appended;
+                broken = error;
+            }
+            lock.notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Flushes and fsyncs whatever is pending. Must be called holding the lock with no leader flushing.
+     */
+    private void flushLocked() throws IOException {
+        checkNotBrokenLocked();
+        try {
+            writeFully(channel, pending);
+        } catch (IOException e) {
+            broken = e;
+            throw e;
+        }
+        pending.clear();
+        durableSeq = appendedSeq;
+    }
+
+    /**
+     * Fails once records could not be written: later records would land after a gap, so no sync may report them
+     * durable. Must be called holding the lock.
+     */
+    private void checkNotBrokenLocked() throws IOException {
+        if (broken != null) {
+            throw new IOException("The journal could not be written; changes since then are not durable", broken);
+        }
+    }
+
+    private void awaitNoFlushLocked() throws InterruptedIOException {
+        while (flushing) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the journal");
+            }
+        }
+    }
+
+    /**
+     * Moves the current log segment aside and starts a new one. Must be called holding the lock.
+     */
+    private void rotateLocked() throws IOException {
+        awaitNoFlushLocked();
+        flushLocked();
+        channel.close();
+        try {
+            if (oldLogFile.exists()) {
+                // A previous compaction failed; keep its records first so replay order is preserved
+                appendFile(logFile, oldLogFile);
+            } else {
+                Files.move(logFile.toPath(), oldLogFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            segmentBytes = 0;
+            segmentRecords = 0;
+            rotatedNanos = System.nanoTime();
+        } finally {
+            // If the segment could not be moved aside, keep appending to it
+            channel = openSegment(logFile);
+        }
+    }
+
+    /**
+     * Compacts the rotated segment into a new snapshot, or into a delta, in the background.
+     * For a full snapshot the inventory is copied after the rotation, so the copy already holds every change in the
+     * rotated segment; changes made while copying are also in the new segment and replaying them again is harmless,
+     * because records carry absolute values. Inventories that can be copied while they change are copied on the
+     * background thread too, so the sync that started the compaction returns at once. That copy is fuzzy, taken
+     * while writers run, and is only correct because the new segment, replayed on top of the snapshot, holds
+     * every change made from the rotation on with its absolute value. A delta is read from the rotated segment
+     * alone and needs no copy.
+     */
+    private void startCompaction() {
+        boolean full;
+        synchronized (lock) {
+            full = policy.maxDeltas() <= 0 || deltaCount >= policy.maxDeltas();
+        }
+        Inventory copy = !full || inventory.copiesConcurrently() ? null : inventory.copy();
+        Future<?> task = compactor.submit(() -> {
+            try {
+                if (full) {
+                    writeFull(copy != null ? copy : inventory.copy());
+                } else {
+                    writeDelta();
+                }
+            } catch (IOException e) {
+                System.err.println("Error al compactar el registro de cambios: " + e.getMessage());
+            } finally {
+                synchronized (lock) {
+                    compacting = false;
+                }
+            }
+        });
+        synchronized (lock) {
+            compaction = task;
+        }
+    }
+
+    /**
+     * Writes the full snapshot and lets the inventory move to it, then drops the deltas it supersedes, then the
+     * rotated segment. Until the segment is gone, a crash leaves stale deltas that replay puts over the newer
+     * snapshot, but the segment and the current log that are replayed after them hold every later change and put
+     * it back.
+     */
+    private void writeFull(Inventory copy) throws IOException {
+        snapshotWriter.write(snapshotFile, copy);
+        inventory.snapshotWritten(snapshotFile, copy);
+        long[] deltas = InventoryDelta.sequences(snapshotFile);
+        for (long sequence : deltas) {
+            Files.deleteIfExists(InventoryDelta.fileFor(snapshotFile, sequence).toPath());
+        }
+        synchronized (lock) {
+            deltaCount = 0;
+        }
+        Files.deleteIfExists(oldLogFile.toPath());
+    }
+
+    /**
+     * Writes the last value of every product changed in the rotated segment as a new delta, then drops the
+     * segment. A crash in between replays the segment again after the delta, which is harmless.
+     */
+    private void writeDelta() throws IOException {
+        long began = System.nanoTime();
+        SortedMap<String, Integer> changes = new TreeMap<>();
+        readSegment(oldLogFile, changes::put);
+        long sequence;
+        synchronized (lock) {
+            sequence = nextDelta;
+        }
+        long bytes;
+        try {
+            bytes = InventoryDelta.write(InventoryDelta.fileFor(snapshotFile, sequence), changes);
+        } catch (IOException e) {
+            InventoryMetrics.failed(InventoryMetrics.Failure.SNAPSHOT);
+            throw e;
+        }
+        InventoryMetrics.deltaWritten(bytes);
+        InventoryMetrics.record(InventoryMetrics.Operation.DELTA, began);
+        synchronized (lock) {
+            nextDelta = sequence + 1;
+            deltaCount++;
+        }
+        Files.deleteIfExists(oldLogFile.toPath());
+    }
+
+    private static void appendFile(File from, File to) throws IOException {
+        try (FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(false);
+        }
+        Files.delete(from.toPath());
+    }
+
+    /**
+     * Makes every appended record durable, waits for a running compaction and closes the log.
+     * Nothing else is written on exit: the snapshot plus the log tail already describe the inventory.
+     *
+     * @throws IOException If the pending records cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        Future<?> running;
+        synchronized (lock) {
+            running = compaction;
+        }
+        if (running != null) {
+            try {
+                running.get();
+            } catch (Exception e) {
+                // Already reported by the compaction task; its log segment stays for the next replay
+            }
+        }
+        try {
+            synchronized (lock) {
+                awaitNoFlushLocked();
+                try {
+                    flushLocked();
+                } finally {
+                    channel.close();
+                }
+            }
+        } finally {
+            compactor.shutdown();
+        }
+    }
+
+    /**
+     * Replays the deltas and log segments that belong to a snapshot file on top of an already loaded inventory.
+     * A torn or corrupt record at the tail of a segment ends the replay of that segment and is cut off,
+     * so new records are never appended after garbage.
+     *
+     * @param snapshotFile The snapshot file the log applies to.
+     * @param inventory    The inventory loaded from the snapshot; updated in place.
+     * @return The number of records applied.
+     * @throws IOException If a log segment cannot be read.
+     */
+    public static int replay(File snapshotFile, Map<String, Integer> inventory) throws IOException {
+        return replay(snapshotFile, Inventory.of(inventory));
+    }
+
+    /**
+     * Replays the log segments that belong to a snapshot file on top of an already loaded inventory.
+     *
+     * @param snapshotFile The snapshot file the log applies to.
+     * @param inventory    The inventory loaded from the snapshot; updated in place.
+     * @return The number of records applied.
+     * @throws IOException If a log segment cannot be read.
+     * @see #replay(File, Map)
+     */
+    public static int replay(File snapshotFile, Inventory inventory) throws IOException {
+        return InventoryDelta.applyAll(snapshotFile, inventory)
+                + replaySegment(oldLogFileFor(snapshotFile), inventory)
+                + replaySegment(logFileFor(snapshotFile), inventory);
+    }
+
+    /**
+     * Lists every product code changed since a snapshot file was written: those in its deltas, then those in its
+     * log segments. A code may be listed more than once.
+     *
+     * @param snapshotFile The snapshot file.
+     * @param action       Receives each code.
+     * @throws IOException If a delta or log segment cannot be read.
+     */
+    public static void forEachLoggedCode(File snapshotFile, Consumer<String> action) throws IOException {
+        for (long sequence : InventoryDelta.sequences(snapshotFile)) {
+            for (String code : InventoryDelta.read(InventoryDelta.fileFor(snapshotFile, sequence)).codes()) {
+                action.accept(code);
+            }
+        }
+        readSegment(oldLogFileFor(snapshotFile), (code, stock) -> action.accept(code));
+        readSegment(logFileFor(snapshotFile), (code, stock) -> action.accept(code));
+    }
+
+    private static int replaySegment(File segment, Inventory inventory) throws IOException {
+        return readSegment(segment, (code, stock) -> {
+            if (stock == Inventory.NOT_FOUND) {
+                inventory.remove(code);
+            } else {
+                inventory.put(code, stock);
+            }
+        });
+    }
+
+    /**
+     * Reads the records of a log segment in order, cutting off a torn or corrupt tail.
+     *
+     * @param segment The segment file.
+     * @param action  Receives each record: the product code and its new stock, {@link Inventory#NOT_FOUND} for a
+     *                removal.
+     * @return The number of records read.
+     */
+    private static int readSegment(File segment, Inventory.StockConsumer action) throws IOException {
+        if (!segment.exists()) {
+            return 0;
+        }
+        int applied = 0;
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            byte[] header = new byte[3];
+            while (true) {
+                try {
+                    in.readFully(header);
+                    int codeLength = ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+                    byte[] codeBytes = new byte[codeLength];
+                    in.readFully(codeBytes);
+                    int stock = in.readInt();
+                    int storedCrc = in.readInt();
+                    crc.reset();
+                    crc.update(header);
+                    crc.update(codeBytes);
+                    crc.update(stock >>> 24);
+                    crc.update(stock >>> 16);
+                    crc.update(stock >>> 8);
+                    crc.update(stock);
+                    if ((int) crc.getValue() != storedCrc) {
+                        break;
+                    }
+                    String code = new String(codeBytes, StandardCharsets.UTF_8);
+                    if (header[0] == OP_PUT) {
+                        action.accept(code, stock);
+                    } else if (header[0] == OP_REMOVE) {
+                        action.accept(code, Inventory.NOT_FOUND);
+                    } else {
+                        break;
+                    }
+                    validLength += RECORD_OVERHEAD + codeLength;
+                    applied++;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        if (validLength < segment.length()) {
+            System.err.println("Registro de cambios incompleto, se descartan " + (segment.length() - validLength)
+                    + " bytes.");
+            InventoryMetrics.failed(InventoryMetrics.Failure.REGISTRO_TRUNCADO);
+            try (FileChannel out = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+                out.truncate(validLength);
+            }
+        }
+        return applied;
+    }
+
+    private static FileChannel openSegment(File segment) throws IOException {
+        FileChannel ch = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ch.position(ch.size());
+        return ch;
+    }
+
+    /**
+     * Writes and fsyncs the buffered records. On failure the file is cut back to where the write started, so no
+     * torn record is left for later records to be appended after, and the buffer is left as it was.
+     */
+    private static void writeFully(FileChannel ch, ByteBuffer buffer) throws IOException {
+        long began = System.nanoTime();
+        long start = ch.position();
+        buffer.flip();
+        int bytes = buffer.remaining();
+        try {
+            while (buffer.hasRemaining()) {
+                ch.write(buffer);
+            }
+            ch.force(false);
+        } catch (IOException e) {
+            InventoryMetrics.failed(InventoryMetrics.Failure.REGISTRO);
+            try {
+                ch.truncate(start);
+                ch.position(start);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            buffer.position(buffer.limit()).limit(buffer.capacity());
+            throw e;
+        }
+        InventoryMetrics.journalWritten(bytes);
+        InventoryMetrics.record(InventoryMetrics.Operation.SYNC, began);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,228 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InventoryJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testReplay_appliesPutsAndRemovesInOrder() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Inventory inventory = Inventory.of(new TreeMap<>());
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, inventory, Main::writeSnapshot)) {
+            inventory.put("P101", 10);
+            inventory.put("P102", 5);
+            inventory.put("P101", 30);
+            inventory.remove("P102");
+            journal.sync();
+        }
+
+        Map<String, Integer> replayed = new TreeMap<>();
+        int applied = InventoryJournal.replay(snapshot, replayed);
+        assertEquals(4, applied, "Every change should be logged once and replayed.");
+        assertEquals(Map.of("P101", 30), replayed, "Replay should end with the last value of each product.");
+    }
+
+    @Test
+    public void testReplay_tornTailIsDiscarded() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Inventory inventory = Inventory.of(new TreeMap<>());
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, inventory, Main::writeSnapshot)) {
+            inventory.put("P201", 15);
+            journal.sync();
+        }
+        Path log = InventoryJournal.logFileFor(snapshot).toPath();
+        long goodLength = Files.size(log);
+        Files.write(log, new byte[]{1, 0, 4, 'P', '2'}, StandardOpenOption.APPEND); // Half-written record
+
+        Map<String, Integer> replayed = new TreeMap<>();
+        InventoryJournal.replay(snapshot, replayed);
+        assertEquals(Map.of("P201", 15), replayed, "Complete records before the torn one should be applied.");
+        assertEquals(goodLength, Files.size(log), "The torn record should be cut off the log.");
+    }
+
+    @Test
+    public void testCompaction_writesSnapshotAndKeepsLogSmall() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Map<String, Integer> inventory = new TreeMap<>();
+        Inventory view = Inventory.of(inventory);
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, view, Main::writeSnapshot, 64)) {
+            for (int i = 0; i < 100; i++) {
+                view.put("P" + (300 + i % 10), i);
+                journal.sync();
+            }
+        }
+
+        assertTrue(InventorySnapshot.current(snapshot).exists(), "Compaction should have written a snapshot.");
+        // Each record takes 15 bytes, so a log without every record written has been rotated at least once
+        assertTrue(InventoryJournal.logFileFor(snapshot).length() < 100 * 15, "The log should have been rotated.");
+        assertEquals(inventory, Main.loadInventory(snapshot), "Snapshot plus log tail should rebuild the inventory.");
+    }
+
+    @Test
+    public void testTooLongCode_isRejectedBeforeItChangesTheInventory() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        String tooLong = "P".repeat(Inventory.MAX_CODE_BYTES + 1);
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, inventory, Main::writeSnapshot)) {
+            assertThrows(IllegalArgumentException.class, () -> inventory.put(tooLong, 1));
+            assertThrows(IllegalArgumentException.class, () -> inventory.putIfAbsent(tooLong, 1));
+            inventory.put("P1", 1);
+            journal.sync(); // No deferred failure: nothing unloggable was applied
+        }
+
+        assertFalse(inventory.contains(tooLong), "A code the journal cannot record should not be applied.");
+        assertEquals(Map.of("P1", 1), Main.loadInventory(snapshot));
+    }
+
+    @Test
+    public void testFailedWrite_leavesTheLogIntactAndFailsEveryLaterSync() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Inventory inventory = Inventory.of(new TreeMap<>());
+        InventoryJournal journal = InventoryJournal.open(snapshot, inventory, Main::writeSnapshot);
+        inventory.put("P1", 1);
+        journal.sync();
+        long durableLength = InventoryJournal.logFileFor(snapshot).length();
+
+        // An interrupted write closes the log channel: the write fails like a failing disk would
+        inventory.put("P2", 2);
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(IOException.class, journal::sync);
+        } finally {
+            Thread.interrupted();
+        }
+        inventory.put("P3", 3);
+        assertThrows(IOException.class, journal::sync, "No later sync may report changes durable.");
+        assertThrows(IOException.class, journal::close);
+
+        assertEquals(durableLength, InventoryJournal.logFileFor(snapshot).length(),
+                "The failed write should leave nothing after the durable records.");
+        assertEquals(Map.of("P1", 1), Main.loadInventory(snapshot), "Only the durable change should be replayed.");
+    }
+
+    @Test
+    public void testPolicy_snapshotsByChangeCountAndInterval() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Map<String, Integer> inventory = new TreeMap<>();
+        Inventory view = Inventory.of(inventory);
+        InventoryJournal.SnapshotPolicy policy = InventoryJournal.SnapshotPolicy.DEFAULT.withMaxChanges(5);
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, view, Main::writeSnapshot, policy)) {
+            for (int i = 0; i < 6; i++) {
+                view.put("P" + i, i);
+                journal.sync();
+            }
+        }
+        assertEquals(Map.of("P0", 0, "P1", 1, "P2", 2, "P3", 3, "P4", 4), InventorySnapshot.read(snapshot),
+                "The fifth change should have triggered a snapshot.");
+
+        policy = InventoryJournal.SnapshotPolicy.DEFAULT.withInterval(Duration.ZERO);
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, view, Main::writeSnapshot, policy)) {
+            view.put("P9", 9);
+            journal.sync();
+            journal.sync();
+        }
+        assertEquals(inventory, InventorySnapshot.read(snapshot), "A due interval should trigger a snapshot.");
+    }
+
+    @Test
+    public void testBackpressure_waitsForSlowSnapshot() throws Exception {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InventoryJournal.SnapshotWriter slowDisk = (file, copy) -> {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            Main.writeSnapshot(file, copy);
+        };
+        InventoryJournal.SnapshotPolicy policy = new InventoryJournal.SnapshotPolicy(64, 0, null, 256);
+        try (InventoryJournal journal = InventoryJournal.open(snapshot, inventory, slowDisk, policy)) {
+            for (int i = 0; i < 10; i++) {
+                inventory.put("P" + i, i); // Past 64 bytes: starts the snapshot
+            }
+            journal.sync();
+            journal.sync();
+            assertTrue(writing.await(5, TimeUnit.SECONDS), "The snapshot should be running.");
+            for (int i = 0; i < 10; i++) {
+                inventory.put("Q" + i, i);
+            }
+            journal.sync(); // Still under the backpressure limit: does not wait
+
+            for (int i = 0; i < 30; i++) {
+                inventory.put("R" + i, i);
+            }
+            Thread clerk = new Thread(() -> {
+                try {
+                    journal.sync();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            clerk.start();
+            clerk.join(300);
+            assertTrue(clerk.isAlive(), "A sync past the limit should wait for the snapshot.");
+            release.countDown();
+            clerk.join(5000);
+            assertFalse(clerk.isAlive(), "The sync should go on once the snapshot is written.");
+        }
+        assertEquals(40 + 10, Main.loadInto(snapshot, new ConcurrentInventory()).size(),
+                "Snapshot plus log should rebuild the inventory.");
+    }
+
+    @Test
+    public void testDeltas_checkpointChangesOnlyAndMergeIntoFullSnapshot() throws IOException {
+        File snapshot = tempDir.resolve("existencias.dat").toFile();
+        Map<String, Integer> inventory = new TreeMap<>();
+        for (int i = 0; i < 50; i++) {
+            inventory.put("P" + (100 + i), i);
+        }
+        Main.writeSnapshot(snapshot, Inventory.of(inventory));
+        Inventory view = Inventory.of(inventory);
+        InventoryJournal.SnapshotPolicy policy = InventoryJournal.SnapshotPolicy.DEFAULT
+                .withMaxChanges(3).withMaxDeltas(2);
+
+        for (int round = 0; round < 4; round++) {
+            try (InventoryJournal journal = InventoryJournal.open(snapshot, view, Main::writeSnapshot, policy)) {
+                view.put("P" + (100 + round), 1000 + round);
+                view.remove("P" + (140 + round));
+                view.put("N" + round, round);
+                journal.sync(); // The third change: checkpoint
+            }
+            if (round == 1) {
+                assertEquals(2, InventoryDelta.sequences(snapshot).length, "Each checkpoint should write a delta.");
+                InventoryDelta.Changes second = InventoryDelta.read(InventoryDelta.fileFor(snapshot, 2));
+                assertArrayEquals(new String[]{"N1", "P101", "P141"}, second.codes(),
+                        "A delta should hold only the products changed since the previous checkpoint.");
+                assertEquals(Inventory.NOT_FOUND, second.stocks()[2], "A removal should be recorded in the delta.");
+                assertEquals(50, InventorySnapshot.read(snapshot).size(), "The base snapshot should be untouched.");
+            }
+            if (round == 2) {
+                assertEquals(0, InventoryDelta.sequences(snapshot).length,
+                        "A full snapshot should fold the deltas in.");
+                assertEquals(inventory, InventorySnapshot.read(snapshot),
+                        "The full snapshot should hold every change.");
+            }
+        }
+
+        assertEquals(1, InventoryDelta.sequences(snapshot).length, "Deltas should start again after a full snapshot.");
+        assertEquals(inventory, Main.loadInventory(snapshot), "Base, deltas and log should rebuild the inventory.");
+    }
+}
@@ -0,0 +1,364 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies, counters and sizes of the inventory, kept for the whole process.
+ *
+ * <p>Every operation type has a {@link LatencyRecorder}; errors, bytes written and the size of the last snapshot
+ * are plain counters. Recording never allocates or blocks, so the instrumentation stays on in production.
+ *
+ * <p>The values are published as the JMX MBean {@value #OBJECT_NAME} and, when {@link #serve(int)} is called,
+ * as plain text in the Prometheus exposition format at {@code http://127.0.0.1:puerto/metricas}. Latencies are
+ * published there as one summary, {@value #LATENCY}, with a {@code quantile} label and the {@code _sum} and
+ * {@code _count} of every operation.
+ */
+public final class InventoryMetrics {
+    static final String OBJECT_NAME = "TiendaRepuestos:type=Metricas";
+    static final String LATENCY = "tienda_operacion_segundos";
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * Timed operations. Menu and command operations time the inventory work only, not the wait for user input.
+     */
+    public enum Operation {
+        ALTA, BAJA, CAMBIO, AJUSTE, CONSULTA, LISTADO,
+        /** Loading the snapshot and replaying the journal at startup. */
+        CARGA,
+        /** Writing a full snapshot, on demand or when the journal is compacted. */
+        SNAPSHOT,
+        /** Writing a delta snapshot of the products changed since the last checkpoint. */
+        DELTA,
+        /** Writing and fsyncing one group of journal records. */
+        SYNC,
+        /** A sync held back because the journal outgrew a snapshot still being written. */
+        ESPERA;
+
+        private final LatencyRecorder recorder = new LatencyRecorder();
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Counted failures.
+     */
+    public enum Failure {
+        /** The snapshot or journal could not be read at startup. */
+        CARGA,
+        /** The background checksum verification of a mapped snapshot failed. */
+        VERIFICACION,
+        /** A snapshot or delta could not be written. */
+        SNAPSHOT,
+        /** Journal records could not be made durable. */
+        REGISTRO,
+        /** A torn or corrupt journal tail was cut off during replay. */
+        REGISTRO_TRUNCADO,
+        /** A change-stream subscriber fell a whole ring behind or failed, and was dropped. */
+        SUSCRIPTOR;
+
+        private final LongAdder count = new LongAdder();
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final LongAdder snapshotBytesWritten = new LongAdder();
+    private static final LongAdder journalBytesWritten = new LongAdder();
+    private static final LongAdder deltaBytesWritten = new LongAdder();
+    private static final AtomicLong snapshotSize = new AtomicLong();
+    private static volatile Inventory watched;
+    private static volatile InventoryReplication.Follower follower;
+
+    private InventoryMetrics() {
+    }
+
+    /**
+     * Records an operation that started at a {@link System#nanoTime()} reading and has just finished.
+     *
+     * @param operation  The operation type.
+     * @param startNanos The reading taken when it started.
+     */
+    public static void record(Operation operation, long startNanos) {
+        operation.recorder.recordSince(startNanos);
+    }
+
+    /**
+     * Counts a failure.
+     *
+     * @param failure The kind of failure.
+     */
+    public static void failed(Failure failure) {
+        failure.count.increment();
+    }
+
+    /**
+     * Records a snapshot that was written.
+     *
+     * @param bytes The size of the new snapshot file.
+     */
+    public static void snapshotWritten(long bytes) {
+        snapshotBytesWritten.add(bytes);
+        snapshotSize.set(bytes);
+    }
+
+    /**
+     * Records a delta snapshot that was written.
+     *
+     * @param bytes The size of the new delta file.
+     */
+    public static void deltaWritten(long bytes) {
+        deltaBytesWritten.add(bytes);
+    }
+
+    /**
+     * Records the size of the snapshot found at startup.
+     *
+     * @param bytes The size of the snapshot file.
+     */
+    public static void snapshotLoaded(long bytes) {
+        snapshotSize.set(bytes);
+    }
+
+    /**
+     * Records journal bytes written to disk.
+     *
+     * @param bytes The number of bytes.
+     */
+    public static void journalWritten(long bytes) {
+        journalBytesWritten.add(bytes);
+    }
+
+    /**
+     * Publishes the number of products of an inventory, and the cache statistics of a {@link TieredInventory}.
+     *
+     * @param inventory The live inventory.
+     */
+    public static void watch(Inventory inventory) {
+        watched = inventory;
+    }
+
+    /**
+     * Publishes how far a read replica is behind its primary.
+     *
+     * @param replica The running follower, or null when the process stops following.
+     */
+    public static void watchReplica(InventoryReplication.Follower replica) {
+        follower = replica;
+    }
+
+    static LatencyRecorder recorder(Operation operation) {
+        return operation.recorder;
+    }
+
+    static long failures(Failure failure) {
+        return failure.count.sum();
+    }
+
+    /**
+     * One published value: a metric name, an optional label, the quantile of a summary or null, and the value.
+     */
+    record Sample(String name, String label, String labelValue, String quantile, double value) {
+        Sample(String name, String label, String labelValue, double value) {
+            this(name, label, labelValue, null, value);
+        }
+    }
+
+    /**
+     * @return Every published value, in a fixed order.
+     */
+    static List<Sample> samples() {
+        List<Sample> samples = new ArrayList<>();
+        // The samples of a metric family stay together, as the exposition format requires
+        for (Operation operation : Operation.values()) {
+            samples.add(new Sample("tienda_operacion_total", "op", operation.label(), operation.recorder.count()));
+        }
+        for (Operation operation : Operation.values()) {
+            LatencyRecorder recorder = operation.recorder;
+            String op = operation.label();
+            for (double quantile : QUANTILES) {
+                samples.add(new Sample(LATENCY, "op", op, String.valueOf(quantile),
+                        recorder.percentileNanos(quantile) / 1e9));
+            }
+            samples.add(new Sample(LATENCY + "_sum", "op", op, recorder.totalNanos() / 1e9));
+            samples.add(new Sample(LATENCY + "_count", "op", op, recorder.count()));
+        }
+        for (Operation operation : Operation.values()) {
+            samples.add(new Sample(LATENCY + "_max", "op", operation.label(), operation.recorder.maxNanos() / 1e9));
+        }
+        for (Failure failure : Failure.values()) {
+            samples.add(new Sample("tienda_errores_total", "tipo", failure.label(), failure.count.sum()));
+        }
+        samples.add(new Sample("tienda_snapshot_bytes", null, null, snapshotSize.get()));
+        samples.add(new Sample("tienda_snapshot_escritos_bytes_total", null, null, snapshotBytesWritten.sum()));
+        samples.add(new Sample("tienda_delta_escritos_bytes_total", null, null, deltaBytesWritten.sum()));
+        samples.add(new Sample("tienda_registro_escritos_bytes_total", null, null, journalBytesWritten.sum()));
+        Inventory inventory = watched;
+        samples.add(new Sample("tienda_productos", null, null, inventory == null ? 0 : inventory.size()));
+        if (inventory instanceof TieredInventory tiered) {
+            TieredInventory.CacheStats stats = tiered.stats();
+            samples.add(new Sample("tienda_cache_aciertos_total", null, null, stats.hits()));
+            samples.add(new Sample("tienda_cache_fallos_total", null, null, stats.misses()));
+            samples.add(new Sample("tienda_cache_tasa_aciertos", null, null, stats.hitRate()));
+            samples.add(new Sample("tienda_cache_desalojos_total", null, null, stats.evictions()));
+            samples.add(new Sample("tienda_cache_entradas", null, null, stats.cached()));
+            samples.add(new Sample("tienda_cache_sucias", null, null, stats.dirty()));
+            samples.add(new Sample("tienda_cache_volcados_total", null, null, stats.writeBacks()));
+        }
+        InventoryReplication.Follower replica = follower;
+        if (replica != null) {
+            InventoryReplication.Lag lag = replica.lag();
+            samples.add(new Sample("tienda_replica_conectada", null, null, lag.connected() ? 1 : 0));
+            samples.add(new Sample("tienda_replica_retraso_eventos", null, null, lag.events()));
+            samples.add(new Sample("tienda_replica_sin_contacto_segundos", null, null,
+                    lag.sinceContact().toNanos() / 1e9));
+        }
+        return samples;
+    }
+
+    /**
+     * @return Every value in the Prometheus text exposition format, one {@code name{label="value"} number} per line,
+     * each metric family led by its {@code # TYPE} line.
+     */
+    public static String scrape() {
+        StringBuilder text = new StringBuilder();
+        String family = null;
+        for (Sample sample : samples()) {
+            String name = sample.name();
+            String sampleFamily = name.equals(LATENCY + "_sum") || name.equals(LATENCY + "_count") ? LATENCY : name;
+            if (!sampleFamily.equals(family)) {
+                family = sampleFamily;
+                String type = family.equals(LATENCY) ? "summary" : family.endsWith("_total") ? "counter" : "gauge";
+                text.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+            }
+            text.append(name);
+            if (sample.label() != null) {
+                text.append('{').append(sample.label()).append("=\"").append(sample.labelValue()).append('"');
+                if (sample.quantile() != null) {
+                    text.append(",quantile=\"").append(sample.quantile()).append('"');
+                }
+                text.append('}');
+            }
+            text.append(' ');
+            double value = sample.value();
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                text.append((long) value);
+            } else {
+                text.append(String.format(Locale.ROOT, "%.9f", value));
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, once per process.
+     */
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            System.err.println("No se pudieron publicar las métricas por JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves {@link #scrape()} over HTTP on the loopback interface. The server keeps the process alive until it
+     * is stopped.
+     *
+     * @param port The TCP port, or 0 for any free port.
+     * @return The running server.
+     * @throws IOException If the port cannot be bound.
+     */
+    public static HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metricas", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Read-only MBean with one attribute per sample, named {@code metric.label} or {@code metric.label.quantile},
+     * such as {@code tienda_operacion_segundos.alta.0.99}.
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Sample sample : samples()) {
+                if (attributeName(sample).equals(attribute)) {
+                    return sample.value();
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            List<Sample> samples = samples();
+            for (String attribute : attributes) {
+                for (Sample sample : samples) {
+                    if (attributeName(sample).equals(attribute)) {
+                        list.add(new Attribute(attribute, sample.value()));
+                    }
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Sample sample : samples()) {
+                attributes.add(new MBeanAttributeInfo(attributeName(sample), "double", sample.name(),
+                        true, false, false));
+            }
+            return new MBeanInfo(InventoryMetrics.class.getName(), "Métricas del inventario",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Las métricas son de solo lectura");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        private static String attributeName(Sample sample) {
+            String name = sample.label() == null ? sample.name() : sample.name() + "." + sample.labelValue();
+            return sample.quantile() == null ? name : name + "." + sample.quantile();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InventoryMetricsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testSnapshotAndJournal_areMeasured() throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        long snapshots = InventoryMetrics.recorder(InventoryMetrics.Operation.SNAPSHOT).count();
+        long syncs = InventoryMetrics.recorder(InventoryMetrics.Operation.SYNC).count();
+        long loads = InventoryMetrics.recorder(InventoryMetrics.Operation.CARGA).count();
+        Map<String, Integer> inventory = new TreeMap<>(Map.of("P1", 1, "P2", 2));
+
+        Main.saveInventory(file, inventory);
+        Inventory view = Inventory.of(Main.loadInventory(file));
+        try (InventoryJournal journal = InventoryJournal.open(file, view, Main::writeSnapshot)) {
+            view.put("P3", 3);
+            journal.sync();
+        }
+
+        assertEquals(snapshots + 1, InventoryMetrics.recorder(InventoryMetrics.Operation.SNAPSHOT).count(),
+                "The save should be timed.");
+        assertTrue(InventoryMetrics.recorder(InventoryMetrics.Operation.SYNC).count() > syncs,
+                "The journal sync should be timed.");
+        assertEquals(loads + 1, InventoryMetrics.recorder(InventoryMetrics.Operation.CARGA).count(),
+                "The load should be timed.");
+        long written = InventorySnapshot.current(file).length();
+        assertTrue(InventoryMetrics.scrape().contains("tienda_snapshot_bytes " + written + "\n"),
+                "The snapshot size should be published.");
+    }
+
+    @Test
+    public void testLoadFailure_isCounted() throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        Files.write(file.toPath(), new byte[]{'T', 'R', 'S', 'N', 9, 0, 0, 0, 0, 1, 2, 3});
+        long failures = InventoryMetrics.failures(InventoryMetrics.Failure.CARGA);
+
+        assertThrows(UncheckedIOException.class, () -> Main.loadInventory(file), "A damaged file should fail.");
+        assertEquals(failures + 1, InventoryMetrics.failures(InventoryMetrics.Failure.CARGA),
+                "The failure should be counted.");
+    }
+
+    @Test
+    public void testScrapeEndpointAndMBean() throws Exception {
+        InventoryMetrics.record(InventoryMetrics.Operation.CONSULTA, System.nanoTime());
+        InventoryMetrics.registerMBean();
+        HttpServer server = InventoryMetrics.serve(0);
+        try {
+            URL url = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/metricas").toURL();
+            String text;
+            try (InputStream in = url.openStream()) {
+                text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(text.contains("tienda_operacion_total{op=\"consulta\"} "), "Operations should be listed.");
+            assertTrue(text.contains("tienda_errores_total{tipo=\"carga\"} "), "Errors should be listed.");
+            assertTrue(text.contains("# TYPE tienda_operacion_segundos summary\n"), "Latencies should be a summary.");
+            assertTrue(text.contains("tienda_operacion_segundos{op=\"consulta\",quantile=\"0.99\"} ")
+                    && text.contains("tienda_operacion_segundos_sum{op=\"consulta\"} ")
+                    && text.contains("tienda_operacion_segundos_count{op=\"consulta\"} "),
+                    "The summary should have quantiles, a sum and a count per operation.");
+            assertEquals(1, text.split("# TYPE tienda_operacion_segundos ", -1).length - 1,
+                    "Each metric family should be listed once.");
+        } finally {
+            server.stop(0);
+        }
+        Object count = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName(InventoryMetrics.OBJECT_NAME), "tienda_operacion_total.consulta");
+        assertTrue((Double) count >= 1, "The MBean should publish the same values.");
+    }
+}
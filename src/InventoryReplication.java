@@ -0,0 +1,651 @@
+import java.io.*;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Read replicas kept up to date by shipping the ordered changes of a primary over a local socket.
+ *
+ * <p>The {@link Primary} subscribes every connected follower to the {@link StockEventStream} of its inventory and
+ * sends the events in batches, in sequence order. A follower that connects for the first time, was away longer than
+ * the stream keeps events, or last followed another primary, first receives a full copy: the primary notes the
+ * next sequence number, subscribes from it, then sends every product. Changes made while the copy is sent may
+ * appear in both; applying an event sets the product to its new stock, so applying it twice does no harm.
+ * The events published during the copy are held on the primary and sent right after it, so a copy that takes
+ * longer than the stream keeps events does not get the follower dropped. The limit is memory: at most
+ * {@link #MAX_HELD_EVENTS} are held, and a follower whose copy outlasts that many changes is disconnected and
+ * starts over.
+ *
+ * <p>A {@link Follower} applies what it receives to its own thread-safe inventory, normally journaled to its own
+ * file, and reconnects by itself when the connection drops, resuming from the last event it applied. With a
+ * journal, the primary's id and the position reached are saved next to the replica's file after each journal
+ * sync, so a restarted follower resumes too instead of asking for a full copy, as long as the same primary still
+ * holds its position. It knows the primary's position from a heartbeat sent every {@link #HEARTBEAT_INTERVAL},
+ * so it can report how far behind it is. Since its inventory and journal are complete up to that point, a
+ * follower can take over as primary at once when the primary is lost.
+ *
+ * <p>Protocol: the follower sends {@code "TRRP" | version (1) | primary id (8) | next sequence (8)}, id 0 for
+ * none; the primary then sends frames, each starting with a type byte:
+ * <pre>
+ *   'S' primary id (8) | next sequence (8) | (true (1) | code (UTF) | stock (4))* | false (1)
+ *   'E' first sequence (8) | count (4) | (code (UTF) | stock (4), -1 for a baja)*
+ *   'H' primary's next sequence (8)
+ * </pre>
+ */
+public final class InventoryReplication {
+    static final String DEFAULT_PORT = "5060";
+    static final Duration HEARTBEAT_INTERVAL = Duration.ofMillis(200);
+    private static final int MAGIC = 0x54525250; // "TRRP"
+    private static final byte VERSION = 1;
+    private static final byte SNAPSHOT = 'S';
+    private static final byte EVENTS = 'E';
+    private static final byte HEARTBEAT = 'H';
+    private static final int BATCH = 1024;
+    static final int MAX_HELD_EVENTS = 1 << 20;
+    private static final long MAX_RETRY_MILLIS = 2000;
+    // A follower's saved position: primary id (8) | next sequence (8) | crc32 (4)
+    private static final int POSITION_LENGTH = 20;
+
+    private InventoryReplication() {
+    }
+
+    /**
+     * How far a follower is behind its primary.
+     *
+     * @param events       The events the primary had published, at its last heartbeat, that are not applied yet.
+     * @param sinceContact The time since anything was last received from the primary.
+     * @param connected    Whether the follower is connected to the primary.
+     */
+    public record Lag(long events, Duration sinceContact, boolean connected) {
+    }
+
+    private static ServerSocketChannel bind(SocketAddress address) throws IOException {
+        ServerSocketChannel channel = address instanceof UnixDomainSocketAddress
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open();
+        try {
+            channel.bind(address);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Ships the changes of an inventory to every follower that connects.
+     */
+    public static final class Primary implements Closeable {
+        private final Inventory inventory;
+        private final StockEventStream events;
+        private final long id;
+        private final ServerSocketChannel channel;
+        private final SocketAddress address;
+        private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+        private final Thread acceptor;
+        private final Thread heartbeat;
+
+        private Primary(Inventory inventory, StockEventStream events, ServerSocketChannel channel) throws IOException {
+            this.inventory = inventory;
+            this.events = events;
+            long random;
+            do {
+                random = new SecureRandom().nextLong();
+            } while (random == 0);
+            this.id = random;
+            this.channel = channel;
+            this.address = channel.getLocalAddress();
+            this.acceptor = Thread.ofPlatform().name("replication-acceptor").daemon().unstarted(this::acceptLoop);
+            this.heartbeat = Thread.ofPlatform().name("replication-heartbeat").daemon().unstarted(this::heartbeatLoop);
+        }
+
+        /**
+         * Starts accepting followers.
+         *
+         * @param inventory The inventory; must be thread-safe, as copies for new followers are read while it changes.
+         * @param events    The stream of its changes.
+         * @param address   Where to listen, see {@link InventoryServer#parseAddress(String)}.
+         * @return The running primary.
+         * @throws IOException If the address cannot be bound.
+         */
+        public static Primary start(Inventory inventory, StockEventStream events, SocketAddress address)
+                throws IOException {
+            Primary primary = new Primary(inventory, events, bind(address));
+            primary.acceptor.start();
+            primary.heartbeat.start();
+            return primary;
+        }
+
+        /**
+         * @return The address followers connect to, with the actual port if port 0 was requested.
+         */
+        public SocketAddress address() {
+            return address;
+        }
+
+        /**
+         * @return The number of connected followers.
+         */
+        public int followers() {
+            return connections.size();
+        }
+
+        /**
+         * Drops the connection of every follower, as a network fault would. They reconnect by themselves and
+         * resume from the last event they applied.
+         */
+        void disconnectFollowers() {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+
+        /**
+         * Stops accepting followers and disconnects the connected ones.
+         *
+         * @throws IOException If the listening socket cannot be closed.
+         */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            heartbeat.interrupt();
+            disconnectFollowers();
+            if (address instanceof UnixDomainSocketAddress unix) {
+                Files.deleteIfExists(unix.getPath());
+            }
+            try {
+                acceptor.join();
+                heartbeat.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing");
+            }
+        }
+
+        private void acceptLoop() {
+            int number = 0;
+            while (channel.isOpen()) {
+                try {
+                    SocketChannel socket = channel.accept();
+                    Connection connection = new Connection(socket, "seguidor-" + ++number);
+                    connections.add(connection);
+                    Thread.ofVirtual().name(connection.name).start(connection::serve);
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Error al aceptar un seguidor: " + e.getMessage());
+                }
+            }
+        }
+
+        private void heartbeatLoop() {
+            while (channel.isOpen()) {
+                for (Connection connection : connections) {
+                    connection.heartbeat();
+                }
+                try {
+                    Thread.sleep(HEARTBEAT_INTERVAL.toMillis());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * One follower: sends its copy if it needs one, then the events of its subscription.
+         */
+        private final class Connection implements StockEventStream.Subscriber {
+            private final SocketChannel socket;
+            private final String name;
+            private final DataOutputStream out;
+            // Frames are written whole; the heartbeat skips a turn rather than wait behind a slow follower
+            private final ReentrantLock lock = new ReentrantLock();
+            // Events published while the copy is sent, sent after it; both guarded by held
+            private final List<StockEventStream.Event> held = new ArrayList<>();
+            private boolean copying;
+            private volatile StockEventStream.Subscription subscription;
+            private volatile boolean closed;
+
+            Connection(SocketChannel socket, String name) {
+                this.socket = socket;
+                this.name = name;
+                this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socket), 1 << 16));
+            }
+
+            /**
+             * Reads the follower's greeting and starts its subscription. The follower sends nothing more, so the
+             * connection is not read afterwards; a follower that went away is noticed when a write to it fails.
+             */
+            void serve() {
+                try {
+                    DataInputStream in = new DataInputStream(Channels.newInputStream(socket));
+                    if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                        close();
+                        return;
+                    }
+                    long followerId = in.readLong();
+                    long next = in.readLong();
+                    lock.lock();
+                    try {
+                        if (followerId != id || !resume(next)) {
+                            sendCopy();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    close(); // The follower resumes from its own position when it comes back
+                }
+            }
+
+            private boolean resume(long next) {
+                try {
+                    subscription = events.subscribe(name, this, next, BATCH);
+                    return true;
+                } catch (IllegalArgumentException e) {
+                    return false; // No longer in the stream
+                }
+            }
+
+            /**
+             * Sends every product, then the events published meanwhile. The subscription starts before the copy
+             * but only queues its events until the copy is out, so it never waits behind the copy.
+             */
+            private void sendCopy() throws IOException {
+                synchronized (held) {
+                    copying = true;
+                }
+                long from = events.nextSequence();
+                subscription = events.subscribe(name, this, from, BATCH);
+                out.writeByte(SNAPSHOT);
+                out.writeLong(id);
+                out.writeLong(from);
+                try {
+                    inventory.forEachSorted((code, stock) -> {
+                        try {
+                            out.writeBoolean(true);
+                            out.writeUTF(code);
+                            out.writeInt(stock);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                out.writeBoolean(false);
+                while (true) {
+                    List<StockEventStream.Event> queued;
+                    synchronized (held) {
+                        if (held.isEmpty()) {
+                            copying = false; // Still under the lock, so later events wait for these
+                            break;
+                        }
+                        queued = new ArrayList<>(held);
+                        held.clear();
+                    }
+                    for (int i = 0; i < queued.size(); i += BATCH) {
+                        writeEvents(queued.subList(i, Math.min(queued.size(), i + BATCH)));
+                    }
+                }
+                out.flush();
+            }
+
+            @Override
+            public void onEvents(List<StockEventStream.Event> batch) throws IOException {
+                if (closed) {
+                    return;
+                }
+                boolean overflow = false;
+                synchronized (held) {
+                    if (copying) {
+                        overflow = held.size() + batch.size() > MAX_HELD_EVENTS;
+                        if (!overflow) {
+                            held.addAll(batch);
+                            return;
+                        }
+                    }
+                }
+                if (overflow) {
+                    System.err.println("La copia para " + name + " dura demasiado; se desconecta el seguidor.");
+                    close(); // The follower reconnects and gets a new copy
+                    return;
+                }
+                lock.lock();
+                try {
+                    writeEvents(batch);
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void writeEvents(List<StockEventStream.Event> batch) throws IOException {
+                out.writeByte(EVENTS);
+                out.writeLong(batch.get(0).sequence());
+                out.writeInt(batch.size());
+                for (StockEventStream.Event event : batch) {
+                    out.writeUTF(event.code());
+                    out.writeInt(event.newStock());
+                }
+            }
+
+            @Override
+            public void onDropped(long missed) {
+                close(); // The follower reconnects and gets a new copy
+            }
+
+            void heartbeat() {
+                if (closed || subscription == null || !lock.tryLock()) {
+                    return;
+                }
+                try {
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(events.nextSequence());
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void close() {
+                closed = true;
+                connections.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+                StockEventStream.Subscription current = subscription;
+                if (current != null) {
+                    current.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps an inventory in step with a primary.
+     */
+    public static final class Follower implements Closeable {
+        private final Inventory replica;
+        private final SocketAddress primary;
+        private final InventoryJournal journal;
+        private final File positionFile;
+        private final Thread thread;
+        private volatile SocketChannel socket;
+        private volatile boolean closed;
+        private volatile boolean connected;
+        private volatile long primaryId;
+        private volatile long next;
+        private volatile long primaryNext;
+        private volatile long lastContact = System.nanoTime();
+        private volatile int copies;
+
+        private Follower(Inventory replica, SocketAddress primary, InventoryJournal journal) {
+            this.replica = replica;
+            this.primary = primary;
+            this.journal = journal;
+            this.positionFile = journal == null ? null : positionFileFor(journal.snapshotFile());
+            this.thread = Thread.ofPlatform().name("replication-follower").daemon().unstarted(this::run);
+        }
+
+        /**
+         * Starts following a primary, connecting in the background and again whenever the connection drops.
+         *
+         * @param replica The inventory to keep in step; must be thread-safe if it is queried meanwhile, and must not
+         *                be changed by anything else.
+         * @param primary The primary's replication address.
+         * @param journal The replica's journal, synced after every frame applied, or null. The position is saved
+         *                next to its snapshot file and resumed from; it must match the replica as loaded.
+         * @return The running follower.
+         */
+        public static Follower start(Inventory replica, SocketAddress primary, InventoryJournal journal) {
+            Follower follower = new Follower(replica, primary, journal);
+            follower.loadPosition();
+            follower.thread.start();
+            return follower;
+        }
+
+        /**
+         * @param snapshotFile The replica's snapshot file.
+         * @return The file the follower saves its primary's id and its position in, next to the snapshot.
+         */
+        static File positionFileFor(File snapshotFile) {
+            return new File(snapshotFile.getPath() + ".replica");
+        }
+
+        /**
+         * @return The primary's sequence number of the next event to apply; every earlier one is applied.
+         */
+        public long position() {
+            return next;
+        }
+
+        /**
+         * @return The full copies received from a primary since the follower started.
+         */
+        int copies() {
+            return copies;
+        }
+
+        /**
+         * @return How far behind the primary the replica is.
+         */
+        public Lag lag() {
+            return new Lag(Math.max(0, primaryNext - next), Duration.ofNanos(System.nanoTime() - lastContact),
+                    connected);
+        }
+
+        /**
+         * Stops following for good, as when the replica is promoted: forgets the saved position, so once the
+         * replica has changes of its own, following a primary again starts from a full copy.
+         *
+         * @throws IOException If the saved position cannot be deleted.
+         */
+        public void forgetPrimary() throws IOException {
+            close();
+            if (positionFile != null) {
+                Files.deleteIfExists(positionFile.toPath());
+            }
+        }
+
+        /**
+         * Stops following. The replica keeps everything applied so far, and can then be changed and served as a
+         * primary of its own.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            SocketChannel current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+            }
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            long retry = 100;
+            boolean reported = false;
+            while (!closed) {
+                try (SocketChannel channel = SocketChannel.open(primary)) {
+                    socket = channel;
+                    if (closed) {
+                        return;
+                    }
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(Channels.newOutputStream(channel)));
+                    out.writeInt(MAGIC);
+                    out.writeByte(VERSION);
+                    out.writeLong(primaryId);
+                    out.writeLong(next);
+                    out.flush();
+                    connected = true;
+                    lastContact = System.nanoTime();
+                    retry = 100;
+                    if (reported) {
+                        System.err.println("Conectado de nuevo con el primario " + primary + ".");
+                        reported = false;
+                    }
+                    readLoop(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16)));
+                } catch (IOException | RuntimeException e) {
+                    if (!closed && !reported) {
+                        System.err.println("Sin conexión con el primario " + primary + ": "
+                                + (e instanceof EOFException ? "conexión cerrada" : e.getMessage()));
+                        reported = true;
+                    }
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(retry);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                retry = Math.min(MAX_RETRY_MILLIS, retry * 2);
+            }
+        }
+
+        private void readLoop(DataInputStream in) throws IOException {
+            while (true) {
+                byte type = in.readByte();
+                lastContact = System.nanoTime();
+                switch (type) {
+                    case SNAPSHOT -> {
+                        long id = in.readLong();
+                        long from = in.readLong();
+                        applyCopy(in);
+                        sync(id, from);
+                        primaryId = id;
+                        next = from;
+                        primaryNext = Math.max(primaryNext, from);
+                        copies++; // Only this thread writes it
+                    }
+                    case EVENTS -> {
+                        long first = in.readLong();
+                        int count = in.readInt();
+                        if (first != next) {
+                            throw new IOException("Expected event " + next + " but received " + first);
+                        }
+                        for (int i = 0; i < count; i++) {
+                            apply(in.readUTF(), in.readInt());
+                        }
+                        sync(primaryId, first + count);
+                        next = first + count;
+                        primaryNext = Math.max(primaryNext, next);
+                    }
+                    case HEARTBEAT -> primaryNext = in.readLong();
+                    default -> throw new IOException("Unknown replication frame " + type);
+                }
+                lastContact = System.nanoTime();
+            }
+        }
+
+        /**
+         * Replaces the replica's contents with the copy being received, changing only the products that differ.
+         */
+        private void applyCopy(DataInputStream in) throws IOException {
+            Set<String> received = new HashSet<>();
+            while (in.readBoolean()) {
+                String code = in.readUTF();
+                apply(code, in.readInt());
+                received.add(code);
+            }
+            if (replica.size() > received.size()) {
+                List<String> stale = new ArrayList<>();
+                replica.forEachSorted((code, stock) -> {
+                    if (!received.contains(code)) {
+                        stale.add(code);
+                    }
+                });
+                stale.forEach(replica::remove);
+            }
+        }
+
+        private void apply(String code, int stock) {
+            if (stock == Inventory.NOT_FOUND) {
+                replica.remove(code);
+            } else if (replica.stock(code) != stock) {
+                replica.put(code, stock);
+            }
+        }
+
+        /**
+         * Makes what was applied durable, then saves the position it reached. A crash in between leaves an older
+         * position, from which the events are applied again, harmlessly.
+         */
+        private void sync(long id, long position) throws IOException {
+            if (journal == null) {
+                return;
+            }
+            journal.sync();
+            ByteBuffer buffer = ByteBuffer.allocate(POSITION_LENGTH);
+            buffer.putLong(id).putLong(position);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, 16);
+            buffer.putInt((int) crc.getValue()).flip();
+            File tmp = new File(positionFile.getPath() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            Files.move(tmp.toPath(), positionFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void loadPosition() {
+            if (positionFile == null || !positionFile.exists()) {
+                return;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(positionFile.toPath()));
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), 0, Math.min(16, buffer.capacity()));
+                if (buffer.capacity() != POSITION_LENGTH || buffer.getInt(16) != (int) crc.getValue()) {
+                    System.err.println("Posición de réplica dañada en " + positionFile + "; se pedirá una copia.");
+                    return;
+                }
+                primaryId = buffer.getLong(0);
+                next = buffer.getLong(8);
+            } catch (IOException e) {
+                System.err.println("No se pudo leer " + positionFile + ": " + e.getMessage()
+                        + "; se pedirá una copia.");
+            }
+        }
+    }
+}
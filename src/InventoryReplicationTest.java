@@ -0,0 +1,270 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InventoryReplicationTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static final SocketAddress ANY_PORT = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    @Test
+    public void testFollowers_catchUpFromACopyThenApplyEveryChange() throws Exception {
+        ConcurrentInventory primary = new ConcurrentInventory();
+        for (int i = 0; i < 1000; i++) {
+            primary.put(String.format("P%04d", i), i);
+        }
+        StockEventStream events = StockEventStream.attach(primary, 1024);
+        ConcurrentInventory first = new ConcurrentInventory();
+        ConcurrentInventory second = new ConcurrentInventory();
+        second.put("OBSOLETO", 1); // Not on the primary: the copy should remove it
+        try (InventoryReplication.Primary server = InventoryReplication.Primary.start(primary, events, ANY_PORT);
+             InventoryReplication.Follower a = InventoryReplication.Follower.start(first, server.address(), null);
+             InventoryReplication.Follower b = InventoryReplication.Follower.start(second, server.address(), null)) {
+            primary.adjustStock("P0001", 10);
+            primary.remove("P0002");
+            primary.put("NUEVO", 7);
+
+            await(() -> a.position() == events.nextSequence() && b.position() == events.nextSequence());
+            assertEquals(copyOf(primary), copyOf(first));
+            assertEquals(copyOf(primary), copyOf(second), "The copy should replace what the follower had.");
+            assertEquals(11, second.stock("P0001"));
+            assertFalse(second.contains("P0002"));
+            await(() -> a.lag().events() == 0 && a.lag().connected());
+            assertEquals(2, server.followers());
+            events.close();
+        }
+    }
+
+    @Test
+    public void testFollower_resumesAfterReconnectingAndReportsLag() throws Exception {
+        ConcurrentInventory primary = new ConcurrentInventory();
+        StockEventStream events = StockEventStream.attach(primary, 1024);
+        ConcurrentInventory replica = new ConcurrentInventory();
+        File replicaFile = tempDir.resolve("existencias.dat").toFile();
+        try (InventoryReplication.Primary server = InventoryReplication.Primary.start(primary, events, ANY_PORT);
+             InventoryJournal journal = InventoryJournal.open(replicaFile, replica, Main::writeSnapshot);
+             InventoryReplication.Follower follower = InventoryReplication.Follower.start(replica, server.address(),
+                     journal)) {
+            primary.put("P1", 1);
+            await(() -> follower.position() == 1);
+            server.disconnectFollowers();
+            primary.put("P2", 2); // Made while the follower reconnects
+
+            await(() -> replica.stock("P2") == 2);
+            primary.put("P3", 3);
+            await(() -> follower.position() == events.nextSequence() && follower.lag().events() == 0
+                    && follower.lag().connected());
+            assertEquals(1, follower.copies(), "The same primary should resume the follower, not send a new copy.");
+            assertTrue(follower.lag().sinceContact().compareTo(Duration.ofSeconds(5)) < 0);
+            assertEquals(Map.of("P1", 1, "P2", 2, "P3", 3), copyOf(replica));
+        }
+        events.close();
+        assertEquals(Map.of("P1", 1, "P2", 2, "P3", 3), Main.loadInventory(replicaFile),
+                "Applied changes should be durable on the replica.");
+    }
+
+    @Test
+    public void testRestartedFollower_resumesFromItsSavedPosition() throws Exception {
+        ConcurrentInventory primary = new ConcurrentInventory();
+        StockEventStream events = StockEventStream.attach(primary, 1024);
+        File replicaFile = tempDir.resolve("existencias.dat").toFile();
+        try (InventoryReplication.Primary server = InventoryReplication.Primary.start(primary, events, ANY_PORT)) {
+            ConcurrentInventory replica = new ConcurrentInventory();
+            try (InventoryJournal journal = InventoryJournal.open(replicaFile, replica, Main::writeSnapshot);
+                 InventoryReplication.Follower follower = InventoryReplication.Follower.start(replica,
+                         server.address(), journal)) {
+                primary.put("P1", 1);
+                await(() -> follower.position() == 1);
+            }
+            primary.put("P2", 2); // Made while the follower is stopped
+
+            // A product only the replica has shows whether it was replaced by a copy
+            Inventory restarted = Main.loadInto(replicaFile, new ConcurrentInventory());
+            restarted.put("LOCAL", 9);
+            try (InventoryJournal journal = InventoryJournal.open(replicaFile, restarted, Main::writeSnapshot);
+                 InventoryReplication.Follower follower = InventoryReplication.Follower.start(restarted,
+                         server.address(), journal)) {
+                await(() -> follower.position() == events.nextSequence());
+                assertEquals(Map.of("P1", 1, "P2", 2, "LOCAL", 9), copyOf(restarted),
+                        "A restarted follower should resume, not take a full copy.");
+                follower.forgetPrimary();
+            }
+            assertFalse(InventoryReplication.Follower.positionFileFor(replicaFile).exists());
+        }
+        events.close();
+    }
+
+    @Test
+    public void testLongCopy_keepsTheEventsPublishedMeanwhile() throws Exception {
+        ConcurrentInventory primary = new ConcurrentInventory() {
+            @Override
+            public void forEachSorted(StockConsumer action) {
+                super.forEachSorted((code, stock) -> {
+                    action.accept(code, stock);
+                    if (code.equals("P0000")) {
+                        for (int i = 0; i < 100; i++) {
+                            adjustStock("P0999", 1); // Far more changes than the stream keeps, at a pace it follows
+                            try {
+                                Thread.sleep(2);
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    }
+                });
+            }
+        };
+        for (int i = 0; i < 1000; i++) {
+            primary.put(String.format("P%04d", i), i);
+        }
+        StockEventStream events = StockEventStream.attach(primary, 32);
+        ConcurrentInventory replica = new ConcurrentInventory();
+        try (InventoryReplication.Primary server = InventoryReplication.Primary.start(primary, events, ANY_PORT);
+             InventoryReplication.Follower follower = InventoryReplication.Follower.start(replica, server.address(),
+                     null)) {
+            await(() -> follower.position() == 100);
+            assertEquals(1000, replica.size());
+            assertEquals(1099, replica.stock("P0999"), "Changes made during the copy should follow it.");
+            assertEquals(1, server.followers());
+        }
+        events.close();
+    }
+
+    @Test
+    public void testPromotedFollower_servesItsOwnFollowers() throws Exception {
+        ConcurrentInventory primary = new ConcurrentInventory();
+        StockEventStream primaryEvents = StockEventStream.attach(primary, 1024);
+        ConcurrentInventory standby = new ConcurrentInventory();
+        StockEventStream standbyEvents = StockEventStream.attach(standby, 1024);
+        try (InventoryReplication.Primary server = InventoryReplication.Primary.start(primary, primaryEvents,
+                ANY_PORT);
+             InventoryReplication.Follower follower = InventoryReplication.Follower.start(standby, server.address(),
+                     null)) {
+            primary.put("P1", 5);
+            await(() -> follower.position() == primaryEvents.nextSequence());
+            assertEquals(5, standby.stock("P1"));
+        }
+        primaryEvents.close();
+
+        // The primary is gone: the standby takes changes and ships them to a new follower
+        standby.adjustStock("P1", -1);
+        ConcurrentInventory reader = new ConcurrentInventory();
+        try (InventoryReplication.Primary promoted = InventoryReplication.Primary.start(standby, standbyEvents,
+                ANY_PORT);
+             InventoryReplication.Follower follower = InventoryReplication.Follower.start(reader, promoted.address(),
+                     null);
+             InventoryServer queries = InventoryServer.startReadOnly(reader, ANY_PORT)) {
+            await(() -> follower.position() == standbyEvents.nextSequence());
+            assertEquals("OK 4\nERR solo lectura\n", query(queries.address(), "GET P1\nDEL P1\n"));
+        }
+        standbyEvents.close();
+    }
+
+    @Test
+    public void testPrimaryAndFollowerProcesses_replicateOverUnixSockets() throws Exception {
+        Path primaryDir = Files.createDirectory(tempDir.resolve("primario"));
+        Path followerDir = Files.createDirectory(tempDir.resolve("replica"));
+        InventorySnapshot.write(primaryDir.resolve("existencias.dat").toFile(), Map.of("P1", 5));
+        Path menu = tempDir.resolve("menu.sock");
+        Path replication = tempDir.resolve("replicacion.sock");
+        SocketAddress queries = UnixDomainSocketAddress.of(tempDir.resolve("consultas.sock"));
+        Process primary = launch(primaryDir, List.of("-D" + Main.REPLICATION_PROPERTY + "=" + replication),
+                "servidor", menu.toString());
+        Process follower = launch(followerDir, List.of(), "seguidor", replication.toString(), queries.toString());
+        try {
+            await(() -> answer(queries, "GET P1\n").equals("OK 5\n")); // Both are up once the copy is served
+            String session = query(UnixDomainSocketAddress.of(menu), "1\nP2\n7\n5\n");
+            assertTrue(session.contains("Product added successfully."), session);
+            await(() -> answer(queries, "GET P2\n").equals("OK 7\n"));
+
+            for (Process process : List.of(follower, primary)) {
+                try (OutputStream console = process.getOutputStream()) {
+                    console.write("salir\n".getBytes(StandardCharsets.UTF_8));
+                }
+                assertTrue(process.waitFor(10, TimeUnit.SECONDS), "The process should stop when told to.");
+                assertEquals(0, process.exitValue());
+            }
+        } finally {
+            primary.destroyForcibly();
+            follower.destroyForcibly();
+        }
+        assertEquals(Map.of("P1", 5, "P2", 7), Main.loadInventory(followerDir.resolve("existencias.dat").toFile()),
+                "The replica's own file should hold what it received.");
+    }
+
+    /**
+     * Starts {@link Main} in its own JVM, with the test's class path, logging its output next to the directory.
+     */
+    private Process launch(Path directory, List<String> options, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(List.of("-cp", System.getProperty("java.class.path")));
+        command.addAll(options);
+        command.add("Main");
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true)
+                .redirectOutput(tempDir.resolve(directory.getFileName() + ".log").toFile()).start();
+    }
+
+    private static Map<String, Integer> copyOf(Inventory inventory) {
+        Map<String, Integer> copy = new TreeMap<>();
+        inventory.forEachSorted(copy::put);
+        return copy;
+    }
+
+    private static String query(SocketAddress server, String input) throws IOException {
+        try (SocketChannel client = SocketChannel.open(server)) {
+            Channels.newOutputStream(client).write(input.getBytes(StandardCharsets.UTF_8));
+            client.shutdownOutput();
+            StringBuilder output = new StringBuilder();
+            Scanner replies = new Scanner(Channels.newInputStream(client), StandardCharsets.UTF_8);
+            while (replies.hasNextLine()) {
+                output.append(replies.nextLine()).append('\n');
+            }
+            return output.toString();
+        }
+    }
+
+    /**
+     * Like {@link #query}, but answers nothing while the server is not up yet.
+     */
+    private static String answer(SocketAddress server, String input) {
+        try {
+            return query(server, input);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for replication.");
+            Thread.sleep(5);
+        }
+    }
+}
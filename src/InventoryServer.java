@@ -0,0 +1,170 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves the inventory menu to many counter terminals at once.
+ * Each connection (TCP on the loopback interface or a Unix domain socket) gets its own virtual thread running
+ * {@link Main#runMenu}, so sessions block on their own input without tying up platform threads.
+ * All sessions share one thread-safe inventory, normally a {@link ConcurrentInventory}, with its journal and indexes.
+ * A read replica serves {@link InventoryCommands#runReadOnly read-only line commands} instead of the menu.
+ */
+public class InventoryServer implements Closeable {
+    static final String DEFAULT_PORT = "5050";
+
+    private final Main.Context context;
+    private final boolean readOnly;
+    private final ServerSocketChannel channel;
+    private final SocketAddress address;
+    private final Set<SocketChannel> sessions = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+
+    private InventoryServer(Main.Context context, boolean readOnly, ServerSocketChannel channel) throws IOException {
+        this.context = context;
+        this.readOnly = readOnly;
+        this.channel = channel;
+        this.address = channel.getLocalAddress();
+        this.acceptor = Thread.ofPlatform().name("inventory-acceptor").daemon().unstarted(this::acceptLoop);
+    }
+
+    /**
+     * Starts listening and accepting sessions.
+     *
+     * @param context The shared inventory, which must be thread-safe, with the journal every session syncs after
+     *                a change and the indexes it searches through.
+     * @param address Where to listen, see {@link #parseAddress(String)}.
+     * @return The running server.
+     * @throws IOException If the address cannot be bound.
+     */
+    public static InventoryServer start(Main.Context context, SocketAddress address) throws IOException {
+        return start(context, false, address);
+    }
+
+    /**
+     * Starts listening and accepting sessions that may only query, with {@code GET} and {@code LIST} commands.
+     *
+     * @param inventory The shared inventory; must be thread-safe.
+     * @param address   Where to listen, see {@link #parseAddress(String)}.
+     * @return The running server.
+     * @throws IOException If the address cannot be bound.
+     */
+    public static InventoryServer startReadOnly(Inventory inventory, SocketAddress address) throws IOException {
+        return start(Main.Context.of(inventory), true, address);
+    }
+
+    private static InventoryServer start(Main.Context context, boolean readOnly, SocketAddress address)
+            throws IOException {
+        ServerSocketChannel channel = address instanceof UnixDomainSocketAddress
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open();
+        try {
+            channel.bind(address);
+            InventoryServer server = new InventoryServer(context, readOnly, channel);
+            server.acceptor.start();
+            return server;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Turns a command line argument into a listening address: a number is a TCP port on the loopback interface,
+     * anything else is the path of a Unix domain socket.
+     *
+     * @param address The port or path.
+     * @return The socket address.
+     */
+    public static SocketAddress parseAddress(String address) {
+        if (address.chars().allMatch(Character::isDigit)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        return UnixDomainSocketAddress.of(address);
+    }
+
+    /**
+     * @return The address the server is bound to, with the actual port if port 0 was requested.
+     */
+    public SocketAddress address() {
+        return address;
+    }
+
+    /**
+     * Blocks until the server is closed.
+     *
+     * @throws InterruptedIOException If the waiting thread is interrupted.
+     */
+    public void awaitTermination() throws InterruptedIOException {
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while serving");
+        }
+    }
+
+    private void acceptLoop() {
+        int sessionNumber = 0;
+        while (channel.isOpen()) {
+            try {
+                SocketChannel client = channel.accept();
+                sessions.add(client);
+                Thread.ofVirtual().name("sesion-" + ++sessionNumber).start(() -> serve(client));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Error al aceptar una conexión: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        if (readOnly) {
+            try (client) {
+                InventoryCommands.runReadOnly(context.existencias(), Channels.newInputStream(client),
+                        Channels.newOutputStream(client));
+            } catch (IOException | UncheckedIOException e) {
+                // The client disconnected
+            } finally {
+                sessions.remove(client);
+            }
+            return;
+        }
+        try (client;
+             Scanner scanner = new Scanner(Channels.newInputStream(client), StandardCharsets.UTF_8);
+             PrintStream out = new PrintStream(Channels.newOutputStream(client), true, StandardCharsets.UTF_8)) {
+            Main.runMenu(context, scanner, out);
+        } catch (IOException | UncheckedIOException | IllegalStateException | NoSuchElementException e) {
+            // The terminal disconnected, perhaps in the middle of a prompt; nothing is pending because a change is
+            // only made once all of its input is read, and every change is journaled when made
+        } finally {
+            sessions.remove(client);
+        }
+    }
+
+    /**
+     * Stops accepting sessions and disconnects the open ones.
+     *
+     * @throws IOException If the listening socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        for (SocketChannel session : sessions) {
+            session.close();
+        }
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+        }
+        awaitTermination();
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InventoryServerTest {
+
+    @Test
+    public void testSessions_shareOneInventory() throws Exception {
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        try (InventoryServer server = InventoryServer.start(Main.Context.of(inventory),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            String first = session(server, "1\nP100\n10\n5\n");
+            String second = session(server, "1\nP100\n99\n1\nP200\n7\n4\n5\n");
+
+            assertTrue(first.contains("Product added successfully."), "The first terminal should add P100.");
+            assertTrue(second.contains("El código ya existe"), "The second terminal should see P100 already added.");
+            assertTrue(second.contains("Product Code: P100, Stock: 10")
+                            && second.contains("Product Code: P200, Stock: 7"),
+                    "The listing should show the products of both terminals.");
+            assertEquals(10, inventory.stock("P100"), "P100 should keep the stock of the first terminal.");
+        }
+    }
+
+    @Test
+    public void testClientClosingMidPrompt_endsOnlyItsSession() throws Exception {
+        List<Throwable> escaped = new CopyOnWriteArrayList<>();
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> escaped.add(e));
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        try (InventoryServer server = InventoryServer.start(Main.Context.of(inventory),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            try (SocketChannel client = SocketChannel.open(server.address())) {
+                Channels.newOutputStream(client).write("1\n".getBytes(StandardCharsets.UTF_8));
+                Scanner replies = new Scanner(Channels.newInputStream(client), StandardCharsets.UTF_8);
+                while (!replies.nextLine().equals("Código de producto")) {
+                    // Wait for the prompt, then hang up without answering it
+                }
+            }
+            String next = session(server, "1\nP100\n10\n5\n");
+
+            assertTrue(next.contains("Product added successfully."), "The server should keep serving other terminals.");
+            assertEquals(List.of(), escaped, "A terminal hanging up mid-prompt should end its session quietly.");
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    @Test
+    public void testParseAddress() {
+        assertEquals(new InetSocketAddress(InetAddress.getLoopbackAddress(), 5050),
+                InventoryServer.parseAddress("5050"), "A number should be a loopback TCP port.");
+        assertInstanceOf(java.net.UnixDomainSocketAddress.class, InventoryServer.parseAddress("/tmp/tienda.sock"),
+                "A path should be a Unix domain socket.");
+    }
+
+    private static String session(InventoryServer server, String input) throws IOException {
+        try (SocketChannel client = SocketChannel.open(server.address())) {
+            Channels.newOutputStream(client).write(input.getBytes(StandardCharsets.UTF_8));
+            StringBuilder output = new StringBuilder();
+            Scanner replies = new Scanner(Channels.newInputStream(client), StandardCharsets.UTF_8);
+            while (replies.hasNextLine()) {
+                output.append(replies.nextLine()).append('\n');
+            }
+            return output.toString();
+        }
+    }
+}
@@ -0,0 +1,496 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of the inventory, replacing Java object serialization.
+ *
+ * <p>Layout (version 2):
+ * <pre>
+ *   magic "TRSN" (4) | version (1) | entry count (4)
+ *   entries, sorted by product code: codeLength (varint) | code (UTF-8) | stock (varint)
+ *   sparse index: file offset (4) of every {@value #INDEX_INTERVAL}th entry
+ *   footer: index offset (8) | index entry count (4) | crc32 of everything before it (4)
+ * </pre>
+ * The sparse index lets {@link MappedInventory} binary-search a memory-mapped snapshot without reading it first.
+ * Version 1 snapshots (no index, only the trailing CRC) are still readable.
+ *
+ * <p>Snapshots are written to a temporary file through a buffered {@link FileChannel}, forced to disk and then
+ * atomically renamed, so a crash never leaves a half-written snapshot behind. The rename never replaces an
+ * existing file, which {@link MappedInventory} may still have mapped (Windows refuses to replace or delete a
+ * mapped file): each snapshot of {@code existencias.dat} is a new generation, {@code existencias.dat.1},
+ * {@code existencias.dat.2} and so on, and the newest one is the snapshot (see {@link #current}). Older
+ * generations are deleted once written over; one still mapped is left behind and deleted after a later write.
+ */
+public class InventorySnapshot {
+    static final byte[] MAGIC = {'T', 'R', 'S', 'N'};
+    static final byte VERSION = 2;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 4;
+    static final int FOOTER_LENGTH = 8 + 4 + 4;
+    static final int INDEX_INTERVAL = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Stock that marks a removed product in working files written by {@link #writeEntries}; never in a snapshot.
+     */
+    static final int REMOVED = Integer.MIN_VALUE;
+
+    /**
+     * Thrown when a snapshot file is damaged or in an unknown format.
+     */
+    public static class CorruptSnapshotException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptSnapshotException(String message) {
+            super(message);
+        }
+    }
+
+    private InventorySnapshot() {
+    }
+
+    /**
+     * The file that holds the current contents of a snapshot: its newest generation, or the named file itself if
+     * there is none, as written by hand or by older versions of the program.
+     *
+     * @param file The snapshot file, as named by the user.
+     * @return The file to read or map.
+     */
+    public static File current(File file) {
+        long generation = latestGeneration(file);
+        return generation == 0 ? file : generationFile(file, generation);
+    }
+
+    /**
+     * Deletes a snapshot file and every generation of it, as far as possible: a generation still mapped on
+     * Windows stays until a later write or delete.
+     *
+     * @param file The snapshot file, as named by the user.
+     */
+    static void delete(File file) {
+        deleteGenerationsBefore(file, Long.MAX_VALUE);
+    }
+
+    private static File generationFile(File file, long generation) {
+        return new File(file.getPath() + "." + generation);
+    }
+
+    /**
+     * The generation numbers of a snapshot file found next to it, 0 for the named file itself.
+     */
+    private static long[] generations(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        String[] names = dir == null ? null : dir.list((d, name) -> name.equals(file.getName())
+                || name.startsWith(prefix) && name.length() > prefix.length() && name.length() - prefix.length() <= 18
+                && name.substring(prefix.length()).chars().allMatch(c -> c >= '0' && c <= '9'));
+        if (names == null) {
+            return new long[0];
+        }
+        long[] generations = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            generations[i] = names[i].equals(file.getName()) ? 0 : Long.parseLong(names[i].substring(prefix.length()));
+        }
+        return generations;
+    }
+
+    private static long latestGeneration(File file) {
+        long latest = 0;
+        for (long generation : generations(file)) {
+            latest = Math.max(latest, generation);
+        }
+        return latest;
+    }
+
+    private static void deleteGenerationsBefore(File file, long generation) {
+        for (long older : generations(file)) {
+            if (older < generation) {
+                // May fail on Windows while the file is mapped; the next write tries again
+                (older == 0 ? file : generationFile(file, older)).delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the inventory to a file in snapshot format, replacing it atomically.
+     *
+     * @param file      The target snapshot file.
+     * @param inventory The inventory map (product code to quantity).
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static void write(File file, Map<String, Integer> inventory) throws IOException {
+        write(file, Inventory.of(inventory));
+    }
+
+    /**
+     * Writes the inventory to a file in snapshot format, replacing it atomically.
+     *
+     * @param file      The target snapshot file.
+     * @param inventory The inventory to write.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static void write(File file, Inventory inventory) throws IOException {
+        long began = System.nanoTime();
+        try {
+            inventory.checkIntegrity(); // Never fold damaged data into a fresh, valid-looking snapshot
+            long size = writeEntries(file, inventory.size(), inventory::forEachSorted, false);
+            InventoryMetrics.snapshotWritten(size);
+            InventoryMetrics.record(InventoryMetrics.Operation.SNAPSHOT, began);
+        } catch (IOException e) {
+            InventoryMetrics.failed(InventoryMetrics.Failure.SNAPSHOT);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes entries to a file in snapshot format as its next generation, without recording snapshot metrics.
+     * Used directly for working files, such as the cold store of a {@link TieredInventory}, that can also hold
+     * removals and that {@link MappedInventory} can map.
+     *
+     * @param file     The target file.
+     * @param count    The number of entries that will be given.
+     * @param entries  Gives every entry, in code order, to the consumer it is called with.
+     * @param removals Whether entries may have the stock {@link #REMOVED}.
+     * @return The size of the file written.
+     * @throws IOException If the file cannot be written, or the entries do not match the count.
+     */
+    static long writeEntries(File file, int count, Consumer<Inventory.StockConsumer> entries, boolean removals)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(out, count, removals);
+            entries.accept(writer::entry);
+            writer.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long size = tmp.length();
+        long generation = latestGeneration(file) + 1;
+        Files.move(tmp.toPath(), generationFile(file, generation).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        deleteGenerationsBefore(file, generation);
+        return size;
+    }
+
+    /**
+     * Reads a snapshot file into a sorted map, verifying its header, ordering and checksum.
+     *
+     * @param file The snapshot file.
+     * @return The inventory stored in the snapshot.
+     * @throws CorruptSnapshotException If the file is damaged or not a snapshot.
+     * @throws IOException              If the file cannot be read.
+     */
+    public static TreeMap<String, Integer> read(File file) throws IOException {
+        TreeMap<String, Integer> inventory = new TreeMap<>();
+        readInto(file, Inventory.of(inventory));
+        return inventory;
+    }
+
+    /**
+     * Streams the entries of a snapshot file into an inventory, verifying its header, ordering and checksum.
+     * Entries are added as they are read, so a damaged file may leave some of them in the target.
+     *
+     * @param file      The snapshot file.
+     * @param inventory The inventory that receives the entries.
+     * @throws CorruptSnapshotException If the file is damaged or not a snapshot.
+     * @throws IOException              If the file cannot be read.
+     */
+    public static void readInto(File file, Inventory inventory) throws IOException {
+        try (FileChannel in = FileChannel.open(current(file).toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            byte version = readVersion(in, size);
+            long dataEnd = size - 4;
+            if (version == VERSION) {
+                if (size < HEADER_LENGTH + FOOTER_LENGTH) {
+                    throw new CorruptSnapshotException("Snapshot too short: " + size + " bytes");
+                }
+                ByteBuffer footer = readAt(in, size - FOOTER_LENGTH, FOOTER_LENGTH);
+                dataEnd = footer.getLong();
+                int indexCount = footer.getInt();
+                if (dataEnd < HEADER_LENGTH || dataEnd + 4L * indexCount + FOOTER_LENGTH != size) {
+                    throw new CorruptSnapshotException("Invalid snapshot footer");
+                }
+            }
+            Reader reader = new Reader(in, dataEnd);
+            reader.bytes(MAGIC.length + 1);
+            int count = ByteBuffer.wrap(reader.bytes(4)).getInt();
+            if (count < 0) {
+                throw new CorruptSnapshotException("Invalid entry count " + count);
+            }
+            String previous = null;
+            for (int i = 0; i < count; i++) {
+                String code = new String(reader.bytes(reader.varint()), StandardCharsets.UTF_8);
+                int stock = reader.varint();
+                if (previous != null && previous.compareTo(code) >= 0) {
+                    throw new CorruptSnapshotException("Entries out of order at " + code);
+                }
+                inventory.put(code, stock);
+                previous = code;
+            }
+            if (reader.remaining() != 0) {
+                throw new CorruptSnapshotException("Unexpected data after the last entry");
+            }
+            CRC32 crc = reader.crc();
+            if (dataEnd < size - 4) {
+                crc.update(readAt(in, dataEnd, (int) (size - 4 - dataEnd)));
+            }
+            if (readAt(in, size - 4, 4).getInt() != (int) crc.getValue()) {
+                throw new CorruptSnapshotException("Checksum mismatch");
+            }
+        }
+    }
+
+    /**
+     * Returns the format version of a snapshot file.
+     *
+     * @param file The snapshot file.
+     * @return The version byte from its header.
+     * @throws CorruptSnapshotException If the file is not a snapshot or has an unknown version.
+     * @throws IOException              If the file cannot be read.
+     */
+    public static byte versionOf(File file) throws IOException {
+        try (FileChannel in = FileChannel.open(current(file).toPath(), StandardOpenOption.READ)) {
+            return readVersion(in, in.size());
+        }
+    }
+
+    /**
+     * Checks the magic bytes and returns the format version of a snapshot.
+     */
+    static byte readVersion(FileChannel in, long size) throws IOException {
+        if (size < HEADER_LENGTH + 4) {
+            throw new CorruptSnapshotException("Snapshot too short: " + size + " bytes");
+        }
+        ByteBuffer header = readAt(in, 0, MAGIC.length + 1);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new CorruptSnapshotException("Not an inventory snapshot");
+        }
+        byte version = header.get();
+        if (version != 1 && version != VERSION) {
+            throw new CorruptSnapshotException("Unsupported snapshot version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Tells whether a file was written by the old {@code ObjectOutputStream}-based {@code saveInventory}.
+     *
+     * @param file The file to inspect.
+     * @return true if the file starts with the Java serialization stream magic.
+     * @throws IOException If the file cannot be read.
+     */
+    public static boolean isLegacyFormat(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(current(file)))) {
+            return in.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * One-shot migration of an old serialized {@code existencias.dat} to the snapshot format.
+     * The original file is kept next to it with a {@code .legacy} suffix.
+     *
+     * @param file The legacy inventory file, replaced by a snapshot.
+     * @return The migrated inventory.
+     * @throws IOException If the legacy file cannot be read or the snapshot cannot be written.
+     */
+    public static TreeMap<String, Integer> migrateLegacy(File file) throws IOException {
+        TreeMap<String, Integer> inventory = new TreeMap<>();
+        File legacyFile = current(file);
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(legacyFile))) {
+            Map<?, ?> legacy = (Map<?, ?>) in.readObject();
+            for (Map.Entry<?, ?> entry : legacy.entrySet()) {
+                inventory.put((String) entry.getKey(), (Integer) entry.getValue());
+            }
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new CorruptSnapshotException("Unreadable legacy inventory file: " + e.getMessage());
+        }
+        Files.copy(legacyFile.toPath(), new File(file.getPath() + ".legacy").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        write(file, inventory);
+        return inventory;
+    }
+
+    private static ByteBuffer readAt(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new CorruptSnapshotException("Snapshot truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Buffered, checksumming writer that lays out entries, the sparse index and the footer.
+     */
+    private static class Writer {
+        private final FileChannel out;
+        private final CRC32 crc = new CRC32();
+        private final int count;
+        private final boolean removals;
+        private final int[] index;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private int indexCount;
+        private int entries;
+        private long written;
+
+        Writer(FileChannel out, int count, boolean removals) {
+            this.out = out;
+            this.count = count;
+            this.removals = removals;
+            this.index = new int[(count + INDEX_INTERVAL - 1) / INDEX_INTERVAL];
+            buffer.put(MAGIC).put(VERSION).putInt(count);
+        }
+
+        void entry(String code, int stock) {
+            try {
+                byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+                if (stock < 0 && !(removals && stock == REMOVED)) {
+                    throw new IOException("Negative stock for product " + code);
+                }
+                if (entries == count) {
+                    throw new IOException("Inventory changed while it was being written");
+                }
+                if (buffer.remaining() < bytes.length + 10) {
+                    flush();
+                    if (buffer.remaining() < bytes.length + 10) {
+                        buffer = ByteBuffer.allocate(bytes.length + 10);
+                    }
+                }
+                if (entries++ % INDEX_INTERVAL == 0) {
+                    long offset = written + buffer.position();
+                    if (offset > Integer.MAX_VALUE) {
+                        throw new IOException("Snapshots larger than 2 GB are not supported");
+                    }
+                    index[indexCount++] = (int) offset;
+                }
+                CodeBytes.putVarint(buffer, bytes.length);
+                buffer.put(bytes);
+                CodeBytes.putVarint(buffer, stock);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void finish() throws IOException {
+            if (entries != count) {
+                throw new IOException("Inventory changed while it was being written");
+            }
+            long indexOffset = written + buffer.position();
+            for (int i = 0; i < indexCount; i++) {
+                if (buffer.remaining() < 4) {
+                    flush();
+                }
+                buffer.putInt(index[i]);
+            }
+            if (buffer.remaining() < FOOTER_LENGTH) {
+                flush();
+            }
+            buffer.putLong(indexOffset).putInt(indexCount);
+            flush();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            written += buffer.remaining();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Buffered, checksumming reader over the header and entries of a snapshot.
+     */
+    private static class Reader {
+        private final FileChannel in;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private long position;
+        private final long limit;
+
+        Reader(FileChannel in, long limit) {
+            this.in = in;
+            this.limit = limit;
+            buffer.limit(0);
+        }
+
+        long remaining() {
+            return limit - position + buffer.remaining();
+        }
+
+        CRC32 crc() {
+            crc.update(buffer.duplicate().position(0).limit(buffer.position()));
+            buffer.position(0).limit(0);
+            return crc;
+        }
+
+        private void fill(int needed) throws IOException {
+            if (buffer.remaining() >= needed) {
+                return;
+            }
+            if (remaining() < needed) {
+                throw new CorruptSnapshotException("Snapshot truncated");
+            }
+            crc.update(buffer.duplicate().position(0).limit(buffer.position()));
+            if (needed > buffer.capacity()) {
+                // A code longer than the buffer, which the writer accepts: grow to hold it
+                buffer = ByteBuffer.allocate(needed).put(buffer);
+            } else {
+                buffer.compact();
+            }
+            buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + (limit - position)));
+            while (buffer.hasRemaining()) {
+                int read = in.read(buffer, position);
+                if (read < 0) {
+                    throw new CorruptSnapshotException("Snapshot truncated");
+                }
+                position += read;
+            }
+            buffer.flip();
+        }
+
+        byte[] bytes(int length) throws IOException {
+            fill(length);
+            byte[] result = new byte[length];
+            buffer.get(result);
+            return result;
+        }
+
+        int varint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                fill(1);
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    if (value < 0) {
+                        throw new CorruptSnapshotException("Negative varint");
+                    }
+                    return value;
+                }
+            }
+            throw new CorruptSnapshotException("Malformed varint");
+        }
+    }
+}
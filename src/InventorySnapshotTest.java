@@ -0,0 +1,116 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InventorySnapshotTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testWriteAndRead_roundTrip() throws IOException {
+        Map<String, Integer> inventory = new TreeMap<>();
+        inventory.put("P601", 0);
+        inventory.put("P602", 127);
+        inventory.put("P603", 128);
+        inventory.put("FRENO-ÑANDÚ", Integer.MAX_VALUE);
+        File file = tempDir.resolve("existencias.dat").toFile();
+
+        InventorySnapshot.write(file, inventory);
+
+        assertEquals(inventory, InventorySnapshot.read(file), "Snapshot should read back exactly what was written.");
+        assertFalse(new File(file.getPath() + ".tmp").exists(), "The temporary file should have been renamed.");
+    }
+
+    @Test
+    public void testWrite_neverReplacesTheMappedFile() throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        Files.write(file.toPath(), new byte[]{'v', 'i', 'e', 'j', 'o'}); // Left by hand: the first write replaces it
+        InventorySnapshot.write(file, Map.of("P901", 1));
+        File first = InventorySnapshot.current(file);
+        MappedInventory mapped = MappedInventory.open(file);
+
+        InventorySnapshot.write(file, Map.of("P901", 2));
+
+        File second = InventorySnapshot.current(file);
+        assertNotEquals(first, second, "Each snapshot should go to a new file, as the old one may still be mapped.");
+        assertEquals(Map.of("P901", 2), InventorySnapshot.read(file), "The newest generation should be read.");
+        assertEquals(1, mapped.stock("P901"), "The mapped generation should still hold what it held.");
+        assertFalse(file.exists(), "The file it replaced should be deleted once it is not mapped.");
+        InventorySnapshot.write(file, Map.of("P901", 3));
+        assertFalse(second.exists(), "Older generations should be deleted once they are not mapped.");
+    }
+
+    @Test
+    public void testRead_detectsFlippedByte() throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        InventorySnapshot.write(file, Map.of("P701", 10, "P702", 20));
+        Path current = InventorySnapshot.current(file).toPath();
+        byte[] bytes = Files.readAllBytes(current);
+        bytes[InventorySnapshot.HEADER_LENGTH + 5] ^= 0x01; // Damage the stock value of P701
+        Files.write(current, bytes);
+
+        assertThrows(InventorySnapshot.CorruptSnapshotException.class, () -> InventorySnapshot.read(file),
+                "A damaged snapshot should be rejected.");
+    }
+
+    @Test
+    public void testRead_detectsTruncation() throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        InventorySnapshot.write(file, Map.of("P801", 10, "P802", 20));
+        Path current = InventorySnapshot.current(file).toPath();
+        byte[] bytes = Files.readAllBytes(current);
+        Files.write(current, java.util.Arrays.copyOf(bytes, bytes.length - 7));
+
+        assertThrows(InventorySnapshot.CorruptSnapshotException.class, () -> InventorySnapshot.read(file),
+                "A truncated snapshot should be rejected.");
+    }
+
+    @Test
+    public void testWriteAndRead_codeLongerThanTheReadBuffer() throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        Map<String, Integer> inventory = new TreeMap<>();
+        inventory.put("A", 1);
+        // The longest code an inventory accepts: with its length and stock, the entry outgrows the 64 KB buffer
+        String longest = "B" + "Ñ".repeat((Inventory.MAX_CODE_BYTES - 1) / 2);
+        inventory.put(longest, 2);
+        inventory.put("C", 3);
+        InventorySnapshot.write(file, inventory);
+
+        assertEquals(inventory, InventorySnapshot.read(file), "Every code the writer accepts should read back.");
+        MappedInventory mapped = MappedInventory.open(file);
+        mapped.verify();
+        assertEquals(2, mapped.stock(longest));
+    }
+
+    @Test
+    public void testLoadInventory_corruptFileIsNotReplacedByEmptyInventory() throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        Files.write(file.toPath(), new byte[]{'n', 'o', 't', ' ', 'a', ' ', 's', 'n', 'a', 'p', 's', 'h', 'o', 't'});
+
+        assertThrows(UncheckedIOException.class, () -> Main.loadInventory(file),
+                "loadInventory should report corruption instead of returning an empty map.");
+    }
+
+    @Test
+    public void testLoadInventory_migratesLegacyFile() throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        TreeMap<String, Integer> legacy = new TreeMap<>(Map.of("P901", 3, "P902", 4));
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+            out.writeObject(legacy);
+        }
+
+        Map<String, Integer> loaded = Main.loadInventory(file);
+
+        assertEquals(legacy, loaded, "Legacy inventory should be loaded unchanged.");
+        assertFalse(InventorySnapshot.isLegacyFormat(file), "The file should have been rewritten in the new format.");
+        assertTrue(new File(file.getPath() + ".legacy").exists(), "The original file should be kept as a backup.");
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void testPercentiles_withinBucketPrecision() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (long v = 1; v <= 10_000; v++) {
+            recorder.record(v * 1000);
+        }
+
+        assertEquals(10_000, recorder.count(), "Every value should be counted.");
+        assertEquals(10_000_000, recorder.maxNanos(), "The maximum should be exact.");
+        long p50 = recorder.percentileNanos(0.5);
+        long p99 = recorder.percentileNanos(0.99);
+        assertTrue(p50 >= 5_000_000 && p50 <= 5_000_000 * 1.125, "p50 should be within 12.5%: " + p50);
+        assertTrue(p99 >= 9_900_000 && p99 <= 10_000_000, "p99 should be within 12.5%: " + p99);
+        assertEquals(0, new LatencyRecorder().percentileNanos(0.99), "An empty recorder should report zero.");
+    }
+
+    @Test
+    public void testBuckets_coverEveryValue() {
+        for (long v : new long[]{0, 1, 15, 16, 17, 31, 32, 1_000_000_007L, Long.MAX_VALUE}) {
+            int bucket = LatencyRecorder.bucketOf(v);
+            assertTrue(v <= LatencyRecorder.upperBoundOf(bucket), "Value above its bucket: " + v);
+            assertTrue(bucket == 0 || v > LatencyRecorder.upperBoundOf(bucket - 1), "Value below its bucket: " + v);
+        }
+    }
+
+    @Test
+    public void testConcurrentRecording_losesNothing() throws InterruptedException {
+        LatencyRecorder recorder = new LatencyRecorder();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    recorder.record(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400_000, recorder.count(), "No record should be lost.");
+        assertEquals(4L * (100_000L * 99_999 / 2), recorder.totalNanos(), "The total should add up.");
+        assertEquals(99_999, recorder.maxNanos(), "The maximum should be the largest value.");
+    }
+}
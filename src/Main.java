@@ -1,127 +1,769 @@
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.TreeMap;
 
 public class Main {
-    private static final Scanner scanner = new Scanner(System.in);
+    /**
+     * System property selecting the inventory implementation: {@code mapeado} (default), {@code compacto} or
+     * {@code niveles}.
+     */
+    static final String STORE_PROPERTY = "tienda.inventario";
+    /**
+     * System property with the most clean products the {@code niveles} store keeps on the heap.
+     */
+    static final String CACHE_SIZE_PROPERTY = "tienda.cache.entradas";
+    /**
+     * System property with the number of changed products at which the {@code niveles} store writes them to disk.
+     */
+    static final String WRITE_BACK_PROPERTY = "tienda.cache.volcado";
+    /**
+     * System property with the number of changes after which a new snapshot is written in the background.
+     */
+    static final String SNAPSHOT_CHANGES_PROPERTY = "tienda.snapshot.cambios";
+    /**
+     * System property with the seconds after which the next change triggers a new snapshot in the background.
+     */
+    static final String SNAPSHOT_INTERVAL_PROPERTY = "tienda.snapshot.intervalo";
+    /**
+     * System property with the number of snapshots written as deltas, holding only the changed products, between
+     * two full snapshots; 0 or unset for full snapshots only.
+     */
+    static final String SNAPSHOT_DELTAS_PROPERTY = "tienda.snapshot.deltas";
+    /**
+     * System property with the comma-separated names of the warehouses, each with its own inventory file
+     * {@code existencias-<almacén>.dat}; unset for a single store in {@code existencias.dat}.
+     */
+    static final String WAREHOUSES_PROPERTY = "tienda.almacenes";
+    /**
+     * Products shown per page by the search option of the menu.
+     */
+    static final int PAGE_SIZE = 50;
+    /**
+     * System property with the loopback TCP port on which to serve the metrics as plain text; unset for none.
+     */
+    static final String METRICS_PORT_PROPERTY = "tienda.metricas.puerto";
+    /**
+     * System property with the file to which every stock change is appended, for auditing; unset for none.
+     */
+    static final String AUDIT_PROPERTY = "tienda.auditoria";
+    /**
+     * System property with the stock at or below which a changed product is written to
+     * {@code existencias.dat.reposicion} for reordering; unset for none.
+     */
+    static final String REORDER_PROPERTY = "tienda.reposicion.umbral";
+    /**
+     * System property with the loopback TCP port or Unix socket path on which the server ships its changes to read
+     * replicas; unset for none.
+     */
+    static final String REPLICATION_PROPERTY = "tienda.replicacion";
+    /**
+     * Where a read replica answers queries unless given on the command line.
+     */
+    static final String REPLICA_DEFAULT_PORT = "5051";
+    /**
+     * Most events handed to a change-stream subscriber at once.
+     */
+    static final int EVENT_BATCH = 512;
+
+    /**
+     * An inventory and what the menu works through besides it. Each warehouse has its own, so sessions on
+     * different warehouses never share a journal or an index.
+     *
+     * @param existencias The inventory.
+     * @param journal     Its journal, synced after every change made from the menu, or null.
+     * @param stockIndex  Its stock level index, for listings filtered by stock, or null.
+     * @param codeIndex   Its code index, for fragment search and suggestions, or null.
+     */
+    record Context(Inventory existencias, InventoryJournal journal, StockIndex stockIndex, CodeIndex codeIndex) {
+        /**
+         * @param existencias The inventory.
+         * @return A context with no journal and no indexes.
+         */
+        static Context of(Inventory existencias) {
+            return new Context(existencias, null, null, null);
+        }
+    }
 
     /**
      * Loads inventory data from a specified file.
-     * If the file does not exist, is empty, or an error occurs during reading,
-     * an error message is printed and an empty map is returned.
+     * If the file does not exist or is empty, an empty map is returned.
+     * The load time and any failure are recorded in {@link InventoryMetrics}.
+     * A file written by the old serialization-based format is migrated to the snapshot format first.
+     * Delta snapshots and changes recorded in the journal since that snapshot are then replayed on top of it.
      *
      * @param file The file from which to load the inventory.
      * @return A map representing the inventory (product code to quantity).
-     *         Returns an empty TreeMap if the file is not found, is empty, or in case of a read error.
+     *         Returns an empty TreeMap if the file is not found or is empty.
+     * @throws UncheckedIOException If the file is damaged or cannot be read, so a bad file is never
+     *                              silently replaced by an empty inventory.
      */
-    private static Map<String, Integer> loadInventory(File file) {
+    static Map<String, Integer> loadInventory(File file) {
         Map<String, Integer> existencias = new TreeMap<>();
-        if (file.exists() && file.length() > 0) {
-            try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
-                existencias = (TreeMap<String, Integer>) in.readObject();
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("Error al leer el archivo, se creará un nuevo registro.");
-                // Retornar un TreeMap vacío en caso de error para mantener la consistencia
+        loadInto(file, Inventory.of(existencias));
+        return existencias;
+    }
+
+    /**
+     * Opens an inventory file as a {@link MappedInventory}, so startup time does not depend on its size, and
+     * replays the journal on top. Its checksum is verified in the background. A legacy file is migrated first;
+     * an older snapshot, or no file at all, is read into a map instead.
+     *
+     * @param file The file from which to load the inventory.
+     * @return The inventory, including the changes replayed from the journal.
+     * @throws UncheckedIOException If the file is damaged or cannot be read.
+     */
+    static Inventory loadMapped(File file) {
+        long began = System.nanoTime();
+        Inventory existencias;
+        try {
+            File snapshot = InventorySnapshot.current(file);
+            boolean present = snapshot.exists() && snapshot.length() > 0;
+            if (present) {
+                InventoryMetrics.snapshotLoaded(snapshot.length());
+                if (InventorySnapshot.isLegacyFormat(file)) {
+                    System.out.println("Migrando el archivo de existencias al nuevo formato.");
+                    InventorySnapshot.migrateLegacy(file);
+                }
+            }
+            if (present && InventorySnapshot.versionOf(file) == InventorySnapshot.VERSION) {
+                MappedInventory mapped = MappedInventory.open(file);
+                verifyInBackground(mapped);
+                existencias = mapped;
+            } else {
+                existencias = Inventory.of(present ? InventorySnapshot.read(file) : new TreeMap<>());
+            }
+            InventoryJournal.replay(file, existencias);
+        } catch (IOException e) {
+            InventoryMetrics.failed(InventoryMetrics.Failure.CARGA);
+            throw new UncheckedIOException("Error al leer el archivo de existencias: " + e.getMessage(), e);
+        }
+        InventoryMetrics.record(InventoryMetrics.Operation.CARGA, began);
+        return existencias;
+    }
+
+    /**
+     * Opens the inventory stored in a file using the implementation chosen with {@value #STORE_PROPERTY}.
+     * {@code compacto} reads every entry into a {@link CompactInventory}, which needs far less heap per product
+     * than a map; {@code niveles} opens a {@link TieredInventory}, which keeps only the hot products on the heap,
+     * up to {@value #CACHE_SIZE_PROPERTY}; anything else uses {@link #loadMapped(File)}, which maps the file
+     * lazily.
+     *
+     * @param file The file from which to load the inventory.
+     * @return The inventory, including the changes replayed from the journal.
+     * @throws UncheckedIOException If the file is damaged or cannot be read.
+     */
+    static Inventory openInventory(File file) {
+        String store = System.getProperty(STORE_PROPERTY, "mapeado");
+        if (store.equals("compacto")) {
+            return loadInto(file, new CompactInventory());
+        }
+        if (store.equals("niveles")) {
+            return loadTiered(file, Integer.getInteger(CACHE_SIZE_PROPERTY, 100_000),
+                    Integer.getInteger(WRITE_BACK_PROPERTY, 50_000));
+        }
+        return loadMapped(file);
+    }
+
+    /**
+     * Opens an inventory file as a {@link TieredInventory}, whose cold store is kept next to it with a
+     * {@code .frio} suffix, and replays the journal on top.
+     *
+     * @param file               The file from which to load the inventory.
+     * @param cacheCapacity      The most clean products kept on the heap.
+     * @param writeBackThreshold The number of changed products written to disk in one batch.
+     * @return The inventory, including the changes replayed from the journal.
+     * @throws UncheckedIOException If the file is damaged or cannot be read.
+     */
+    static TieredInventory loadTiered(File file, int cacheCapacity, int writeBackThreshold) {
+        long began = System.nanoTime();
+        TieredInventory existencias;
+        try {
+            File snapshot = InventorySnapshot.current(file);
+            if (snapshot.exists() && snapshot.length() > 0) {
+                InventoryMetrics.snapshotLoaded(snapshot.length());
+                if (InventorySnapshot.isLegacyFormat(file)) {
+                    System.out.println("Migrando el archivo de existencias al nuevo formato.");
+                    InventorySnapshot.migrateLegacy(file);
+                }
+            }
+            existencias = TieredInventory.open(file, new File(file.getPath() + ".frio"), cacheCapacity,
+                    writeBackThreshold);
+            InventoryJournal.replay(file, existencias);
+        } catch (IOException e) {
+            InventoryMetrics.failed(InventoryMetrics.Failure.CARGA);
+            throw new UncheckedIOException("Error al leer el archivo de existencias: " + e.getMessage(), e);
+        }
+        InventoryMetrics.record(InventoryMetrics.Operation.CARGA, began);
+        return existencias;
+    }
+
+    /**
+     * Reads every entry of an inventory file, plus the journal, into an empty inventory.
+     *
+     * @param file        The file from which to load the inventory.
+     * @param existencias The empty inventory that receives the entries.
+     * @return The same inventory, for convenience.
+     * @throws UncheckedIOException If the file is damaged or cannot be read.
+     */
+    static Inventory loadInto(File file, Inventory existencias) {
+        long began = System.nanoTime();
+        try {
+            File snapshot = InventorySnapshot.current(file);
+            if (snapshot.exists() && snapshot.length() > 0) {
+                InventoryMetrics.snapshotLoaded(snapshot.length());
+                if (InventorySnapshot.isLegacyFormat(file)) {
+                    System.out.println("Migrando el archivo de existencias al nuevo formato.");
+                    InventorySnapshot.migrateLegacy(file);
+                }
+                InventorySnapshot.readInto(file, existencias);
             }
+            InventoryJournal.replay(file, existencias);
+        } catch (IOException e) {
+            InventoryMetrics.failed(InventoryMetrics.Failure.CARGA);
+            throw new UncheckedIOException("Error al leer el archivo de existencias: " + e.getMessage(), e);
         }
+        InventoryMetrics.record(InventoryMetrics.Operation.CARGA, began);
         return existencias;
     }
 
+    /**
+     * Checks the checksum of a mapped inventory on a background thread so the menu is not delayed.
+     * A mismatch is reported right away; the next snapshot refuses to fold the damaged data in.
+     *
+     * @param mapped The freshly mapped inventory.
+     */
+    private static void verifyInBackground(MappedInventory mapped) {
+        Thread verifier = new Thread(() -> {
+            try {
+                mapped.verify();
+            } catch (IOException e) {
+                InventoryMetrics.failed(InventoryMetrics.Failure.VERIFICACION);
+                System.err.println("Error: el archivo de existencias está dañado (" + e.getMessage() + ").");
+            }
+        }, "inventory-verify");
+        verifier.setDaemon(true);
+        verifier.start();
+    }
+
     /**
      * Main method for the inventory management application.
      * It loads existing inventory, presents a menu for user interaction,
-     * and saves the inventory back to file upon exiting.
+     * and journals every change so nothing is lost if the session ends unexpectedly.
+     * New snapshots are written in the background as the journal grows, as configured by
+     * {@value #SNAPSHOT_CHANGES_PROPERTY}, {@value #SNAPSHOT_INTERVAL_PROPERTY} and {@value #SNAPSHOT_DELTAS_PROPERTY}.
+     * Operation latencies and errors are published over JMX, and as plain text when {@value #METRICS_PORT_PROPERTY}
+     * is set (see {@link InventoryMetrics}). Changes are also audited and checked for reordering when
+     * {@value #AUDIT_PROPERTY} or {@value #REORDER_PROPERTY} is set (see {@link StockEventStream}).
+     * With {@value #WAREHOUSES_PROPERTY} set it manages several warehouses instead (see {@link #runWarehouses}).
+     * With {@code servidor [puerto|ruta]} as arguments it instead serves the same menu to many terminals at once
+     * (see {@link InventoryServer}), shipping its changes to read replicas when {@value #REPLICATION_PROPERTY} is
+     * set; with {@code seguidor primario [puerto|ruta]} it is such a replica of the primary's replication address
+     * (see {@link #runFollower}); with {@code importar archivo} or {@code exportar archivo} it loads or lists
+     * stock in bulk from or to a CSV or TSV file (see {@link InventoryBatch}); with {@code comandos [archivo]} it
+     * runs line commands such as {@code ADD P101 10} from the file or standard input (see {@link InventoryCommands}).
      *
-     * @param args Command line arguments (not used in this application).
+     * @param args Command line arguments: empty for the interactive menu, {@code servidor} plus an optional
+     *             TCP port or Unix socket path, {@code seguidor} plus the primary's replication address and an
+     *             optional address for queries, {@code importar}/{@code exportar} plus a file, or {@code comandos}
+     *             plus an optional file.
      * @throws IOException If an I/O error occurs during file operations (loading or saving inventory).
      */
     public static void main(String[] args) throws IOException {
+        String almacenes = System.getProperty(WAREHOUSES_PROPERTY);
+        if (almacenes != null) {
+            runWarehouses(new File("."), List.of(almacenes.trim().split("\\s*,\\s*")), new Scanner(System.in),
+                    System.out);
+            return;
+        }
         File file = new File("existencias.dat");
-        Map<String, Integer> existencias = loadInventory(file);
+        boolean servidor = args.length > 0 && args[0].equals("servidor");
+        boolean seguidor = args.length > 1 && args[0].equals("seguidor");
+        Inventory existencias;
+        try {
+            existencias = servidor || seguidor ? loadInto(file, new ConcurrentInventory()) : openInventory(file);
+        } catch (UncheckedIOException e) {
+            System.err.println(e.getMessage());
+            System.err.println("No se modificará el archivo; revíselo o restaure una copia antes de continuar.");
+            return;
+        }
+        StockIndex stockIndex = StockIndex.attach(existencias);
+        CodeIndex codeIndex = CodeIndex.attach(file, existencias);
+        InventoryJournal journal = InventoryJournal.open(file, existencias, Main::writeSnapshot, snapshotPolicy());
+        Context context = new Context(existencias, journal, stockIndex, codeIndex);
+        InventoryMetrics.watch(existencias);
+        InventoryMetrics.registerMBean();
+        StockEventStream events = openEventStream(file, existencias,
+                (servidor || seguidor) && System.getProperty(REPLICATION_PROPERTY) != null);
+        HttpServer metrics = null;
+        try {
+            String metricsPort = System.getProperty(METRICS_PORT_PROPERTY);
+            if (metricsPort != null) {
+                metrics = InventoryMetrics.serve(Integer.parseInt(metricsPort));
+            }
+            if (servidor) {
+                runServer(context, args.length > 1 ? args[1] : InventoryServer.DEFAULT_PORT, events,
+                        new Scanner(System.in));
+            } else if (seguidor) {
+                runFollower(context, args[1], args.length > 2 ? args[2] : REPLICA_DEFAULT_PORT, events);
+            } else if (args.length > 1 && args[0].equals("importar")) {
+                importStock(context, Path.of(args[1]));
+            } else if (args.length > 1 && args[0].equals("exportar")) {
+                long count = InventoryBatch.exportFile(existencias, Path.of(args[1]));
+                System.out.println(count + " productos exportados a " + args[1]);
+            } else if (args.length > 0 && args[0].equals("comandos")) {
+                runCommands(context, args.length > 1 ? Path.of(args[1]) : null);
+            } else {
+                runMenu(context, new Scanner(System.in), System.out);
+            }
+        } finally {
+            if (metrics != null) {
+                metrics.stop(0);
+            }
+            if (events != null) {
+                events.close();
+            }
+            // Every change is already in the journal; closing it makes the tail durable
+            journal.close();
+        }
+    }
 
+    /**
+     * Publishes the changes of the inventory to the subscribers configured with {@value #AUDIT_PROPERTY} and
+     * {@value #REORDER_PROPERTY}, each on its own thread so a slow disk never delays the clerk. The audit
+     * subscriber is never dropped for falling behind: it marks the lost events in the file and carries on.
+     *
+     * @param file        The inventory file, next to which reorder alerts are written.
+     * @param existencias The inventory.
+     * @param replicated  Whether the changes are also shipped to read replicas.
+     * @return The running stream, or {@code null} if no subscriber is configured and nothing is replicated.
+     */
+    static StockEventStream openEventStream(File file, Inventory existencias, boolean replicated) {
+        String audit = System.getProperty(AUDIT_PROPERTY);
+        Integer threshold = Integer.getInteger(REORDER_PROPERTY);
+        if (audit == null && threshold == null && !replicated) {
+            return null;
+        }
+        StockEventStream events = StockEventStream.attach(existencias, StockEventStream.DEFAULT_CAPACITY);
+        if (audit != null) {
+            // An audit file with a marked gap is worth more than one that silently stops
+            events.subscribeResuming("auditoria", StockEventStream.auditLog(Path.of(audit)), EVENT_BATCH);
+        }
+        if (threshold != null) {
+            events.subscribe("reposicion", StockEventStream.reorderAlerts(Path.of(file.getPath() + ".reposicion"),
+                    threshold), EVENT_BATCH);
+        }
+        return events;
+    }
+
+    /**
+     * Builds the journal's snapshot policy from {@value #SNAPSHOT_CHANGES_PROPERTY},
+     * {@value #SNAPSHOT_INTERVAL_PROPERTY} and {@value #SNAPSHOT_DELTAS_PROPERTY}, on top of the default log size
+     * limit.
+     *
+     * @return The policy.
+     */
+    static InventoryJournal.SnapshotPolicy snapshotPolicy() {
+        InventoryJournal.SnapshotPolicy policy = InventoryJournal.SnapshotPolicy.DEFAULT
+                .withMaxChanges(Long.getLong(SNAPSHOT_CHANGES_PROPERTY, 0L))
+                .withMaxDeltas(Integer.getInteger(SNAPSHOT_DELTAS_PROPERTY, 0));
+        Long seconds = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY);
+        return seconds == null ? policy : policy.withInterval(Duration.ofSeconds(seconds));
+    }
+
+    /**
+     * Runs the numbered menu until the user picks option 5 or the input ends.
+     * Used by the console and by every server session, each with its own input and output.
+     *
+     * @param context The inventory to work on, with its journal and indexes.
+     * @param scanner The Scanner instance used for user input.
+     * @param out     Where menus, prompts and results are printed.
+     */
+    static void runMenu(Context context, Scanner scanner, PrintStream out) {
+        Inventory existencias = context.existencias();
         int opcion;
         do {
-            System.out.println("1. Alta Producto");
-            System.out.println("2. Baja Producto");
-            System.out.println("3. Cambio stock de producto");
-            System.out.println("4. Listar existencias");
-            System.out.println("5. Salir");
+            out.println("1. Alta Producto");
+            out.println("2. Baja Producto");
+            out.println("3. Cambio stock de producto");
+            out.println("4. Listar existencias");
+            out.println("5. Salir");
+            out.println("6. Entrada o venta de stock");
+            out.println("7. Buscar existencias");
+            out.println("8. Buscar por parte del código");
+            if (!scanner.hasNext()) {
+                return; // Input closed: same as leaving
+            }
             try {
                 opcion = scanner.nextInt();
                 scanner.nextLine(); // Consume newline
             } catch (java.util.InputMismatchException e) {
-                System.out.println("Error: Entrada inválida. Por favor, ingrese un número.");
+                out.println("Error: Entrada inválida. Por favor, ingrese un número.");
                 scanner.nextLine(); // Consume the invalid input
                 opcion = 0; // Set to a non-exit option to loop back
             }
             switch (opcion) {
-                case 1 -> addProduct(existencias, scanner);
-                case 2 -> removeProduct(existencias, scanner);
-                case 3 -> changeStock(existencias, scanner);
-                case 4 -> listStock(existencias);
+                case 1 -> {
+                    addProduct(existencias, scanner, out);
+                    syncJournal(context.journal(), out);
+                }
+                case 2 -> {
+                    removeProduct(existencias, scanner, out);
+                    syncJournal(context.journal(), out);
+                }
+                case 3 -> {
+                    changeStock(existencias, context.codeIndex(), scanner, out);
+                    syncJournal(context.journal(), out);
+                }
+                case 4 -> listStock(existencias, out);
+                case 6 -> {
+                    adjustStock(existencias, scanner, out);
+                    syncJournal(context.journal(), out);
+                }
+                case 7 -> searchStock(existencias, context.stockIndex(), scanner, out);
+                case 8 -> findCodes(existencias, context.codeIndex(), scanner, out);
                 case 5 -> {
-                    System.out.println("Saliendo");
+                    out.println("Saliendo");
                 }
                 default -> {
-                    System.out.println("Opción incorrecta");
+                    out.println("Opción incorrecta");
+                }
+            }
+        } while (opcion != 5);
+    }
+
+    /**
+     * Loads every warehouse into a thread-safe {@link ConcurrentInventory}, as queries across warehouses read them
+     * from several threads, and runs the warehouse menu until the user leaves or the input ends, then closes the
+     * journals.
+     *
+     * @param directory  The directory holding the warehouse files.
+     * @param warehouses The warehouse names.
+     * @param scanner    The Scanner instance used for user input.
+     * @param out        Where menus, prompts and results are printed.
+     * @throws IOException If a journal cannot be opened or closed.
+     */
+    static void runWarehouses(File directory, List<String> warehouses, Scanner scanner, PrintStream out)
+            throws IOException {
+        WarehouseInventory almacenes;
+        try {
+            almacenes = WarehouseInventory.open(directory, warehouses,
+                    file -> loadInto(file, new ConcurrentInventory()), snapshotPolicy());
+        } catch (UncheckedIOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(
+                    "No se modificará ningún archivo; revíselos o restaure una copia antes de continuar.");
+            return;
+        }
+        InventoryMetrics.registerMBean();
+        try (almacenes) {
+            runWarehouseMenu(almacenes, scanner, out);
+        }
+    }
+
+    /**
+     * Runs the warehouse menu: the usual menu on one warehouse, or a query across all of them.
+     *
+     * @param almacenes The warehouses.
+     * @param scanner   The Scanner instance used for user input.
+     * @param out       Where menus, prompts and results are printed.
+     */
+    static void runWarehouseMenu(WarehouseInventory almacenes, Scanner scanner, PrintStream out) {
+        int opcion;
+        do {
+            out.println("1. Trabajar en un almacén");
+            out.println("2. Stock total de un producto");
+            out.println("3. Almacenes con un producto");
+            out.println("4. Informe de stock bajo");
+            out.println("5. Salir");
+            if (!scanner.hasNext()) {
+                return;
+            }
+            try {
+                opcion = scanner.nextInt();
+                scanner.nextLine(); // Consume newline
+            } catch (java.util.InputMismatchException e) {
+                out.println("Error: Entrada inválida. Por favor, ingrese un número.");
+                scanner.nextLine(); // Consume the invalid input
+                opcion = 0;
+            }
+            switch (opcion) {
+                case 1 -> {
+                    out.println("Almacén (" + String.join(", ", almacenes.warehouses()) + "):");
+                    String almacen = scanner.next();
+                    scanner.nextLine(); // Consume newline
+                    if (!almacenes.contains(almacen)) {
+                        out.println("Error: el almacén no existe.");
+                    } else {
+                        InventoryMetrics.watch(almacenes.inventory(almacen));
+                        runMenu(new Context(almacenes.inventory(almacen), almacenes.journal(almacen),
+                                almacenes.index(almacen), almacenes.codes(almacen)), scanner, out);
+                    }
+                }
+                case 2 -> {
+                    out.println("Código de producto");
+                    String codigo = scanner.next();
+                    scanner.nextLine(); // Consume newline
+                    out.println("Stock total de " + codigo + ": " + almacenes.totalStock(codigo));
+                }
+                case 3 -> {
+                    out.println("Código de producto");
+                    String codigo = scanner.next();
+                    scanner.nextLine(); // Consume newline
+                    Map<String, Integer> ubicaciones = almacenes.locations(codigo);
+                    if (ubicaciones.isEmpty()) {
+                        out.println("El producto no está en ningún almacén.");
+                    }
+                    ubicaciones.forEach((almacen, stock) -> out.println(almacen + ": " + stock));
                 }
+                case 4 -> {
+                    out.println("Mostrar productos con stock total hasta:");
+                    try {
+                        int umbral = scanner.nextInt();
+                        scanner.nextLine(); // Consume newline
+                        Map<String, Long> informe = almacenes.lowStock(umbral);
+                        if (informe.isEmpty()) {
+                            out.println("Ningún producto por debajo del umbral.");
+                        }
+                        informe.forEach((codigo, stock) -> out.println(codigo + ": " + stock));
+                    } catch (java.util.InputMismatchException e) {
+                        out.println("Error: Entrada inválida. Por favor, ingrese un número.");
+                        scanner.nextLine();
+                    }
+                }
+                case 5 -> out.println("Saliendo");
+                default -> out.println("Opción incorrecta");
             }
         } while (opcion != 5);
+    }
+
+    /**
+     * Serves the menu over a socket until the operator types {@code salir} on the console.
+     * If the console has no input (for example when started in the background) it serves until the process ends;
+     * every change is already durable in the journal when it is confirmed.
+     *
+     * With {@value #REPLICATION_PROPERTY} set, read replicas can follow it there.
+     *
+     * @param context The shared, thread-safe inventory, with its journal and indexes.
+     * @param address TCP port on the loopback interface, or path of a Unix domain socket.
+     * @param events  The stream of the inventory's changes, or null if it is not replicated.
+     * @param consola The operator's console.
+     * @throws IOException If the server cannot be started.
+     */
+    private static void runServer(Context context, String address, StockEventStream events, Scanner consola)
+            throws IOException {
+        String replication = System.getProperty(REPLICATION_PROPERTY);
+        try (InventoryServer server = InventoryServer.start(context, InventoryServer.parseAddress(address));
+             InventoryReplication.Primary primary = events == null || replication == null ? null
+                     : InventoryReplication.Primary.start(context.existencias(), events,
+                     InventoryServer.parseAddress(replication))) {
+            System.out.println("Servidor escuchando en " + server.address() + ". Escriba 'salir' para detenerlo.");
+            if (primary != null) {
+                System.out.println("Réplicas atendidas en " + primary.address() + ".");
+            }
+            while (consola.hasNextLine()) {
+                if (consola.nextLine().trim().equalsIgnoreCase("salir")) {
+                    System.out.println("Deteniendo el servidor");
+                    return;
+                }
+            }
+            server.awaitTermination();
+        }
+    }
+
+    /**
+     * Follows a primary as a read replica until the operator types {@code salir}, answering {@code GET} and
+     * {@code LIST} line commands on its own address. Every change received is journaled to the replica's own file.
+     * {@code estado} shows how far behind the primary it is; {@code promover} stops following and serves the menu
+     * on the same address instead, as the new primary (see {@link #runServer}).
+     *
+     * @param context The replica, thread-safe and journaled, with its journal and indexes.
+     * @param primary The primary's replication address.
+     * @param address Where to answer queries.
+     * @param events  The stream of the replica's changes, to ship them on once promoted, or null.
+     * @throws IOException If the query server cannot be started.
+     */
+    private static void runFollower(Context context, String primary, String address, StockEventStream events)
+            throws IOException {
+        Scanner consola = new Scanner(System.in);
+        try (InventoryReplication.Follower follower = InventoryReplication.Follower.start(context.existencias(),
+                InventoryServer.parseAddress(primary), context.journal());
+             InventoryServer server = InventoryServer.startReadOnly(context.existencias(),
+                     InventoryServer.parseAddress(address))) {
+            InventoryMetrics.watchReplica(follower);
+            System.out.println("Réplica de " + primary + ", consultas en " + server.address()
+                    + ". Escriba 'estado', 'promover' o 'salir'.");
+            boolean promover = false;
+            while (!promover && consola.hasNextLine()) {
+                String orden = consola.nextLine().trim();
+                if (orden.equalsIgnoreCase("salir")) {
+                    System.out.println("Deteniendo la réplica");
+                    return;
+                } else if (orden.equalsIgnoreCase("estado")) {
+                    printLag(follower.lag(), System.out);
+                } else if (orden.equalsIgnoreCase("promover")) {
+                    follower.forgetPrimary(); // Its own changes from now on would not be in the primary's stream
+                    promover = true;
+                }
+            }
+            if (!promover) {
+                server.awaitTermination();
+                return;
+            }
+        } finally {
+            InventoryMetrics.watchReplica(null);
+        }
+        // Everything received is already applied and journaled: start taking changes right away
+        System.out.println("Réplica promovida a primario.");
+        runServer(context, address, events, consola);
+    }
+
+    /**
+     * Prints how far behind its primary a replica is.
+     *
+     * @param lag The replica's lag.
+     * @param out Where to print it.
+     */
+    static void printLag(InventoryReplication.Lag lag, PrintStream out) {
+        out.println((lag.connected() ? "Conectada" : "Sin conexión") + " con el primario. Retraso: " + lag.events()
+                + " cambios, último contacto hace " + lag.sinceContact().toMillis() + " ms.");
+    }
+
+    /**
+     * Runs line commands until the input ends, replying on standard output.
+     *
+     * @param context The inventory to work on, with its journal.
+     * @param source  The file with the commands, or null to read standard input.
+     * @throws IOException If the commands cannot be read, the replies written or the changes journaled.
+     */
+    private static void runCommands(Context context, Path source) throws IOException {
+        try (InputStream in = source == null ? System.in : Files.newInputStream(source)) {
+            InventoryCommands.run(context.existencias(), in, System.out, context.journal());
+        }
+    }
+
+    /**
+     * Loads a CSV or TSV file into the inventory, syncing the journal every few thousand rows and at the end.
+     * Rejected rows are listed in a report next to the file.
+     *
+     * @param context The inventory to load into, with its journal.
+     * @param source  The file to import.
+     * @throws IOException If the file cannot be read or the changes cannot be journaled.
+     */
+    private static void importStock(Context context, Path source) throws IOException {
+        Path report = source.resolveSibling(source.getFileName() + ".rechazos");
+        Files.deleteIfExists(report);
+        InventoryBatch.ImportResult result = InventoryBatch.importFile(source, context.existencias(), report,
+                context.journal());
+        System.out.println(result.added() + " productos dados de alta, " + result.updated() + " actualizados.");
+        if (result.rejected() > 0) {
+            System.out.println(result.rejected() + " filas rechazadas, ver " + report);
+        }
+    }
 
-        saveInventory(file, existencias);
+    /**
+     * Adds a new product to a map-based inventory.
+     *
+     * @param inventory The current inventory map (product code to quantity).
+     * @param scanner   The Scanner instance used for user input.
+     * @see #addProduct(Inventory, Scanner, PrintStream)
+     */
+    static void addProduct(Map<String, Integer> inventory, Scanner scanner) {
+        addProduct(Inventory.of(inventory), scanner, System.out);
     }
 
     /**
      * Adds a new product to the inventory.
      * Prompts the user for a product code and an initial stock quantity.
-     * Validates that the product code does not already exist and that the stock quantity is non-negative.
+     * Validates that the product code fits in the journal and does not already exist, and that the stock quantity
+     * is non-negative.
      * Handles invalid input for stock quantity by re-prompting.
      *
-     * @param inventory The current inventory map (product code to quantity).
+     * @param inventory The current inventory (product code to quantity).
      * @param scanner   The Scanner instance used for user input.
+     * @param out       Where prompts and results are printed.
      */
-    private static void addProduct(Map<String, Integer> inventory, Scanner scanner) {
-        System.out.println("Código de producto");
+    static void addProduct(Inventory inventory, Scanner scanner, PrintStream out) {
+        out.println("Código de producto");
         String codigo = scanner.next();
         scanner.nextLine(); // Consume newline
-        if (!inventory.containsKey(codigo)) {
-            System.out.println("Enter initial stock quantity:");
-            while (true) {
+        if (!Inventory.isStorableCode(codigo)) {
+            out.println("Error: El código no puede superar " + Inventory.MAX_CODE_BYTES + " bytes.");
+        } else if (!inventory.contains(codigo)) {
+            out.println("Enter initial stock quantity:");
+            while (scanner.hasNext()) {
                 try {
                     int stock = scanner.nextInt();
                     scanner.nextLine(); // Consume newline
                     if (stock < 0) {
-                        System.out.println("Error: Stock cannot be negative. Please enter a valid stock quantity:");
+                        out.println("Error: Stock cannot be negative. Please enter a valid stock quantity:");
                         // Loop continues for re-prompt
                     } else {
-                        inventory.put(codigo, stock);
-                        System.out.println("Product added successfully."); // Optional: confirmation message
+                        // Another session may have added the same code while this one was prompting
+                        long began = System.nanoTime();
+                        boolean added = inventory.putIfAbsent(codigo, stock);
+                        InventoryMetrics.record(InventoryMetrics.Operation.ALTA, began);
+                        if (added) {
+                            out.println("Product added successfully."); // Optional: confirmation message
+                        } else {
+                            out.println("El código ya existe");
+                        }
                         break; // Exit loop on valid input
                     }
                 } catch (java.util.InputMismatchException e) {
-                    System.out.println("Error: Entrada inválida. Por favor, ingrese un número para el stock:");
+                    out.println("Error: Entrada inválida. Por favor, ingrese un número para el stock:");
                     scanner.nextLine(); // Consume the invalid input
                     // Loop continues for re-prompt
                 }
             }
         } else {
-            System.out.println("El código ya existe");
+            out.println("El código ya existe");
         }
     }
 
+    /**
+     * Removes a product from a map-based inventory.
+     *
+     * @param inventory The current inventory map (product code to quantity).
+     * @param scanner   The Scanner instance used for user input.
+     * @see #removeProduct(Inventory, Scanner, PrintStream)
+     */
+    static void removeProduct(Map<String, Integer> inventory, Scanner scanner) {
+        removeProduct(Inventory.of(inventory), scanner, System.out);
+    }
+
     /**
      * Removes a product from the inventory.
      * Prompts the user for the product code of the item to be removed.
      *
-     * @param inventory The current inventory map (product code to quantity).
+     * @param inventory The current inventory (product code to quantity).
      * @param scanner   The Scanner instance used for user input.
+     * @param out       Where prompts and results are printed.
      */
-    private static void removeProduct(Map<String, Integer> inventory, Scanner scanner) {
-        System.out.println("Código de producto");
+    static void removeProduct(Inventory inventory, Scanner scanner, PrintStream out) {
+        out.println("Código de producto");
         String codigo = scanner.next();
         scanner.nextLine(); // Consume newline
+        long began = System.nanoTime();
         inventory.remove(codigo);
+        InventoryMetrics.record(InventoryMetrics.Operation.BAJA, began);
+    }
+
+    /**
+     * Changes the stock quantity of an existing product in a map-based inventory.
+     *
+     * @param inventory The current inventory map (product code to quantity).
+     * @param scanner   The Scanner instance used for user input.
+     * @see #changeStock(Inventory, CodeIndex, Scanner, PrintStream)
+     */
+    static void changeStock(Map<String, Integer> inventory, Scanner scanner) {
+        changeStock(Inventory.of(inventory), null, scanner, System.out);
     }
 
     /**
@@ -130,71 +772,276 @@ public class Main {
      * Validates that the product code exists and that the new stock quantity is non-negative.
      * Handles invalid input for stock quantity by re-prompting.
      *
-     * @param inventory The current inventory map (product code to quantity).
+     * @param inventory The current inventory (product code to quantity).
+     * @param codeIndex The code index, to suggest codes when the one typed is not found, or null.
      * @param scanner   The Scanner instance used for user input.
+     * @param out       Where prompts and results are printed.
      */
-    private static void changeStock(Map<String, Integer> inventory, Scanner scanner) {
-        System.out.println("Código de producto");
+    static void changeStock(Inventory inventory, CodeIndex codeIndex, Scanner scanner, PrintStream out) {
+        out.println("Código de producto");
         String codigo = scanner.next();
         scanner.nextLine(); // Consume newline
 
-        if (!inventory.containsKey(codigo)) {
-            System.out.println("Error: Product code not found.");
+        if (!inventory.contains(codigo)) {
+            out.println("Error: Product code not found.");
+            suggestCodes(codeIndex, codigo, out);
             return;
         }
 
-        System.out.println("Nuevo stock: ");
-        while (true) {
+        out.println("Nuevo stock: ");
+        while (scanner.hasNext()) {
             try {
                 int stock = scanner.nextInt();
                 scanner.nextLine(); // Consume newline
                 if (stock < 0) {
-                    System.out.println("Error: Stock cannot be negative. Please enter a valid stock quantity:");
+                    out.println("Error: Stock cannot be negative. Please enter a valid stock quantity:");
                     // Loop continues for re-prompt
                 } else {
-                    inventory.put(codigo, stock);
+                    // Another session may have removed the product while this one was prompting
+                    long began = System.nanoTime();
+                    boolean replaced = inventory.replace(codigo, stock);
+                    InventoryMetrics.record(InventoryMetrics.Operation.CAMBIO, began);
+                    if (!replaced) {
+                        out.println("Error: Product code not found.");
+                    }
                     break; // Exit loop on valid input
                 }
             } catch (java.util.InputMismatchException e) {
-                System.out.println("Error: Entrada inválida. Por favor, ingrese un número para el stock:");
+                out.println("Error: Entrada inválida. Por favor, ingrese un número para el stock:");
+                scanner.nextLine(); // Consume the invalid input
+                // Loop continues for re-prompt
+            }
+        }
+    }
+
+    /**
+     * Adds or takes a quantity from the stock of an existing product, for goods received and sold.
+     * Unlike {@link #changeStock(Inventory, CodeIndex, Scanner, PrintStream)} the change is relative, so it is applied
+     * atomically and a sale made at the same time on another terminal is not lost.
+     * A change that would leave the stock below zero is rejected.
+     *
+     * @param inventory The current inventory (product code to quantity).
+     * @param scanner   The Scanner instance used for user input.
+     * @param out       Where prompts and results are printed.
+     */
+    static void adjustStock(Inventory inventory, Scanner scanner, PrintStream out) {
+        out.println("Código de producto");
+        String codigo = scanner.next();
+        scanner.nextLine(); // Consume newline
+
+        out.println("Cantidad (positiva para entradas, negativa para ventas): ");
+        while (scanner.hasNext()) {
+            try {
+                int delta = scanner.nextInt();
+                scanner.nextLine(); // Consume newline
+                long began = System.nanoTime();
+                int stock = inventory.adjustStock(codigo, delta);
+                InventoryMetrics.record(InventoryMetrics.Operation.AJUSTE, began);
+                if (stock == Inventory.NOT_FOUND) {
+                    out.println("Error: Product code not found.");
+                } else if (stock == Inventory.INSUFFICIENT_STOCK) {
+                    out.println("Error: Stock insuficiente. Stock actual: " + inventory.stock(codigo));
+                } else {
+                    out.println("Nuevo stock: " + stock);
+                }
+                break; // Exit loop on valid input
+            } catch (java.util.InputMismatchException e) {
+                out.println("Error: Entrada inválida. Por favor, ingrese un número para la cantidad:");
                 scanner.nextLine(); // Consume the invalid input
                 // Loop continues for re-prompt
+            } catch (IllegalArgumentException e) {
+                out.println("Error: " + e.getMessage());
+                break;
             }
         }
     }
 
     /**
-     * Lists all products currently in the inventory.
+     * Lists all products currently in a map-based inventory.
+     *
+     * @param inventory The current inventory map (product code to quantity).
+     * @see #listStock(Inventory, PrintStream)
+     */
+    static void listStock(Map<String, Integer> inventory) {
+        listStock(Inventory.of(inventory), System.out);
+    }
+
+    /**
+     * Lists all products currently in the inventory, in product code order.
      * If the inventory is empty, it prints a message indicating so.
      * Otherwise, it prints each product's code and stock quantity in a user-friendly format.
      *
-     * @param inventory The current inventory map (product code to quantity).
+     * @param inventory The current inventory (product code to quantity).
+     * @param out       Where the listing is printed.
      */
-    private static void listStock(Map<String, Integer> inventory) {
+    static void listStock(Inventory inventory, PrintStream out) {
         if (inventory.isEmpty()) {
-            System.out.println("No products in stock.");
+            out.println("No products in stock.");
         } else {
-            System.out.println("Current Stock:");
-            for (Map.Entry<String, Integer> entry : inventory.entrySet()) {
-                System.out.println("Product Code: " + entry.getKey() + ", Stock: " + entry.getValue());
+            out.println("Current Stock:");
+            writeListing(StockListing.all(), inventory, out);
+        }
+    }
+
+    /**
+     * Lists part of the inventory one page at a time: products whose code starts with a prefix,
+     * optionally only those with low stock, in code or stock order.
+     *
+     * @param inventory  The current inventory (product code to quantity).
+     * @param stockIndex The stock level index of the inventory, to filter by stock without a scan, or null.
+     * @param scanner    The Scanner instance used for user input.
+     * @param out        Where prompts and results are printed.
+     */
+    static void searchStock(Inventory inventory, StockIndex stockIndex, Scanner scanner, PrintStream out) {
+        out.println("Prefijo del código (vacío para todos):");
+        String prefix = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        out.println("Mostrar solo productos con stock menor que (vacío para no filtrar):");
+        String threshold = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        out.println("¿Ordenar por stock? (s/n):");
+        boolean byStock = scanner.hasNextLine() && scanner.nextLine().trim().equalsIgnoreCase("s");
+
+        StockListing query = StockListing.all().prefix(prefix).limit(PAGE_SIZE).using(stockIndex);
+        if (!threshold.isEmpty()) {
+            try {
+                query.below(Integer.parseInt(threshold));
+            } catch (NumberFormatException e) {
+                out.println("Error: Entrada inválida. Se listan todos los niveles de stock.");
+            }
+        }
+        if (byStock) {
+            query.sortedByStock();
+        }
+        String cursor = writeListing(query, inventory, out);
+        while (cursor != null) {
+            out.println("Enter para ver más, 'q' para terminar:");
+            if (!scanner.hasNextLine() || scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                return;
+            }
+            cursor = writeListing(query.after(cursor), inventory, out);
+        }
+    }
+
+    /**
+     * Lists the products whose code contains a fragment typed by the user, up to a page, using the code index.
+     *
+     * @param inventory The current inventory (product code to quantity).
+     * @param codeIndex The code index of the inventory, or null if it has none.
+     * @param scanner   The Scanner instance used for user input.
+     * @param out       Where prompts and results are printed.
+     */
+    static void findCodes(Inventory inventory, CodeIndex codeIndex, Scanner scanner, PrintStream out) {
+        out.println("Parte del código:");
+        String fragment = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        if (fragment.isEmpty() || codeIndex == null) {
+            out.println("Error: Entrada inválida.");
+            return;
+        }
+        if (fragment.length() < CodeIndex.MIN_FRAGMENT) {
+            out.println("Error: Escriba al menos " + CodeIndex.MIN_FRAGMENT + " caracteres del código.");
+            return;
+        }
+        long began = System.nanoTime();
+        List<String> codes = codeIndex.containing(fragment, PAGE_SIZE);
+        int shown = 0;
+        for (String code : codes) {
+            int stock = inventory.stock(code);
+            if (stock != Inventory.NOT_FOUND) {
+                out.println("Product Code: " + code + ", Stock: " + stock);
+                shown++;
+            }
+        }
+        InventoryMetrics.record(InventoryMetrics.Operation.CONSULTA, began);
+        if (shown == 0) {
+            out.println("Ningún código contiene " + fragment + ".");
+            suggestCodes(codeIndex, fragment, out);
+        }
+    }
+
+    /**
+     * Suggests the existing codes closest to one that was not found, when there is a code index.
+     *
+     * @param codeIndex The code index, or null.
+     * @param codigo    The code that was typed.
+     * @param out       Where the suggestion is printed.
+     */
+    private static void suggestCodes(CodeIndex codeIndex, String codigo, PrintStream out) {
+        if (codeIndex == null) {
+            return;
+        }
+        List<String> parecidos = codeIndex.similar(codigo, 2, 5);
+        if (!parecidos.isEmpty()) {
+            out.println("¿Quiso decir " + String.join(", ", parecidos) + "?");
+        }
+    }
+
+    /**
+     * Writes a page of a listing through one buffer instead of one print call per product.
+     *
+     * @return The cursor for the next page, or null.
+     */
+    private static String writeListing(StockListing query, Inventory inventory, PrintStream out) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, out.charset()), 1 << 16);
+        try {
+            long began = System.nanoTime();
+            String cursor = query.write(inventory, writer);
+            writer.flush(); // Not closed: that would close out
+            InventoryMetrics.record(InventoryMetrics.Operation.LISTADO, began);
+            return cursor;
+        } catch (IOException e) {
+            out.println("Error al listar: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Waits until the changes made so far are durable in the journal, when there is one.
+     * A failure is reported but does not stop the session; the change is kept in memory.
+     *
+     * @param journal The journal, or null.
+     * @param out     Where the error is reported to the user.
+     */
+    private static void syncJournal(InventoryJournal journal, PrintStream out) {
+        if (journal != null) {
+            try {
+                journal.sync();
+            } catch (IOException e) {
+                out.println("Error al registrar el cambio: " + e.getMessage());
             }
         }
     }
 
     /**
      * Saves the current inventory data to a specified file.
-     * Uses object serialization to store the inventory map.
+     * Uses the binary snapshot format (see {@link InventorySnapshot}).
      *
      * @param file      The file to which the inventory data will be saved.
      * @param inventory The current inventory map (product code to quantity) to be saved.
      */
-    private static void saveInventory(File file, Map<String, Integer> inventory) {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
-            out.writeObject(inventory);
+    static void saveInventory(File file, Map<String, Integer> inventory) {
+        try {
+            writeSnapshot(file, Inventory.of(inventory));
         } catch (IOException e) {
             System.err.println("Error al guardar los datos: " + e.getMessage());
         }
     }
+
+    /**
+     * Writes a full snapshot of the inventory, propagating any I/O error.
+     * Used by {@link #saveInventory} and by journal compaction.
+     *
+     * @param file      The file to which the inventory data will be saved.
+     * @param inventory The inventory to be saved.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    static void writeSnapshot(File file, Inventory inventory) throws IOException {
+        InventorySnapshot.write(file, inventory);
+        try {
+            CodeIndex.write(file, inventory);
+        } catch (IOException e) {
+            // Only costs time: the next start rebuilds the index from the inventory
+            System.err.println("No se pudo guardar el índice de códigos: " + e.getMessage());
+        }
+    }
 }
 
 //Prueba con pull request
\ No newline at end of file
@@ -177,6 +177,34 @@ public class MainTest {
         assertTrue(outContent.toString().contains("Error: Stock cannot be negative."), "Error message for negative stock.");
     }
 
+    // --- adjustStock Tests ---
+
+    @Test
+    public void testAdjustStock_saleAndReceipt() {
+        inventory.put("P401", 20);
+        Main.adjustStock(Inventory.of(inventory), createScanner("P401\n-5\n"), System.out);
+        Main.adjustStock(Inventory.of(inventory), createScanner("P401\n12\n"), System.out);
+        assertEquals(27, inventory.get("P401"));
+        assertTrue(outContent.toString().contains("Nuevo stock: 27"), "The resulting stock should be shown.");
+    }
+
+    @Test
+    public void testAdjustStock_insufficientStockIsRejected() {
+        inventory.put("P402", 3);
+        Main.adjustStock(Inventory.of(inventory), createScanner("P402\n-4\n"), System.out);
+        assertEquals(3, inventory.get("P402"), "Stock should not go below zero.");
+        assertTrue(outContent.toString().contains("Error: Stock insuficiente."),
+                "Error message for insufficient stock.");
+    }
+
+    @Test
+    public void testAdjustStock_nonExistentProduct() {
+        Main.adjustStock(Inventory.of(inventory), createScanner("P999\n5\n"), System.out);
+        assertTrue(inventory.isEmpty(), "Inventory should remain empty.");
+        assertTrue(outContent.toString().contains("Error: Product code not found."),
+                "Error message for not found product.");
+    }
+
     // --- listStock Tests ---
 
     @Test
@@ -208,7 +236,8 @@ public class MainTest {
         Path tempFile = tempDir.resolve("testInventory.dat");
         
         Main.saveInventory(tempFile.toFile(), inventory);
-        assertTrue(Files.exists(tempFile), "Inventory file should have been created by saveInventory.");
+        assertTrue(InventorySnapshot.current(tempFile.toFile()).exists(),
+                "Inventory file should have been created by saveInventory.");
 
         Map<String, Integer> loadedInventory = Main.loadInventory(tempFile.toFile());
         assertNotNull(loadedInventory, "Loaded inventory should not be null.");
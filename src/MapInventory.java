@@ -0,0 +1,83 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * {@link Inventory} view of a {@code Map<String, Integer>}, such as a {@link TreeMap}.
+ */
+public class MapInventory extends AbstractInventory {
+    private final Map<String, Integer> map;
+
+    public MapInventory(Map<String, Integer> map) {
+        this.map = map;
+    }
+
+    /**
+     * @return The adapted map.
+     */
+    public Map<String, Integer> map() {
+        return map;
+    }
+
+    @Override
+    public int stock(String code) {
+        Integer stock = map.get(code);
+        return stock == null ? NOT_FOUND : stock;
+    }
+
+    @Override
+    public boolean contains(String code) {
+        return map.containsKey(code);
+    }
+
+    @Override
+    public void put(String code, int stock) {
+        Inventory.checkCode(code);
+        Integer old = map.put(code, stock);
+        fireChange(code, old == null ? NOT_FOUND : old, stock);
+    }
+
+    @Override
+    public boolean remove(String code) {
+        Integer old = map.remove(code);
+        if (old == null) {
+            return false;
+        }
+        fireChange(code, old, NOT_FOUND);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEachSorted(StockConsumer action) {
+        boolean sorted = map instanceof SortedMap<String, Integer> s && s.comparator() == null;
+        for (Map.Entry<String, Integer> entry : (sorted ? map : new TreeMap<>(map)).entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void forEachFrom(String from, boolean inclusive, StockVisitor visitor) {
+        NavigableMap<String, Integer> sorted = map instanceof NavigableMap<String, Integer> n && n.comparator() == null
+                ? n : new TreeMap<>(map);
+        Iterator<Map.Entry<String, Integer>> entries =
+                (from == null ? sorted : sorted.tailMap(from, inclusive)).entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Integer> entry = entries.next();
+            if (!visitor.visit(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Inventory copy() {
+        return new MapInventory(new TreeMap<>(map));
+    }
+}
@@ -0,0 +1,450 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Read-mostly inventory backed by a memory-mapped snapshot file (see {@link InventorySnapshot}).
+ * Opening only reads the header and footer, so the menu comes up immediately whatever the catalog size.
+ * Lookups binary-search the sparse key index and then scan one block of the mapped entries.
+ *
+ * <p>Only modified entries live on the heap, in an overlay that also records removals. When the journal writes
+ * a new snapshot of this inventory to its file ({@link #snapshotWritten}), the new generation is mapped in place of
+ * the old one and the overlay keeps only the changes made since the copy, so the heap does not grow with the number
+ * of products changed since startup. Entries iterate in product code order, merging the mapped entries with the
+ * overlay.
+ *
+ * <p>The mapped region is only read with absolute gets, so a copy can be iterated by the compaction thread while
+ * the live inventory keeps serving lookups. Every method is synchronized, which suits the menu and the command
+ * mode; for many terminals changing stock at once, use {@link ConcurrentInventory}.
+ */
+public class MappedInventory extends AbstractInventory {
+    private static final int REMOVED = NOT_FOUND;
+
+    private final File file;
+    private MappedByteBuffer data;
+    private int indexOffset;
+    private int indexCount;
+    private int fileLength;
+    private final TreeMap<String, Integer> overlay;
+    private int size;
+    private volatile boolean verified;
+
+    private MappedInventory(File file, Base base, TreeMap<String, Integer> overlay, int size) {
+        this.file = file;
+        this.overlay = overlay;
+        this.size = size;
+        setBase(base);
+    }
+
+    /**
+     * A mapped snapshot file and where its index starts.
+     */
+    private record Base(MappedByteBuffer data, int indexOffset, int indexCount, int count) {
+    }
+
+    /**
+     * Maps a version 2 snapshot file. Only the header and footer are validated here;
+     * {@link #verify()} checks the full checksum.
+     *
+     * @param file The snapshot file.
+     * @return An inventory whose entries are read lazily from the file.
+     * @throws InventorySnapshot.CorruptSnapshotException If the header or footer is invalid.
+     * @throws IOException                                If the file cannot be mapped.
+     */
+    public static MappedInventory open(File file) throws IOException {
+        Base base = map(file);
+        return new MappedInventory(file, base, new TreeMap<>(), base.count());
+    }
+
+    /**
+     * Maps the current generation of a snapshot file (see {@link InventorySnapshot#current}). Later snapshots go
+     * to new generations, so the mapped file is never replaced while this mapping is in use.
+     */
+    private static Base map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(InventorySnapshot.current(file).toPath(),
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (InventorySnapshot.readVersion(channel, size) != InventorySnapshot.VERSION) {
+                throw new InventorySnapshot.CorruptSnapshotException("Only version " + InventorySnapshot.VERSION
+                        + " snapshots can be mapped");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshots larger than 2 GB cannot be mapped");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int footer = (int) size - InventorySnapshot.FOOTER_LENGTH;
+            if (footer < InventorySnapshot.HEADER_LENGTH) {
+                throw new InventorySnapshot.CorruptSnapshotException("Snapshot too short: " + size + " bytes");
+            }
+            long dataEnd = data.getLong(footer);
+            int indexCount = data.getInt(footer + 8);
+            int count = data.getInt(InventorySnapshot.MAGIC.length + 1);
+            if (dataEnd < InventorySnapshot.HEADER_LENGTH || indexCount < 0 || count < 0
+                    || dataEnd + 4L * indexCount != footer
+                    || indexCount
+                    != (count + InventorySnapshot.INDEX_INTERVAL - 1) / InventorySnapshot.INDEX_INTERVAL) {
+                throw new InventorySnapshot.CorruptSnapshotException("Invalid snapshot footer");
+            }
+            return new Base(data, (int) dataEnd, indexCount, count);
+        }
+    }
+
+    private void setBase(Base base) {
+        this.data = base.data();
+        this.indexOffset = base.indexOffset();
+        this.indexCount = base.indexCount();
+        this.fileLength = base.data().capacity();
+    }
+
+    /**
+     * Returns a copy that shares the mapped base and owns a copy of the overlay.
+     * Costs time proportional to the number of modified entries, not to the catalog size.
+     *
+     * @return A point-in-time copy of this inventory, without listeners.
+     */
+    @Override
+    public synchronized MappedInventory copy() {
+        MappedInventory copy = new MappedInventory(file, new Base(data, indexOffset, indexCount, size),
+                new TreeMap<>(overlay), size);
+        copy.verified = verified;
+        return copy;
+    }
+
+    /**
+     * Maps the snapshot just written from a copy of this inventory in place of the current file. The new file
+     * differs from the mapped one only in the codes of the copy's overlay, so only those and the codes changed
+     * since the copy are looked at: each keeps an overlay entry only if its stock now differs from the new file.
+     * Snapshots of other files, or of copies taken before an earlier remap, are ignored.
+     *
+     * @param snapshotFile The snapshot file that was written.
+     * @param copy         The copy it was written from.
+     * @throws IOException If the new file cannot be mapped; the current mapping is kept.
+     */
+    @Override
+    public void snapshotWritten(File snapshotFile, Inventory copy) throws IOException {
+        if (!(copy instanceof MappedInventory written)
+                || !snapshotFile.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+            return;
+        }
+        Base base = map(snapshotFile); // Outside the lock: reads only the header and footer
+        synchronized (this) {
+            if (written.data != data) {
+                return;
+            }
+            Set<String> changed = new HashSet<>(written.overlay.keySet());
+            changed.addAll(overlay.keySet());
+            Map<String, Integer> current = new HashMap<>();
+            for (String code : changed) {
+                current.put(code, stockOf(code));
+            }
+            setBase(base);
+            verified = false;
+            overlay.clear();
+            for (Map.Entry<String, Integer> entry : current.entrySet()) {
+                if (baseStock(entry.getKey()) != entry.getValue()) {
+                    overlay.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies the checksum of the whole mapped file. The result is remembered.
+     *
+     * @throws InventorySnapshot.CorruptSnapshotException If the checksum does not match.
+     */
+    public void verify() throws InventorySnapshot.CorruptSnapshotException {
+        if (verified) {
+            return;
+        }
+        MappedByteBuffer mapped;
+        int length;
+        synchronized (this) {
+            mapped = data;
+            length = fileLength;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(mapped.duplicate().position(0).limit(length - 4));
+        if ((int) crc.getValue() != mapped.getInt(length - 4)) {
+            throw new InventorySnapshot.CorruptSnapshotException("Checksum mismatch in " + file);
+        }
+        synchronized (this) {
+            verified = mapped == data;
+        }
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+        verify();
+    }
+
+    /**
+     * Number of entries currently held on the heap (modified or removed since the file was written).
+     *
+     * @return The overlay size.
+     */
+    public synchronized int modifiedCount() {
+        return overlay.size();
+    }
+
+    /**
+     * Tells whether a code was changed or removed since the file was written, so its entry lives on the heap.
+     *
+     * @param code The product code.
+     * @return true if the code is in the overlay.
+     */
+    public synchronized boolean isModified(String code) {
+        return overlay.containsKey(code);
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int stock(String code) {
+        return stockOf(code);
+    }
+
+    @Override
+    public synchronized void put(String code, int stock) {
+        Inventory.checkCode(code);
+        if (stock < 0) {
+            throw new IllegalArgumentException("Stock must be a non-negative number");
+        }
+        int old = stockOf(code);
+        overlay.put(code, stock);
+        if (old == REMOVED) {
+            size++;
+        }
+        fireChange(code, old, stock);
+    }
+
+    @Override
+    public synchronized boolean putIfAbsent(String code, int stock) {
+        return super.putIfAbsent(code, stock);
+    }
+
+    @Override
+    public synchronized boolean replace(String code, int stock) {
+        return super.replace(code, stock);
+    }
+
+    @Override
+    public synchronized int adjustStock(String code, int delta) {
+        return super.adjustStock(code, delta);
+    }
+
+    @Override
+    public synchronized boolean remove(String code) {
+        int old = stockOf(code);
+        if (old == REMOVED) {
+            return false;
+        }
+        if (baseStock(code) != REMOVED) {
+            overlay.put(code, REMOVED);
+        } else {
+            overlay.remove(code);
+        }
+        size--;
+        fireChange(code, old, NOT_FOUND);
+        return true;
+    }
+
+    @Override
+    public synchronized void forEachSorted(StockConsumer action) {
+        MergingIterator entries = new MergingIterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Integer> entry = entries.next();
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Seeks with the sparse index, so the cost does not depend on how many entries come before the start.
+     */
+    @Override
+    public synchronized void forEachFrom(String from, boolean inclusive, StockVisitor visitor) {
+        MergingIterator entries = from == null ? new MergingIterator() : new MergingIterator(from, inclusive);
+        while (entries.hasNext()) {
+            Map.Entry<String, Integer> entry = entries.next();
+            if (!visitor.visit(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Iterates the entries in code order as they are stored, from a code on, for merging this inventory with
+     * others. Only for an inventory that is not changed while the iterator is in use, such as a working file
+     * that is only read.
+     *
+     * @param from      The code to start at, or null for the first entry.
+     * @param inclusive Whether an entry with exactly the code from is included.
+     * @return An iterator over the entries from that code on.
+     */
+    Iterator<Map.Entry<String, Integer>> entries(String from, boolean inclusive) {
+        return from == null ? new MergingIterator() : new MergingIterator(from, inclusive);
+    }
+
+    private int stockOf(String code) {
+        Integer modified = overlay.get(code);
+        return modified != null ? modified : baseStock(code);
+    }
+
+    /**
+     * Offset of the indexed entry at or before a code: the first entry of the block that would hold it,
+     * or the first entry of the file if the code sorts before every indexed entry.
+     */
+    private int blockStart(String code) {
+        int lo = 0;
+        int hi = indexCount - 1;
+        int block = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int offset = data.getInt(indexOffset + 4 * mid);
+            int length = CodeBytes.varintAt(data, offset);
+            if (CodeBytes.compare(data, offset + CodeBytes.varintSize(length), length, code) <= 0) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return block < 0 ? InventorySnapshot.HEADER_LENGTH : data.getInt(indexOffset + 4 * block);
+    }
+
+    /**
+     * Looks a code up in the mapped file: binary search over the sparse index, then a scan of one block.
+     */
+    private int baseStock(String code) {
+        int lo = 0;
+        int hi = indexCount - 1;
+        int block = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int offset = data.getInt(indexOffset + 4 * mid);
+            int length = CodeBytes.varintAt(data, offset);
+            int cmp = CodeBytes.compare(data, offset + CodeBytes.varintSize(length), length, code);
+            if (cmp == 0) {
+                return CodeBytes.varintAt(data, offset + CodeBytes.varintSize(length) + length);
+            } else if (cmp < 0) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return REMOVED;
+        }
+        int offset = data.getInt(indexOffset + 4 * block);
+        int end = block + 1 < indexCount ? data.getInt(indexOffset + 4 * (block + 1)) : indexOffset;
+        while (offset < end) {
+            int length = CodeBytes.varintAt(data, offset);
+            int keyStart = offset + CodeBytes.varintSize(length);
+            int cmp = CodeBytes.compare(data, keyStart, length, code);
+            int stock = CodeBytes.varintAt(data, keyStart + length);
+            if (cmp == 0) {
+                return stock;
+            } else if (cmp > 0) {
+                return REMOVED;
+            }
+            offset = keyStart + length + CodeBytes.varintSize(stock);
+        }
+        return REMOVED;
+    }
+
+    /**
+     * Walks the mapped entries and the overlay together in code order; the overlay wins on equal codes.
+     */
+    private class MergingIterator implements Iterator<Map.Entry<String, Integer>> {
+        private Iterator<Map.Entry<String, Integer>> modified = overlay.entrySet().iterator();
+        private int offset = InventorySnapshot.HEADER_LENGTH;
+        private Map.Entry<String, Integer> nextBase;
+        private Map.Entry<String, Integer> nextModified;
+        private Map.Entry<String, Integer> next;
+
+        MergingIterator() {
+            advanceBase();
+            advanceModified();
+            advance();
+        }
+
+        MergingIterator(String from, boolean inclusive) {
+            modified = overlay.tailMap(from, inclusive).entrySet().iterator();
+            offset = blockStart(from);
+            int skip = inclusive ? 0 : 1;
+            while (offset < indexOffset) {
+                int length = CodeBytes.varintAt(data, offset);
+                int keyStart = offset + CodeBytes.varintSize(length);
+                if (CodeBytes.compare(data, keyStart, length, from) >= skip) {
+                    break;
+                }
+                int stock = CodeBytes.varintAt(data, keyStart + length);
+                offset = keyStart + length + CodeBytes.varintSize(stock);
+            }
+            advanceBase();
+            advanceModified();
+            advance();
+        }
+
+        private void advanceBase() {
+            if (offset >= indexOffset) {
+                nextBase = null;
+                return;
+            }
+            int length = CodeBytes.varintAt(data, offset);
+            int keyStart = offset + CodeBytes.varintSize(length);
+            byte[] key = new byte[length];
+            data.get(keyStart, key);
+            int stock = CodeBytes.varintAt(data, keyStart + length);
+            nextBase = new AbstractMap.SimpleImmutableEntry<>(new String(key, StandardCharsets.UTF_8), stock);
+            offset = keyStart + length + CodeBytes.varintSize(stock);
+        }
+
+        private void advanceModified() {
+            nextModified = modified.hasNext() ? modified.next() : null;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && (nextBase != null || nextModified != null)) {
+                int cmp = nextBase == null ? 1 : nextModified == null ? -1
+                        : nextBase.getKey().compareTo(nextModified.getKey());
+                if (cmp < 0) {
+                    next = nextBase;
+                    advanceBase();
+                } else {
+                    if (nextModified.getValue() != REMOVED) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(nextModified);
+                    }
+                    if (cmp == 0) {
+                        advanceBase();
+                    }
+                    advanceModified();
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Integer> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Integer> result = next;
+            advance();
+            return result;
+        }
+    }
+}
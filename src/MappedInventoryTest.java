@@ -0,0 +1,135 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedInventoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private File file;
+    private TreeMap<String, Integer> expected;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = tempDir.resolve("existencias.dat").toFile();
+        expected = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.put(String.format("P%05d", i * 2), i); // Even codes only, so odd codes are misses
+        }
+        expected.put("ÑANDÚ-1", 7);
+        InventorySnapshot.write(file, expected);
+    }
+
+    @Test
+    public void testLookups_hitAndMissAcrossBlocks() throws IOException {
+        MappedInventory inventory = MappedInventory.open(file);
+        assertEquals(expected.size(), inventory.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), inventory.stock(entry.getKey()), "Lookup of " + entry.getKey());
+        }
+        assertFalse(inventory.contains("P00001"), "Odd codes should not be found.");
+        assertFalse(inventory.contains("A"), "Codes before the first entry should not be found.");
+        assertFalse(inventory.contains("Z"), "Codes after the last entry should not be found.");
+        assertEquals(0, inventory.modifiedCount(), "Lookups should not load anything onto the heap.");
+    }
+
+    @Test
+    public void testChanges_liveInOverlayAndIterateInOrder() throws IOException {
+        MappedInventory inventory = MappedInventory.open(file);
+        inventory.put("P00001", 11);
+        inventory.put("P00002", 22);
+        inventory.remove("P00004");
+        expected.put("P00001", 11);
+        expected.put("P00002", 22);
+        expected.remove("P00004");
+
+        assertEquals(expected.size(), inventory.size());
+        assertEquals(3, inventory.modifiedCount(), "Only modified entries should be on the heap.");
+        List<String> codes = new ArrayList<>();
+        inventory.forEachSorted((code, stock) -> codes.add(code));
+        assertEquals(new ArrayList<>(expected.keySet()), codes, "Entries should iterate in code order.");
+        assertEquals(expected, copyOf(inventory));
+        List<String> from = new ArrayList<>();
+        inventory.forEachFrom("P00001", false, (code, stock) -> from.add(code) && from.size() < 3);
+        assertEquals(List.of("P00002", "P00006", "P00008"), from, "Seeking should merge the overlay too.");
+    }
+
+    @Test
+    public void testFrozenCopy_isNotAffectedByLaterChanges() throws IOException {
+        MappedInventory inventory = MappedInventory.open(file);
+        inventory.put("P00002", 99);
+        MappedInventory copy = inventory.copy();
+        inventory.put("P00002", 5);
+        inventory.remove("P00000");
+
+        assertEquals(99, copy.stock("P00002"));
+        assertTrue(copy.contains("P00000"));
+        assertEquals(expected.size(), copy.size());
+    }
+
+    @Test
+    public void testSave_mergesOverlayIntoNewSnapshot() throws IOException {
+        MappedInventory inventory = MappedInventory.open(file);
+        inventory.put("P99999", 1);
+        inventory.remove("P00000");
+        expected.put("P99999", 1);
+        expected.remove("P00000");
+
+        Main.writeSnapshot(file, inventory);
+
+        assertEquals(expected, InventorySnapshot.read(file), "The merged snapshot should match the live inventory.");
+        assertEquals(expected, copyOf(MappedInventory.open(file)));
+    }
+
+    @Test
+    public void testCompaction_remapsTheNewSnapshotAndShrinksTheOverlay() throws IOException {
+        MappedInventory inventory = MappedInventory.open(file);
+        try (InventoryJournal journal = InventoryJournal.open(file, inventory, Main::writeSnapshot, 1)) {
+            for (int i = 0; i < 100; i++) {
+                inventory.put(String.format("P%05d", i * 2), 500 + i);
+                expected.put(String.format("P%05d", i * 2), 500 + i);
+            }
+            inventory.remove("P00202");
+            inventory.put("NUEVO", 3);
+            expected.remove("P00202");
+            expected.put("NUEVO", 3);
+            journal.sync(); // Rotates the log and compacts it into a new snapshot
+        }
+
+        assertTrue(inventory.modifiedCount() < 10,
+                "Changes folded into the new snapshot should leave the heap: " + inventory.modifiedCount());
+        assertEquals(expected, copyOf(inventory));
+        assertEquals(expected.size(), inventory.size());
+        inventory.verify();
+        inventory.put("P00000", 1);
+        assertEquals(1, inventory.stock("P00000"), "The remapped inventory should keep taking changes.");
+    }
+
+    @Test
+    public void testVerify_detectsDamagedEntries() throws IOException {
+        Path current = InventorySnapshot.current(file).toPath();
+        byte[] bytes = Files.readAllBytes(current);
+        bytes[InventorySnapshot.HEADER_LENGTH + 2] ^= 0x01;
+        Files.write(current, bytes);
+
+        MappedInventory inventory = MappedInventory.open(file);
+        assertThrows(InventorySnapshot.CorruptSnapshotException.class, inventory::verify);
+    }
+
+    private static Map<String, Integer> copyOf(Inventory inventory) {
+        Map<String, Integer> copy = new TreeMap<>();
+        inventory.forEachSorted(copy::put);
+        return copy;
+    }
+}
@@ -0,0 +1,433 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stream of stock changes, for consumers such as reorder alerts, an audit file or a replica.
+ *
+ * <p>The stream is a {@link Inventory.ChangeListener}: every change applied to the inventory (alta, baja, cambio or
+ * entrada/venta de stock, from the menu, the server or the command mode) becomes an {@link Event} with the next
+ * sequence number. Events go into a fixed-size ring buffer without locks: a producer claims a sequence number with
+ * one atomic increment and publishes the event with a compare-and-set that never replaces a newer event, so a
+ * producer held up between the two cannot overwrite the change that lapped it, and publishing never waits.
+ *
+ * <p>Each {@link Subscriber} has its own thread that takes the published events in order, in batches of up to a
+ * given size, and hands each batch over in one call. Subscribers never hold producers back: a subscriber that
+ * falls a whole ring behind has lost events and is dropped, and may subscribe again from the sequence it has
+ * processed, as long as the ring still holds it. The last {@code capacity} events can be replayed that way.
+ * A subscriber that would rather have a gap than stop, such as the audit file, is subscribed with
+ * {@link #subscribeResuming}: it is told the events it lost and carries on half a ring ahead of the oldest one
+ * still held, so it has room to catch up before producers lap it again.
+ */
+public final class StockEventStream implements Inventory.ChangeListener, Closeable {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * One change.
+     *
+     * @param sequence The position of the change in the stream, from 0.
+     * @param code     The product code.
+     * @param oldStock The stock before, or {@link Inventory#NOT_FOUND} for an alta.
+     * @param newStock The stock after, or {@link Inventory#NOT_FOUND} for a baja.
+     */
+    public record Event(long sequence, String code, int oldStock, int newStock) {
+    }
+
+    /**
+     * Consumes events on the subscription's own thread.
+     */
+    public interface Subscriber {
+        /**
+         * Handles a batch of consecutive events. An exception ends the subscription.
+         *
+         * @param batch The events, in sequence order; not to be kept after returning.
+         */
+        void onEvents(List<Event> batch) throws Exception;
+
+        /**
+         * Told that the subscription fell a whole ring behind and was dropped.
+         *
+         * @param missed The sequence number of the first event it did not receive.
+         */
+        default void onDropped(long missed) {
+        }
+
+        /**
+         * Told, on a subscription that resumes after falling behind, that the events from {@code missed} up to
+         * {@code resumed} (exclusive) were lost; the next batch starts at {@code resumed}. An exception ends the
+         * subscription.
+         *
+         * @param missed  The sequence number of the first event it did not receive.
+         * @param resumed The sequence number it carries on from.
+         */
+        default void onGap(long missed, long resumed) throws Exception {
+        }
+    }
+
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param capacity The events kept for slow subscribers and replay; a power of two.
+     */
+    public StockEventStream(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    public StockEventStream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a stream that publishes the changes of an inventory from now on.
+     *
+     * @param inventory The inventory.
+     * @param capacity  The events kept for slow subscribers and replay; a power of two.
+     * @return The stream.
+     */
+    public static StockEventStream attach(Inventory inventory, int capacity) {
+        StockEventStream stream = new StockEventStream(capacity);
+        inventory.addListener(stream);
+        return stream;
+    }
+
+    @Override
+    public void onChange(String code, int oldStock, int newStock) {
+        long sequence = next.getAndIncrement();
+        Event event = new Event(sequence, code, oldStock, newStock);
+        int slot = (int) sequence & mask;
+        while (true) {
+            Event held = ring.get(slot);
+            if (held != null && held.sequence() > sequence) {
+                return; // Lapped while claiming: the newer event stays, and readers of this one see an overrun
+            }
+            if (ring.compareAndSet(slot, held, event)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The sequence number the next change will get.
+     */
+    public long nextSequence() {
+        return next.get();
+    }
+
+    /**
+     * @return The oldest sequence number a new subscription can start from.
+     */
+    public long oldestRetained() {
+        return Math.max(0, next.get() - ring.length());
+    }
+
+    /**
+     * Subscribes to the events from now on.
+     *
+     * @see #subscribe(String, Subscriber, long, int)
+     */
+    public Subscription subscribe(String name, Subscriber subscriber, int maxBatch) {
+        return subscribe(name, subscriber, nextSequence(), maxBatch);
+    }
+
+    /**
+     * Subscribes to the events from a sequence number on, replaying those already published.
+     *
+     * @param name       Names the subscription's thread and its error messages.
+     * @param subscriber The consumer.
+     * @param from       The first sequence number to deliver.
+     * @param maxBatch   The most events handed over in one call.
+     * @return The running subscription.
+     * @throws IllegalArgumentException If the ring no longer holds {@code from}, or it is not published yet.
+     */
+    public Subscription subscribe(String name, Subscriber subscriber, long from, int maxBatch) {
+        return subscribe(name, subscriber, from, maxBatch, false);
+    }
+
+    /**
+     * Subscribes to the events from now on, and resumes the subscriber instead of dropping it whenever it falls a
+     * whole ring behind: it is told the gap through {@link Subscriber#onGap} and carries on half a ring ahead of
+     * the oldest event still held, or from the newest, so it is not lapped again straight away.
+     *
+     * @param name       Names the subscription's thread and its error messages.
+     * @param subscriber The consumer.
+     * @param maxBatch   The most events handed over in one call.
+     * @return The running subscription; dropped only if the subscriber fails.
+     */
+    public Subscription subscribeResuming(String name, Subscriber subscriber, int maxBatch) {
+        return subscribe(name, subscriber, nextSequence(), maxBatch, true);
+    }
+
+    private Subscription subscribe(String name, Subscriber subscriber, long from, int maxBatch, boolean resuming) {
+        if (from < oldestRetained() || from > nextSequence()) {
+            throw new IllegalArgumentException("Sequence " + from + " is not retained; the stream holds "
+                    + oldestRetained() + " to " + nextSequence());
+        }
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        Subscription subscription = new Subscription(name, subscriber, from, maxBatch, resuming);
+        subscriptions.add(subscription);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /**
+     * Lets every subscription take the events published so far, then stops them.
+     */
+    @Override
+    public void close() {
+        for (Subscription subscription : subscriptions) {
+            subscription.closing = true;
+            LockSupport.unpark(subscription.thread);
+        }
+        for (Subscription subscription : subscriptions) {
+            try {
+                subscription.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A running subscriber and its position in the stream.
+     */
+    public final class Subscription implements Closeable {
+        private final String name;
+        private final Subscriber subscriber;
+        private final int maxBatch;
+        private final boolean resuming;
+        private final Thread thread;
+        private volatile long position;
+        private volatile boolean closing;
+        private volatile boolean dropped;
+
+        private Subscription(String name, Subscriber subscriber, long from, int maxBatch, boolean resuming) {
+            this.name = name;
+            this.subscriber = subscriber;
+            this.maxBatch = maxBatch;
+            this.resuming = resuming;
+            this.position = from;
+            this.thread = Thread.ofPlatform().name("stock-events-" + name).daemon().unstarted(this::run);
+        }
+
+        /**
+         * @return The sequence number of the next event to deliver; every earlier one was handled.
+         */
+        public long position() {
+            return position;
+        }
+
+        /**
+         * @return Whether the subscription was dropped for falling behind or failing.
+         */
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        /**
+         * Waits until every event published before the call has been handled, or the subscription ended.
+         *
+         * @param timeout The longest wait.
+         * @return Whether the events were handled in time.
+         */
+        public boolean awaitCaughtUp(Duration timeout) throws InterruptedException {
+            long target = nextSequence();
+            long deadline = System.nanoTime() + timeout.toNanos();
+            while (position < target && thread.isAlive()) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                Thread.sleep(1);
+            }
+            return position >= target;
+        }
+
+        /**
+         * Stops after the events published so far are handled. Called from the subscriber itself, it does not wait.
+         */
+        @Override
+        public void close() {
+            closing = true;
+            LockSupport.unpark(thread);
+            if (Thread.currentThread() == thread) {
+                return;
+            }
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            List<Event> batch = new ArrayList<>(maxBatch);
+            long idle = 0;
+            try {
+                while (true) {
+                    long cursor = position;
+                    long published = next.get();
+                    boolean overrun = published - cursor > ring.length();
+                    while (!overrun && cursor < published && batch.size() < maxBatch) {
+                        Event event = ring.get((int) cursor & mask);
+                        if (event == null || event.sequence() < cursor) {
+                            break; // Claimed but not yet published
+                        }
+                        overrun = event.sequence() > cursor; // Overwritten before it was read
+                        if (!overrun) {
+                            batch.add(event);
+                            cursor++;
+                        }
+                    }
+                    if (overrun && !resuming) {
+                        drop(cursor);
+                        return;
+                    } else if (overrun) {
+                        batch.clear();
+                        resume(position);
+                    } else if (!batch.isEmpty()) {
+                        subscriber.onEvents(batch);
+                        batch.clear();
+                        position = cursor;
+                        idle = 0;
+                    } else if (closing && cursor >= next.get()) {
+                        return;
+                    } else {
+                        // Nothing to do: back off up to a millisecond instead of signalling from producers
+                        idle = Math.min(MAX_IDLE_NANOS, Math.max(1000, idle * 2));
+                        LockSupport.parkNanos(idle);
+                    }
+                }
+            } catch (Exception e) {
+                dropped = true;
+                InventoryMetrics.failed(InventoryMetrics.Failure.SUSCRIPTOR);
+                System.err.println("Error en el suscriptor de cambios " + name + ": " + e.getMessage());
+            } finally {
+                subscriptions.remove(this);
+            }
+        }
+
+        private void drop(long missed) {
+            dropped = true;
+            InventoryMetrics.failed(InventoryMetrics.Failure.SUSCRIPTOR);
+            System.err.println("El suscriptor de cambios " + name + " se quedó atrás y se desconecta en el evento "
+                    + missed + ".");
+            subscriber.onDropped(missed);
+        }
+
+        private void resume(long missed) throws Exception {
+            long resumed = Math.min(next.get(), oldestRetained() + ring.length() / 2);
+            InventoryMetrics.failed(InventoryMetrics.Failure.SUSCRIPTOR);
+            System.err.println("El suscriptor de cambios " + name + " se quedó atrás: pierde los eventos " + missed
+                    + " a " + (resumed - 1) + " y sigue en el " + resumed + ".");
+            subscriber.onGap(missed, resumed);
+            position = resumed;
+        }
+    }
+
+    /**
+     * A subscriber that writes a line to a file when a product's stock drops to or below a threshold, for
+     * reordering. Each batch is written and flushed at once.
+     *
+     * @param file      The alerts file, appended to.
+     * @param threshold The stock at or below which a product should be reordered.
+     * @return The subscriber.
+     */
+    public static Subscriber reorderAlerts(Path file, int threshold) {
+        return batch -> {
+            StringBuilder lines = new StringBuilder();
+            for (Event event : batch) {
+                boolean wasAbove = event.oldStock() == Inventory.NOT_FOUND || event.oldStock() > threshold;
+                if (event.newStock() != Inventory.NOT_FOUND && event.newStock() <= threshold && wasAbove) {
+                    lines.append(Instant.now()).append(" REPONER ").append(event.code())
+                            .append(" stock ").append(event.newStock()).append('\n');
+                }
+            }
+            if (!lines.isEmpty()) {
+                Files.writeString(file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+            }
+        };
+    }
+
+    /**
+     * A subscriber that appends every event to an audit file as a tab-separated line:
+     * {@code sequence, time, code, old stock, new stock}, with {@code -} for a missing stock. Each batch is written
+     * with one write and one fsync. Subscribed with {@link #subscribeResuming}, it marks each gap with a line
+     * {@code HUECO, time, first lost sequence, sequence it resumes at}.
+     *
+     * @param file The audit file, appended to.
+     * @return The subscriber.
+     */
+    public static Subscriber auditLog(Path file) {
+        return new Subscriber() {
+            @Override
+            public void onEvents(List<Event> batch) throws IOException {
+                StringBuilder lines = new StringBuilder();
+                String time = Instant.now().toString();
+                for (Event event : batch) {
+                    lines.append(event.sequence()).append('\t').append(time).append('\t').append(event.code())
+                            .append('\t').append(stockText(event.oldStock()))
+                            .append('\t').append(stockText(event.newStock())).append('\n');
+                }
+                appendSynced(file, lines);
+            }
+
+            @Override
+            public void onGap(long missed, long resumed) throws IOException {
+                appendSynced(file, "HUECO\t" + Instant.now() + '\t' + missed + '\t' + resumed + '\n');
+            }
+        };
+    }
+
+    private static void appendSynced(Path file, CharSequence lines) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file.toFile(), true)) {
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    private static String stockText(int stock) {
+        return stock == Inventory.NOT_FOUND ? "-" : Integer.toString(stock);
+    }
+
+    /**
+     * A subscriber that applies every event to another inventory, such as an in-memory read copy.
+     *
+     * @param replica The inventory to keep in step; changed only by this subscriber.
+     * @return The subscriber.
+     */
+    public static Subscriber replicaOf(Inventory replica) {
+        return batch -> {
+            for (Event event : batch) {
+                if (event.newStock() == Inventory.NOT_FOUND) {
+                    replica.remove(event.code());
+                } else {
+                    replica.put(event.code(), event.newStock());
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,185 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StockEventStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static final Duration WAIT = Duration.ofSeconds(10);
+
+    @Test
+    public void testSubscribe_receivesEveryChangeInOrderAndInBatches() throws InterruptedException {
+        Inventory inventory = new ConcurrentInventory();
+        StockEventStream stream = StockEventStream.attach(inventory, 1024);
+        List<StockEventStream.Event> received = new ArrayList<>();
+        List<Integer> batchSizes = new ArrayList<>();
+        StockEventStream.Subscription subscription = stream.subscribe("test", batch -> {
+            received.addAll(batch);
+            batchSizes.add(batch.size());
+        }, 4);
+
+        inventory.put("P101", 10);
+        inventory.adjustStock("P101", -3);
+        inventory.remove("P101");
+        for (int i = 0; i < 20; i++) {
+            inventory.put("Q" + i, i);
+        }
+        assertTrue(subscription.awaitCaughtUp(WAIT));
+
+        assertEquals(23, received.size());
+        assertEquals(new StockEventStream.Event(0, "P101", Inventory.NOT_FOUND, 10), received.get(0));
+        assertEquals(new StockEventStream.Event(1, "P101", 10, 7), received.get(1));
+        assertEquals(new StockEventStream.Event(2, "P101", 7, Inventory.NOT_FOUND), received.get(2));
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(i, received.get(i).sequence());
+        }
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 4), "Batches should respect the maximum size.");
+        assertEquals(23, subscription.position());
+        stream.close();
+    }
+
+    @Test
+    public void testSubscribe_replaysFromASequenceNumber() throws InterruptedException {
+        Inventory inventory = new ConcurrentInventory();
+        StockEventStream stream = StockEventStream.attach(inventory, 16);
+        for (int i = 0; i < 40; i++) {
+            inventory.put("P" + i, i);
+        }
+        assertEquals(24, stream.oldestRetained());
+        assertThrows(IllegalArgumentException.class, () -> stream.subscribe("old", batch -> { }, 10, 8),
+                "Events no longer in the ring cannot be replayed.");
+
+        List<String> codes = new ArrayList<>();
+        StockEventStream.Subscription subscription = stream.subscribe("replay",
+                batch -> batch.forEach(event -> codes.add(event.code())), 30, 8);
+        assertTrue(subscription.awaitCaughtUp(WAIT));
+
+        assertEquals(List.of("P30", "P31", "P32", "P33", "P34", "P35", "P36", "P37", "P38", "P39"), codes);
+        stream.close();
+    }
+
+    @Test
+    public void testSlowSubscriber_isDroppedWithoutBlockingChanges() throws InterruptedException {
+        Inventory inventory = new ConcurrentInventory();
+        StockEventStream stream = StockEventStream.attach(inventory, 8);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicLong missed = new AtomicLong(-1);
+        StockEventStream.Subscription slow = stream.subscribe("lento", new StockEventStream.Subscriber() {
+            @Override
+            public void onEvents(List<StockEventStream.Event> batch) throws InterruptedException {
+                release.await();
+            }
+
+            @Override
+            public void onDropped(long sequence) {
+                missed.set(sequence);
+            }
+        }, 1);
+
+        for (int i = 0; i < 1000; i++) {
+            inventory.put("P101", i); // Must not wait for the stuck subscriber
+        }
+        release.countDown();
+        slow.close();
+
+        assertTrue(slow.isDropped(), "A subscriber a whole ring behind should be dropped.");
+        assertTrue(missed.get() >= 0, "The dropped subscriber should be told the first event it missed.");
+        assertEquals(999, inventory.stock("P101"));
+        stream.close();
+    }
+
+    @Test
+    public void testResumingSubscriber_marksTheGapAndCarriesOn() throws Exception {
+        Inventory inventory = new ConcurrentInventory();
+        StockEventStream stream = StockEventStream.attach(inventory, 8);
+        Path audit = tempDir.resolve("auditoria.tsv");
+        StockEventStream.Subscriber log = StockEventStream.auditLog(audit);
+        CountDownLatch release = new CountDownLatch(1);
+        StockEventStream.Subscription slow = stream.subscribeResuming("auditoria", new StockEventStream.Subscriber() {
+            @Override
+            public void onEvents(List<StockEventStream.Event> batch) throws Exception {
+                release.await();
+                log.onEvents(batch);
+            }
+
+            @Override
+            public void onGap(long missed, long resumed) throws Exception {
+                log.onGap(missed, resumed);
+            }
+        }, 1);
+
+        for (int i = 0; i < 1000; i++) {
+            inventory.put("P101", i);
+        }
+        release.countDown();
+        assertTrue(slow.awaitCaughtUp(WAIT));
+        inventory.put("P102", 1);
+        assertTrue(slow.awaitCaughtUp(WAIT));
+
+        assertFalse(slow.isDropped(), "A resuming subscriber should carry on after a gap.");
+        List<String> lines = Files.readAllLines(audit);
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("HUECO\t")), "The gap should be marked.");
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("HUECO\t") && line.endsWith("\t996")),
+                "It should resume half a ring ahead of the oldest event held, not where it would be lapped again.");
+        String last = lines.get(lines.size() - 1);
+        assertTrue(last.startsWith("1000\t") && last.endsWith("\tP102\t-\t1"), last);
+        long expected = 0;
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            if (fields[0].equals("HUECO")) {
+                assertEquals(expected, Long.parseLong(fields[2]), "A gap should start where the file stopped.");
+                expected = Long.parseLong(fields[3]);
+            } else {
+                assertEquals(expected++, Long.parseLong(fields[0]), "Events should follow on without holes.");
+            }
+        }
+        stream.close();
+    }
+
+    @Test
+    public void testSubscribers_auditReorderAndReplica() throws Exception {
+        Inventory inventory = new ConcurrentInventory();
+        inventory.put("P101", 10);
+        StockEventStream stream = StockEventStream.attach(inventory, 1024);
+        Path audit = tempDir.resolve("auditoria.tsv");
+        Path alerts = tempDir.resolve("reposicion.txt");
+        Inventory replica = inventory.copy();
+        List<StockEventStream.Subscription> subscriptions = List.of(
+                stream.subscribe("auditoria", StockEventStream.auditLog(audit), 16),
+                stream.subscribe("reposicion", StockEventStream.reorderAlerts(alerts, 3), 16),
+                stream.subscribe("replica", StockEventStream.replicaOf(replica), 16));
+
+        inventory.adjustStock("P101", -8);
+        inventory.adjustStock("P101", -1);
+        inventory.put("P102", 50);
+        inventory.remove("P102");
+        for (StockEventStream.Subscription subscription : subscriptions) {
+            assertTrue(subscription.awaitCaughtUp(WAIT));
+        }
+
+        List<String> lines = Files.readAllLines(audit);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).startsWith("0\t") && lines.get(0).endsWith("\tP101\t10\t2"), lines.get(0));
+        assertTrue(lines.get(2).endsWith("\tP102\t-\t50"), lines.get(2));
+        assertTrue(lines.get(3).endsWith("\tP102\t50\t-"), lines.get(3));
+
+        List<String> alertLines = Files.readAllLines(alerts);
+        assertEquals(1, alertLines.size(), "Only crossing the threshold should raise an alert.");
+        assertTrue(alertLines.get(0).endsWith("REPONER P101 stock 2"), alertLines.get(0));
+
+        assertEquals(1, replica.stock("P101"));
+        assertFalse(replica.contains("P102"));
+        stream.close();
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index of an inventory by stock level, for reorder reports: every product with stock at or below a
+ * threshold, or the products with the lowest stock. Both cost time proportional to the products returned.
+ *
+ * <p>The index is a {@link ConcurrentSkipListSet} of (stock, code) pairs kept up to date as a
+ * {@link Inventory.ChangeListener}. Inventories fire listeners while a change is still exclusive for its code,
+ * so the updates for one code reach the index in order, and updates for different codes can run in parallel.
+ * The new pair is added before the old one is removed, so a concurrent query may briefly see a product at both
+ * levels but never misses it.
+ */
+public class StockIndex implements Inventory.ChangeListener {
+
+    private record Entry(int stock, String code) implements Comparable<Entry> {
+        @Override
+        public int compareTo(Entry other) {
+            int cmp = Integer.compare(stock, other.stock);
+            return cmp != 0 ? cmp : code.compareTo(other.code);
+        }
+    }
+
+    private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<>();
+
+    private StockIndex() {
+    }
+
+    /**
+     * Builds the index for an inventory and keeps it up to date from then on.
+     * Call it right after loading, before the inventory is shared.
+     *
+     * @param inventory The inventory to index.
+     * @return The index.
+     */
+    public static StockIndex attach(Inventory inventory) {
+        StockIndex index = new StockIndex();
+        Entry[] all = new Entry[inventory.size()];
+        int[] n = new int[1];
+        inventory.forEachSorted((code, stock) -> {
+            if (n[0] == all.length) {
+                throw new IllegalStateException("Inventory changed while it was being indexed");
+            }
+            all[n[0]++] = new Entry(stock, code);
+        });
+        // Sorting first makes every insertion an append at the end of the skip list
+        Arrays.parallelSort(all, 0, n[0]);
+        for (int i = 0; i < n[0]; i++) {
+            index.entries.add(all[i]);
+        }
+        inventory.addListener(index);
+        return index;
+    }
+
+    @Override
+    public void onChange(String code, int oldStock, int newStock) {
+        if (newStock != Inventory.NOT_FOUND) {
+            entries.add(new Entry(newStock, code));
+        }
+        if (oldStock != Inventory.NOT_FOUND && oldStock != newStock) {
+            entries.remove(new Entry(oldStock, code));
+        }
+    }
+
+    /**
+     * Visits the products with stock at or below a threshold, lowest stock first and then by code,
+     * until the visitor returns false.
+     *
+     * @param threshold The highest stock included.
+     * @param visitor   Receives each code and its stock.
+     */
+    public void forEachAtOrBelow(int threshold, Inventory.StockVisitor visitor) {
+        forEachAfter(-1, null, threshold, visitor);
+    }
+
+    /**
+     * Visits the products in stock order after a given (stock, code) position, up to a threshold.
+     *
+     * @param stock     The stock of the last product already seen, or -1 to start at the lowest.
+     * @param code      The code of the last product already seen; ignored when stock is -1.
+     * @param threshold The highest stock included.
+     * @param visitor   Receives each code and its stock until it returns false.
+     */
+    public void forEachAfter(int stock, String code, int threshold, Inventory.StockVisitor visitor) {
+        NavigableSet<Entry> view = stock < 0 ? entries : entries.tailSet(new Entry(stock, code), false);
+        for (Entry entry : view) {
+            if (entry.stock > threshold || !visitor.visit(entry.code, entry.stock)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visits the products with the lowest stock, lowest first.
+     *
+     * @param count   How many products to visit at most.
+     * @param visitor Receives each code and its stock.
+     */
+    public void forEachLowest(int count, Inventory.StockVisitor visitor) {
+        int[] left = {count};
+        forEachAfter(-1, null, Integer.MAX_VALUE, (code, stock) -> left[0]-- > 0 && visitor.visit(code, stock));
+    }
+
+    /**
+     * @return The number of (stock, code) pairs in the index; equal to the inventory size when no change is running.
+     */
+    public int size() {
+        return entries.size();
+    }
+}
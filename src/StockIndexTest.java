@@ -0,0 +1,114 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StockIndexTest {
+
+    private static List<String> atOrBelow(StockIndex index, int threshold) {
+        List<String> codes = new ArrayList<>();
+        index.forEachAtOrBelow(threshold, (code, stock) -> codes.add(code + "=" + stock));
+        return codes;
+    }
+
+    /**
+     * What the index should answer, computed by scanning the inventory.
+     */
+    private static List<String> scanAtOrBelow(Inventory inventory, int threshold) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        inventory.forEachSorted((code, stock) -> {
+            if (stock <= threshold) {
+                entries.add(Map.entry(code, stock));
+            }
+        });
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        return entries.stream().map(e -> e.getKey() + "=" + e.getValue()).toList();
+    }
+
+    @Test
+    public void testAttach_indexesExistingProductsAndFollowsChanges() {
+        CompactInventory inventory = new CompactInventory();
+        inventory.put("P1", 5);
+        inventory.put("P2", 0);
+        inventory.put("P3", 12);
+        StockIndex index = StockIndex.attach(inventory);
+
+        assertEquals(List.of("P2=0", "P1=5"), atOrBelow(index, 5), "Existing products should be indexed.");
+
+        inventory.put("P4", 1);
+        inventory.adjustStock("P1", 10);
+        inventory.reserve("P3", 12);
+        inventory.remove("P2");
+
+        assertEquals(List.of("P3=0", "P4=1"), atOrBelow(index, 5), "Changes should move products in the index.");
+        assertEquals(inventory.size(), index.size(), "Every product should appear once.");
+
+        List<String> lowest = new ArrayList<>();
+        index.forEachLowest(2, (code, stock) -> lowest.add(code));
+        assertEquals(List.of("P3", "P4"), lowest, "The lowest stock products should come first.");
+    }
+
+    @Test
+    public void testConcurrentChanges_indexMatchesInventory() throws Exception {
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        for (int i = 0; i < 200; i++) {
+            inventory.put("P" + i, i % 20);
+        }
+        StockIndex index = StockIndex.attach(inventory);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 5000; i++) {
+                    String code = "P" + random.nextInt(250);
+                    switch (random.nextInt(4)) {
+                        case 0 -> inventory.put(code, random.nextInt(30));
+                        case 1 -> inventory.adjustStock(code, random.nextInt(7) - 3);
+                        case 2 -> inventory.reserve(code, 1);
+                        default -> inventory.remove(code);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(inventory.size(), index.size(), "No stale entries should be left behind.");
+        assertEquals(scanAtOrBelow(inventory, Integer.MAX_VALUE), atOrBelow(index, Integer.MAX_VALUE),
+                "The index should hold exactly the final stock of every product.");
+    }
+
+    @Test
+    public void testListing_withIndexMatchesScan() throws IOException {
+        TreeMap<String, Integer> catalog = new TreeMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            catalog.put(String.format("P%04d", i), random.nextInt(50));
+        }
+        Inventory inventory = Inventory.of(catalog);
+        StockIndex index = StockIndex.attach(inventory);
+
+        String cursorWith = null;
+        String cursorWithout = null;
+        do {
+            StringWriter with = new StringWriter();
+            StringWriter without = new StringWriter();
+            cursorWith = StockListing.all().sortedByStock().below(10).limit(40).after(cursorWith).using(index)
+                    .write(inventory, with);
+            cursorWithout = StockListing.all().sortedByStock().below(10).limit(40).after(cursorWithout)
+                    .write(inventory, without);
+            assertEquals(without.toString(), with.toString(), "The index should give the same pages as a scan.");
+            assertEquals(cursorWithout, cursorWith, "Both should continue from the same cursor.");
+        } while (cursorWith != null);
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A query over the stock listing: an optional code prefix or range, a low-stock filter, the order and a page size.
+ * Queries are built fluently, for example {@code StockListing.all().prefix("FRENO-").below(5).limit(50)}.
+ *
+ * <p>In code order the listing seeks to the start of the range with {@link Inventory#forEachFrom} and stops at
+ * its end, so listing one brand costs time proportional to that brand, not to the catalog. Sorting by stock has
+ * to look at the whole range, but keeps only one page in memory; over the whole catalog a {@link StockIndex}
+ * can be used instead, which reads just the page.
+ *
+ * <p>A page ends with a cursor: passing it to {@link #after(String)} continues with the next page.
+ * Lines are written to a {@link Writer}; callers pass a buffered one and flush once per page.
+ */
+public final class StockListing {
+    private String from;
+    private String to;
+    private String prefix;
+    private Integer below; // Null when no threshold was set, so every stock is listed
+    private int limit;
+    private boolean byStock;
+    private String after;
+    private StockIndex index;
+
+    private StockListing() {
+    }
+
+    /**
+     * @return A query for every product in code order, without paging.
+     */
+    public static StockListing all() {
+        return new StockListing();
+    }
+
+    /**
+     * Restricts the listing to codes starting with a prefix.
+     *
+     * @param prefix The code prefix; empty for every code.
+     * @return This query.
+     */
+    public StockListing prefix(String prefix) {
+        this.prefix = prefix.isEmpty() ? null : prefix;
+        return this;
+    }
+
+    /**
+     * Restricts the listing to codes in a range.
+     *
+     * @param from The first code included, or null for no lower bound.
+     * @param to   The first code excluded, or null for no upper bound.
+     * @return This query.
+     */
+    public StockListing range(String from, String to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Keeps only products with less stock than a threshold.
+     *
+     * @param threshold The stock limit, excluded.
+     * @return This query.
+     */
+    public StockListing below(int threshold) {
+        this.below = threshold;
+        return this;
+    }
+
+    /**
+     * Orders by stock, lowest first, then by code, instead of by code.
+     *
+     * @return This query.
+     */
+    public StockListing sortedByStock() {
+        this.byStock = true;
+        return this;
+    }
+
+    /**
+     * Limits the listing to one page.
+     *
+     * @param pageSize The number of products per page; 0 for no limit.
+     * @return This query.
+     */
+    public StockListing limit(int pageSize) {
+        this.limit = pageSize;
+        return this;
+    }
+
+    /**
+     * Lets a listing in stock order over the whole catalog read the stock index instead of scanning every product.
+     *
+     * @param index The index of the inventory that will be listed, or null.
+     * @return This query.
+     */
+    public StockListing using(StockIndex index) {
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * Continues after the page that returned a cursor.
+     *
+     * @param cursor The cursor returned by {@link #write}, or null to start at the beginning.
+     * @return This query.
+     */
+    public StockListing after(String cursor) {
+        this.after = cursor;
+        return this;
+    }
+
+    /**
+     * Writes one page of the listing, one {@code Product Code: ..., Stock: ...} line per product.
+     *
+     * @param inventory The inventory to list.
+     * @param out       Where the lines are written.
+     * @return A cursor for the next page, or null if this page reached the end of the listing.
+     * @throws IOException If writing fails.
+     */
+    public String write(Inventory inventory, Writer out) throws IOException {
+        try {
+            return byStock ? writeByStock(inventory, out) : writeByCode(inventory, out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private String writeByCode(Inventory inventory, Writer out) {
+        String start = from;
+        boolean inclusive = true;
+        if (prefix != null && (start == null || prefix.compareTo(start) > 0)) {
+            start = prefix;
+        }
+        if (after != null && (start == null || after.compareTo(start) >= 0)) {
+            start = after;
+            inclusive = false;
+        }
+        String[] last = new String[1];
+        int[] written = new int[1];
+        boolean[] more = new boolean[1];
+        inventory.forEachFrom(start, inclusive, (code, stock) -> {
+            if (!inRange(code)) {
+                return false;
+            }
+            if (below != null && stock >= below) {
+                return true;
+            }
+            if (limit > 0 && written[0] == limit) {
+                more[0] = true;
+                return false;
+            }
+            writeLine(out, code, stock);
+            last[0] = code;
+            written[0]++;
+            return true;
+        });
+        return more[0] ? last[0] : null;
+    }
+
+    private String writeByStock(Inventory inventory, Writer out) {
+        int afterStock = -1;
+        String afterCode = null;
+        if (after != null) {
+            int separator = after.indexOf(':');
+            afterStock = Integer.parseInt(after.substring(0, separator));
+            afterCode = after.substring(separator + 1);
+        }
+        if (index != null && prefix == null && from == null && to == null) {
+            return writeFromIndex(afterStock, afterCode, out);
+        }
+        Comparator<Row> order = Comparator.comparingInt((Row r) -> r.stock).thenComparing(r -> r.code);
+        Row cursor = afterCode == null ? null : new Row(afterCode, afterStock);
+        // Max-heap of the best rows so far, so the worst can be dropped once a page is full
+        PriorityQueue<Row> page = new PriorityQueue<>(order.reversed());
+        boolean[] more = new boolean[1];
+        String start = prefix != null && (from == null || prefix.compareTo(from) > 0) ? prefix : from;
+        inventory.forEachFrom(start, true, (code, stock) -> {
+            if (!inRange(code)) {
+                return false;
+            }
+            if (below != null && stock >= below) {
+                return true;
+            }
+            Row row = new Row(code, stock);
+            if (cursor != null && order.compare(row, cursor) <= 0) {
+                return true;
+            }
+            page.add(row);
+            if (limit > 0 && page.size() > limit) {
+                page.poll();
+                more[0] = true;
+            }
+            return true;
+        });
+        List<Row> rows = new ArrayList<>(page);
+        rows.sort(order);
+        for (Row row : rows) {
+            writeLine(out, row.code, row.stock);
+        }
+        if (!more[0] || rows.isEmpty()) {
+            return null;
+        }
+        Row last = rows.get(rows.size() - 1);
+        return last.stock + ":" + last.code;
+    }
+
+    private String writeFromIndex(int afterStock, String afterCode, Writer out) {
+        if (below != null && below == Integer.MIN_VALUE) {
+            return null; // No stock is lower
+        }
+        int highest = below == null ? Integer.MAX_VALUE : below - 1;
+        Row[] last = new Row[1];
+        int[] written = new int[1];
+        boolean[] more = new boolean[1];
+        index.forEachAfter(afterStock, afterCode, highest, (code, stock) -> {
+            if (limit > 0 && written[0] == limit) {
+                more[0] = true;
+                return false;
+            }
+            writeLine(out, code, stock);
+            last[0] = new Row(code, stock);
+            written[0]++;
+            return true;
+        });
+        return more[0] ? last[0].stock + ":" + last[0].code : null;
+    }
+
+    private boolean inRange(String code) {
+        return (prefix == null || code.startsWith(prefix)) && (to == null || code.compareTo(to) < 0);
+    }
+
+    private static void writeLine(Writer out, String code, int stock) {
+        try {
+            out.write("Product Code: ");
+            out.write(code);
+            out.write(", Stock: ");
+            out.write(Integer.toString(stock));
+            out.write(System.lineSeparator());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private record Row(String code, int stock) {
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StockListingTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static TreeMap<String, Integer> catalog() {
+        TreeMap<String, Integer> catalog = new TreeMap<>();
+        Random random = new Random(42);
+        for (String brand : new String[]{"BOSCH-", "FRENO-", "NGK-", "ÑANDÚ-"}) {
+            for (int i = 0; i < 300; i++) {
+                catalog.put(brand + String.format("%04d", i * 3), random.nextInt(40));
+            }
+        }
+        return catalog;
+    }
+
+    private List<Inventory> inventories(TreeMap<String, Integer> catalog) throws IOException {
+        File file = tempDir.resolve("existencias.dat").toFile();
+        InventorySnapshot.write(file, catalog);
+        MappedInventory mapped = MappedInventory.open(file);
+        CompactInventory compact = new CompactInventory();
+        ConcurrentInventory concurrent = new ConcurrentInventory();
+        catalog.forEach(compact::put);
+        catalog.forEach(concurrent::put);
+        // Give the mapped inventory an overlay with an addition, a change and a removal
+        List<Inventory> all = List.of(Inventory.of(new TreeMap<>(catalog)), mapped, compact, concurrent);
+        for (Inventory inventory : all) {
+            inventory.put("FRENO-0001", 2);
+            inventory.put("FRENO-0003", 0);
+            inventory.remove("FRENO-0006");
+        }
+        catalog.put("FRENO-0001", 2);
+        catalog.put("FRENO-0003", 0);
+        catalog.remove("FRENO-0006");
+        return all;
+    }
+
+    private static List<String> lines(Map<String, Integer> entries) {
+        return entries.entrySet().stream()
+                .map(e -> "Product Code: " + e.getKey() + ", Stock: " + e.getValue())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Writes every page of a query and returns the lines, checking that each page but the last is full.
+     */
+    private static List<String> allPages(StockListing query, Inventory inventory, int pageSize) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String cursor = null;
+        do {
+            StringWriter out = new StringWriter();
+            cursor = query.limit(pageSize).after(cursor).write(inventory, out);
+            List<String> page = out.toString().lines().toList();
+            if (cursor != null) {
+                assertEquals(pageSize, page.size(), "Every page but the last should be full.");
+            }
+            lines.addAll(page);
+        } while (cursor != null);
+        return lines;
+    }
+
+    @Test
+    public void testPrefix_pagedInCodeOrder() throws IOException {
+        TreeMap<String, Integer> catalog = catalog();
+        for (Inventory inventory : inventories(catalog)) {
+            List<String> expected = lines(catalog.subMap("FRENO-", "FRENO-\uFFFF"));
+            assertEquals(expected, allPages(StockListing.all().prefix("FRENO-"), inventory, 37),
+                    "Paging a prefix should list exactly that brand in order: " + inventory.getClass());
+        }
+    }
+
+    @Test
+    public void testRangeAndLowStock() throws IOException {
+        TreeMap<String, Integer> catalog = catalog();
+        for (Inventory inventory : inventories(catalog)) {
+            Map<String, Integer> expected = new TreeMap<>(catalog.subMap("BOSCH-0100", "NGK-0050"));
+            expected.values().removeIf(stock -> stock >= 5);
+            StringWriter out = new StringWriter();
+            assertNull(StockListing.all().range("BOSCH-0100", "NGK-0050").below(5).write(inventory, out),
+                    "An unpaged listing should not return a cursor.");
+            assertEquals(lines(expected), out.toString().lines().toList(),
+                    "Only low-stock products in the range should be listed: " + inventory.getClass());
+        }
+    }
+
+    @Test
+    public void testSortedByStock_pagesCoverEveryProductOnce() throws IOException {
+        TreeMap<String, Integer> catalog = catalog();
+        for (Inventory inventory : inventories(catalog)) {
+            List<Map.Entry<String, Integer>> sorted = new ArrayList<>(catalog.entrySet());
+            sorted.sort(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+            List<String> expected = sorted.stream()
+                    .map(e -> "Product Code: " + e.getKey() + ", Stock: " + e.getValue())
+                    .collect(Collectors.toList());
+            assertEquals(expected, allPages(StockListing.all().sortedByStock(), inventory, 100),
+                    "Stock order should list lowest stock first, ties by code: " + inventory.getClass());
+        }
+    }
+
+    @Test
+    public void testThresholds_atTheLimitsOfInt() throws IOException {
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        StockIndex index = StockIndex.attach(inventory);
+        inventory.put("P1", 0);
+        inventory.put("P2", Integer.MAX_VALUE);
+        List<String> all = lines(new TreeMap<>(Map.of("P1", 0, "P2", Integer.MAX_VALUE)));
+
+        assertEquals(all, allPages(StockListing.all(), inventory, 10),
+                "Without a threshold even the largest stock should be listed.");
+        assertEquals(all, allPages(StockListing.all().sortedByStock().using(index), inventory, 10));
+        StringWriter out = new StringWriter();
+        assertNull(StockListing.all().sortedByStock().below(Integer.MIN_VALUE).using(index).write(inventory, out));
+        assertEquals("", out.toString(), "No stock is below the lowest int.");
+    }
+
+    @Test
+    public void testSearchMenu_showsPagesUntilQuit() {
+        TreeMap<String, Integer> catalog = catalog();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true);
+        Scanner scanner = new Scanner(new StringReader("NGK-\n\nn\n\nq\n"));
+
+        Main.searchStock(Inventory.of(catalog), null, scanner, out);
+
+        long listed = bytes.toString().lines().filter(l -> l.startsWith("Product Code: NGK-")).count();
+        assertEquals(2L * Main.PAGE_SIZE, listed, "Two pages should be shown before quitting.");
+    }
+}
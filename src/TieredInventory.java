@@ -0,0 +1,396 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Inventory for catalogs where most traffic hits a few thousand fast-moving parts: a bounded heap cache of hot
+ * entries in front of an on-disk sorted store.
+ *
+ * <p>The cold tier is a memory-mapped snapshot (see {@link MappedInventory}), read on a cache miss. Clean entries
+ * that are read are kept in a {@link TinyLfuCache} of fixed capacity. Changed entries are held on the heap as
+ * dirty until there are enough of them, and are then written back in one batch. A write-back only merges the
+ * dirty entries into a second, smaller mapped file of the changes since the cold snapshot, removals included,
+ * so it costs time proportional to those changes rather than to the catalog. Once that file holds more than
+ * 1/{@value #FOLD_FRACTION} of the catalog, the next write-back folds it into a new cold snapshot. Lookups read
+ * the dirty entries, then the changes file, then the cold snapshot. So the heap holds at most the cache capacity
+ * plus the write-back threshold, whatever the size of the catalog.
+ *
+ * <p>The cold files are a working copy; the snapshot and the journal stay the durable record of the inventory,
+ * and write-backs are not counted as snapshots in {@link InventoryMetrics}. Every method is synchronized, which
+ * suits the menu and the command mode; for many terminals changing stock at once, use
+ * {@link ConcurrentInventory}.
+ */
+public class TieredInventory extends AbstractInventory {
+    // Changes kept in the changes file before they are folded into a new cold snapshot, as a fraction of it
+    static final int FOLD_FRACTION = 8;
+
+    private final File coldFile;
+    private final File changesFile;
+    private final TinyLfuCache cache;
+    private final int writeBackThreshold;
+    // The cold snapshot, the changes written back since it (or null), and the dirty entries, NOT_FOUND if removed
+    private MappedInventory cold;
+    private MappedInventory changes;
+    private final TreeMap<String, Integer> dirty;
+    private int size;
+    private long writeBacks;
+
+    private TieredInventory(File coldFile, MappedInventory cold, MappedInventory changes,
+                            TreeMap<String, Integer> dirty, int size, int cacheCapacity, int writeBackThreshold) {
+        this.coldFile = coldFile;
+        this.changesFile = changesFileFor(coldFile);
+        this.cache = new TinyLfuCache(cacheCapacity);
+        this.writeBackThreshold = writeBackThreshold;
+        this.cold = cold;
+        this.changes = changes;
+        this.dirty = dirty;
+        this.size = size;
+    }
+
+    /**
+     * Opens a snapshot file as the cold tier. A current snapshot is mapped where it is; an older one, or no file
+     * at all, is first written to the cold file.
+     *
+     * @param snapshotFile       The inventory snapshot, not changed by this store.
+     * @param coldFile           Where write-backs put the cold store, with the changes file next to it; both are
+     *                           written as new generations (see {@link InventorySnapshot#current}), never over a
+     *                           mapped file.
+     * @param cacheCapacity      The most clean entries kept on the heap.
+     * @param writeBackThreshold The number of dirty entries that triggers a write-back.
+     * @return The inventory.
+     * @throws IOException If the snapshot cannot be read or the cold file written.
+     */
+    public static TieredInventory open(File snapshotFile, File coldFile, int cacheCapacity, int writeBackThreshold)
+            throws IOException {
+        if (writeBackThreshold < 1) {
+            throw new IllegalArgumentException("Write-back threshold must be positive");
+        }
+        // Stale working files of an earlier run; one that cannot be deleted yet is older than any write from now on
+        InventorySnapshot.delete(changesFileFor(coldFile));
+        File snapshot = InventorySnapshot.current(snapshotFile);
+        boolean present = snapshot.exists() && snapshot.length() > 0;
+        MappedInventory cold;
+        if (present && InventorySnapshot.versionOf(snapshotFile) == InventorySnapshot.VERSION) {
+            cold = MappedInventory.open(snapshotFile);
+            InventorySnapshot.delete(coldFile);
+        } else {
+            Inventory entries = Inventory.of(present ? InventorySnapshot.read(snapshotFile) : new TreeMap<>());
+            InventorySnapshot.writeEntries(coldFile, entries.size(), entries::forEachSorted, false);
+            cold = MappedInventory.open(coldFile);
+        }
+        return new TieredInventory(coldFile, cold, null, new TreeMap<>(), cold.size(), cacheCapacity,
+                writeBackThreshold);
+    }
+
+    private static File changesFileFor(File coldFile) {
+        return new File(coldFile.getPath() + ".cambios");
+    }
+
+    @Override
+    public synchronized int stock(String code) {
+        Integer cached = cache.get(code);
+        if (cached != null) {
+            return cached;
+        }
+        Integer changed = dirty.get(code);
+        if (changed != null) {
+            return changed; // Dirty entries are already on the heap
+        }
+        int stock = coldStock(code);
+        if (stock != NOT_FOUND) {
+            cache.put(code, stock);
+        }
+        return stock;
+    }
+
+    @Override
+    public synchronized void put(String code, int stock) {
+        Inventory.checkCode(code);
+        if (stock < 0) {
+            throw new IllegalArgumentException("Stock must be a non-negative number");
+        }
+        cache.invalidate(code);
+        int old = currentStock(code);
+        dirty.put(code, stock);
+        if (old == NOT_FOUND) {
+            size++;
+        }
+        fireChange(code, old, stock);
+        writeBackIfFull();
+    }
+
+    @Override
+    public synchronized boolean putIfAbsent(String code, int stock) {
+        return super.putIfAbsent(code, stock);
+    }
+
+    @Override
+    public synchronized boolean replace(String code, int stock) {
+        return super.replace(code, stock);
+    }
+
+    @Override
+    public synchronized int adjustStock(String code, int delta) {
+        return super.adjustStock(code, delta);
+    }
+
+    @Override
+    public synchronized boolean remove(String code) {
+        int old = currentStock(code);
+        if (old == NOT_FOUND) {
+            return false;
+        }
+        cache.invalidate(code);
+        dirty.put(code, NOT_FOUND);
+        size--;
+        fireChange(code, old, NOT_FOUND);
+        writeBackIfFull();
+        return true;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void forEachSorted(StockConsumer action) {
+        forEachFrom(null, true, (code, stock) -> {
+            action.accept(code, stock);
+            return true;
+        });
+    }
+
+    @Override
+    public synchronized void forEachFrom(String from, boolean inclusive, StockVisitor visitor) {
+        Iterator<Map.Entry<String, Integer>> entries = merged(from, inclusive);
+        while (entries.hasNext()) {
+            Map.Entry<String, Integer> entry = entries.next();
+            if (entry.getValue() != NOT_FOUND && !visitor.visit(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Shares the mapped cold files and copies only the dirty entries. The copy never writes back.
+     */
+    @Override
+    public synchronized Inventory copy() {
+        return new TieredInventory(coldFile, cold, changes, new TreeMap<>(dirty), size, 2, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean copiesConcurrently() {
+        return true;
+    }
+
+    @Override
+    public synchronized void checkIntegrity() throws IOException {
+        cold.verify();
+        if (changes != null) {
+            changes.verify();
+        }
+    }
+
+    /**
+     * Writes the dirty entries back to the changes file now, or folds everything into a new cold snapshot once
+     * the changes have grown past a fraction of the catalog.
+     *
+     * @throws IOException If a cold file cannot be written; the dirty entries stay on the heap.
+     */
+    public synchronized void writeBack() throws IOException {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        int changed = count(changesAndDirty());
+        if (changed > cold.size() / FOLD_FRACTION) {
+            // Rewrites the whole cold store, so only once every FOLD_FRACTION-th product or so has changed
+            InventorySnapshot.writeEntries(coldFile, size, this::forEachSorted, false);
+            cold = MappedInventory.open(coldFile);
+            changes = null;
+            InventorySnapshot.delete(changesFile); // Still mapped until collected on Windows: the next write retries
+        } else {
+            InventorySnapshot.writeEntries(changesFile, changed, consumer -> {
+                Iterator<Map.Entry<String, Integer>> entries = changesAndDirty();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Integer> entry = entries.next();
+                    int stock = entry.getValue();
+                    consumer.accept(entry.getKey(), stock == NOT_FOUND ? InventorySnapshot.REMOVED : stock);
+                }
+            }, true);
+            changes = MappedInventory.open(changesFile);
+        }
+        dirty.clear();
+        writeBacks++;
+    }
+
+    /**
+     * Hit and eviction counts of the cache.
+     *
+     * @param hits       Lookups answered from the cache.
+     * @param misses     Lookups that went to the cold store or the dirty entries.
+     * @param evictions  Entries dropped or refused to stay within the capacity.
+     * @param cached     Clean entries in the cache now.
+     * @param dirty      Changed entries waiting to be written back.
+     * @param writeBacks Batches written back to the cold store.
+     */
+    public record CacheStats(long hits, long misses, long evictions, int cached, int dirty, long writeBacks) {
+        /**
+         * @return The fraction of lookups answered from the cache, or 0 if there were none.
+         */
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    /**
+     * @return The current cache statistics.
+     */
+    public synchronized CacheStats stats() {
+        return new CacheStats(cache.hits(), cache.misses(), cache.evictions(), cache.size(), dirty.size(),
+                writeBacks);
+    }
+
+    private void writeBackIfFull() {
+        if (dirty.size() < writeBackThreshold) {
+            return;
+        }
+        try {
+            writeBack();
+        } catch (IOException e) {
+            // The change is kept on the heap and in the journal; the next change tries again
+            System.err.println("Error al volcar los cambios al almacén en disco: " + e.getMessage());
+        }
+    }
+
+    private int currentStock(String code) {
+        Integer changed = dirty.get(code);
+        return changed != null ? changed : coldStock(code);
+    }
+
+    /**
+     * Looks a code up in the changes file, then in the cold snapshot.
+     */
+    private int coldStock(String code) {
+        int stock = changes == null ? NOT_FOUND : changes.stock(code);
+        if (stock == InventorySnapshot.REMOVED) {
+            return NOT_FOUND;
+        }
+        return stock != NOT_FOUND ? stock : cold.stock(code);
+    }
+
+    /**
+     * The entries of the changes file and the dirty entries in code order, NOT_FOUND for removals. Removals of
+     * codes the cold snapshot does not hold are dropped, as there is nothing left to hide.
+     */
+    private Iterator<Map.Entry<String, Integer>> changesAndDirty() {
+        return new Merge(changesFrom(null, true), dirty.entrySet().iterator(),
+                entry -> entry.getValue() != NOT_FOUND || cold.stock(entry.getKey()) != NOT_FOUND);
+    }
+
+    /**
+     * Every entry in code order from a code on, NOT_FOUND for removals.
+     */
+    private Iterator<Map.Entry<String, Integer>> merged(String from, boolean inclusive) {
+        Map<String, Integer> newer = from == null ? dirty : dirty.tailMap(from, inclusive);
+        Iterator<Map.Entry<String, Integer>> upper = new Merge(changesFrom(from, inclusive),
+                newer.entrySet().iterator(), entry -> true);
+        return new Merge(cold.entries(from, inclusive), upper, entry -> true);
+    }
+
+    private Iterator<Map.Entry<String, Integer>> changesFrom(String from, boolean inclusive) {
+        if (changes == null) {
+            return Collections.emptyIterator();
+        }
+        Iterator<Map.Entry<String, Integer>> entries = changes.entries(from, inclusive);
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, Integer> next() {
+                Map.Entry<String, Integer> entry = entries.next();
+                return entry.getValue() != InventorySnapshot.REMOVED ? entry
+                        : new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), NOT_FOUND);
+            }
+        };
+    }
+
+    private static int count(Iterator<?> entries) {
+        int count = 0;
+        while (entries.hasNext()) {
+            entries.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Walks two iterators in code order; the newer one wins on equal codes.
+     */
+    private static final class Merge implements Iterator<Map.Entry<String, Integer>> {
+        private final Iterator<Map.Entry<String, Integer>> older;
+        private final Iterator<Map.Entry<String, Integer>> newer;
+        private final Predicate<Map.Entry<String, Integer>> keep;
+        private Map.Entry<String, Integer> nextOlder;
+        private Map.Entry<String, Integer> nextNewer;
+        private Map.Entry<String, Integer> next;
+
+        Merge(Iterator<Map.Entry<String, Integer>> older, Iterator<Map.Entry<String, Integer>> newer,
+              Predicate<Map.Entry<String, Integer>> keep) {
+            this.older = older;
+            this.newer = newer;
+            this.keep = keep;
+            nextOlder = older.hasNext() ? older.next() : null;
+            nextNewer = newer.hasNext() ? newer.next() : null;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && (nextOlder != null || nextNewer != null)) {
+                int cmp = nextOlder == null ? 1 : nextNewer == null ? -1
+                        : nextOlder.getKey().compareTo(nextNewer.getKey());
+                Map.Entry<String, Integer> candidate;
+                if (cmp < 0) {
+                    candidate = nextOlder;
+                    nextOlder = older.hasNext() ? older.next() : null;
+                } else {
+                    candidate = nextNewer;
+                    if (cmp == 0) {
+                        nextOlder = older.hasNext() ? older.next() : null;
+                    }
+                    nextNewer = newer.hasNext() ? newer.next() : null;
+                }
+                if (keep.test(candidate)) {
+                    next = candidate;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Integer> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Integer> result = next;
+            advance();
+            return result;
+        }
+    }
+}
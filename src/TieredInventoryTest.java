@@ -0,0 +1,173 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TieredInventoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private File file;
+    private File cold;
+    private TreeMap<String, Integer> expected;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = tempDir.resolve("existencias.dat").toFile();
+        cold = tempDir.resolve("existencias.dat.frio").toFile();
+        expected = new TreeMap<>();
+        for (int i = 0; i < 5000; i++) {
+            expected.put(String.format("P%05d", i), i % 40);
+        }
+        InventorySnapshot.write(file, expected);
+    }
+
+    @Test
+    public void testChanges_writtenBackInBatches() throws IOException {
+        TieredInventory inventory = TieredInventory.open(file, cold, 100, 10);
+        for (int i = 0; i < 25; i++) {
+            inventory.put("N" + i, i);
+            expected.put("N" + i, i);
+        }
+        inventory.remove("P00000");
+        expected.remove("P00000");
+        assertEquals(3, inventory.adjustStock("P00001", 2));
+        expected.put("P00001", 3);
+
+        TieredInventory.CacheStats stats = inventory.stats();
+        assertEquals(2, stats.writeBacks(), "Every ten changes should be written back together.");
+        assertTrue(stats.dirty() < 10, "Written-back entries should leave the heap.");
+        TreeMap<String, Integer> listed = new TreeMap<>();
+        inventory.forEachSorted(listed::put);
+        assertEquals(expected, listed, "The listing should merge the cold store and the dirty entries.");
+        assertEquals(expected.size(), inventory.size());
+        assertEquals(Inventory.NOT_FOUND, inventory.stock("P00000"), "A removed product should stay removed.");
+        assertEquals(5000, InventorySnapshot.read(file).size(), "The snapshot itself should not be touched.");
+    }
+
+    @Test
+    public void testWriteBacks_mergeIntoTheChangesFileThenFold() throws IOException {
+        long snapshots = InventoryMetrics.recorder(InventoryMetrics.Operation.SNAPSHOT).count();
+        TieredInventory inventory = TieredInventory.open(file, cold, 100, 50);
+        File changes = tempDir.resolve("existencias.dat.frio.cambios").toFile();
+        for (int i = 0; i < 100; i++) {
+            inventory.put(String.format("P%05d", i), 1000 + i);
+            expected.put(String.format("P%05d", i), 1000 + i);
+        }
+        inventory.remove("P00100");
+        expected.remove("P00100");
+        inventory.put("NUEVO", 1);
+        inventory.remove("NUEVO"); // Never reaches the cold snapshot, so no removal is kept for it
+        inventory.writeBack();
+
+        assertTrue(InventorySnapshot.current(changes).exists(),
+                "Small write-backs should only write the changes file.");
+        assertFalse(InventorySnapshot.current(cold).exists(), "The cold snapshot should not be rewritten yet.");
+        assertEquals(101, MappedInventory.open(changes).size(),
+                "The changes file should hold each changed product once, with its removal.");
+        assertEquals(expected, listed(inventory));
+
+        for (int i = 0; i < 1000; i++) {
+            inventory.adjustStock(String.format("P%05d", 1000 + i), 1);
+            expected.merge(String.format("P%05d", 1000 + i), 1, Integer::sum);
+        }
+        assertTrue(InventorySnapshot.current(cold).exists(),
+                "Changes past a fraction of the catalog should be folded into the cold store.");
+        assertEquals(expected, listed(inventory));
+        assertEquals(expected.size(), inventory.size());
+        assertEquals(1050, inventory.stock("P00050"), "Changes written back before should survive the fold.");
+        assertEquals(Inventory.NOT_FOUND, inventory.stock("P00100"));
+        assertEquals(snapshots, InventoryMetrics.recorder(InventoryMetrics.Operation.SNAPSHOT).count(),
+                "Write-backs should not be counted as snapshots.");
+    }
+
+    @Test
+    public void testCache_isBoundedAndKeepsHotParts() throws IOException {
+        TieredInventory inventory = TieredInventory.open(file, cold, 200, 1000);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                inventory.stock(String.format("P%05d", i)); // The parts that sell every day
+            }
+        }
+        for (int i = 1000; i < 5000; i++) {
+            inventory.stock(String.format("P%05d", i)); // One pass over the rest of the catalog
+        }
+        long missesBefore = inventory.stats().misses();
+        for (int i = 0; i < 50; i++) {
+            assertEquals((int) expected.get(String.format("P%05d", i)), inventory.stock(String.format("P%05d", i)));
+        }
+
+        TieredInventory.CacheStats stats = inventory.stats();
+        assertTrue(stats.cached() <= 200, "The cache should stay within its capacity: " + stats.cached());
+        assertTrue(stats.misses() - missesBefore <= 5, "A scan should not flush the hot parts.");
+        assertTrue(stats.hitRate() > 0.19, "Hot lookups should be hits: " + stats.hitRate());
+    }
+
+    @Test
+    public void testCachedEntries_followChanges() throws IOException {
+        TieredInventory inventory = TieredInventory.open(file, cold, 100, 2);
+        assertEquals(5, inventory.stock("P00005"));
+        assertTrue(inventory.replace("P00005", 50));
+        assertEquals(50, inventory.stock("P00005"), "A change should not be hidden by the cache.");
+        inventory.put("X", 1); // Triggers a write-back
+        assertEquals(50, inventory.stock("P00005"), "Written-back values should be read from the new cold store.");
+        assertFalse(inventory.putIfAbsent("P00005", 1), "The code exists.");
+    }
+
+    @Test
+    public void testLoadTiered_replaysTheJournal() throws IOException {
+        TieredInventory inventory = Main.loadTiered(file, 100, 1000);
+        try (InventoryJournal journal = InventoryJournal.open(file, inventory, Main::writeSnapshot)) {
+            inventory.put("P00003", 99);
+            inventory.remove("P00004");
+            journal.sync();
+        }
+
+        TieredInventory reopened = Main.loadTiered(file, 100, 1000);
+        assertEquals(99, reopened.stock("P00003"), "Journaled changes should survive a restart.");
+        assertFalse(reopened.contains("P00004"), "Journaled removals should survive a restart.");
+        assertEquals(99, Main.loadInventory(file).get("P00003"), "Other stores should read the same data.");
+    }
+
+    @Test
+    public void testOpen_withoutSnapshotStartsEmpty() throws IOException {
+        TieredInventory inventory = TieredInventory.open(tempDir.resolve("nuevo.dat").toFile(),
+                tempDir.resolve("nuevo.dat.frio").toFile(), 10, 10);
+        assertTrue(inventory.isEmpty());
+        inventory.put("P1", 1);
+        assertEquals(1, inventory.stock("P1"));
+    }
+
+    @Test
+    public void testWriteBacks_neverReplaceAMappedFile() throws IOException {
+        TieredInventory inventory = TieredInventory.open(file, cold, 100, 10);
+        File changes = tempDir.resolve("existencias.dat.frio.cambios").toFile();
+        for (int i = 0; i < 10; i++) {
+            inventory.put(String.format("P%05d", i), 100);
+        }
+        File mapped = InventorySnapshot.current(changes);
+        for (int i = 10; i < 20; i++) {
+            inventory.put(String.format("P%05d", i), 100);
+        }
+
+        assertNotEquals(mapped, InventorySnapshot.current(changes),
+                "Each write-back should go to a new changes file, as the old one is still mapped.");
+        assertEquals(100, inventory.stock("P00005"));
+        assertEquals(100, inventory.stock("P00015"));
+        TieredInventory reopened = TieredInventory.open(file, cold, 100, 10);
+        assertFalse(InventorySnapshot.current(changes).exists(), "Reopening should drop the stale changes files.");
+        assertEquals(5, reopened.stock("P00005"), "The snapshot, not the working files, should be reopened.");
+    }
+
+    private static TreeMap<String, Integer> listed(Inventory inventory) {
+        TreeMap<String, Integer> listed = new TreeMap<>();
+        inventory.forEachSorted(listed::put);
+        return listed;
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of product stock with a W-TinyLFU policy, as used by {@link TieredInventory}.
+ *
+ * <p>New entries go into a small LRU window (1% of the capacity). An entry pushed out of the window only enters
+ * the main LRU region if it has been asked for more often than the entry the main region would evict, so a
+ * listing or a burst of one-off lookups cannot flush the parts that sell every day. Access frequencies are
+ * estimated with a count-min sketch of 4-bit counters that are halved periodically, so old popularity fades.
+ *
+ * <p>Not thread-safe; the owner synchronizes.
+ */
+final class TinyLfuCache {
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final LinkedHashMap<String, Integer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Integer> main = new LinkedHashMap<>(16, 0.75f, true);
+    // Count-min sketch: one 4-bit counter per nibble, four counters per key
+    private final long[] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int additions;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity The most entries held; at least 2.
+     */
+    TinyLfuCache(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Cache capacity must be at least 2");
+        }
+        windowCapacity = Math.max(1, capacity / 100);
+        mainCapacity = capacity - windowCapacity;
+        int slots = Integer.highestOneBit(Math.max(64, capacity) - 1) << 1; // Counters, rounded up to a power of two
+        sketch = new long[Math.max(1, slots / 16)];
+        sketchMask = sketch.length * 16 - 1;
+        sampleSize = 10 * capacity;
+    }
+
+    /**
+     * Looks an entry up and counts the access towards its frequency, hit or miss.
+     *
+     * @return The cached stock, or null.
+     */
+    Integer get(String code) {
+        recordAccess(code);
+        Integer stock = window.get(code);
+        if (stock == null) {
+            stock = main.get(code);
+        }
+        if (stock == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return stock;
+    }
+
+    /**
+     * Adds an entry just read from the cold store, evicting if the cache is full.
+     */
+    void put(String code, int stock) {
+        if (main.containsKey(code)) {
+            main.put(code, stock);
+            return;
+        }
+        window.put(code, stock);
+        if (window.size() <= windowCapacity) {
+            return;
+        }
+        Iterator<Map.Entry<String, Integer>> oldest = window.entrySet().iterator();
+        Map.Entry<String, Integer> candidate = oldest.next();
+        oldest.remove();
+        if (main.size() < mainCapacity) {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        Iterator<Map.Entry<String, Integer>> lru = main.entrySet().iterator();
+        Map.Entry<String, Integer> victim = lru.next();
+        if (frequency(candidate.getKey()) > frequency(victim.getKey())) {
+            lru.remove();
+            main.put(candidate.getKey(), candidate.getValue());
+        }
+        evictions++;
+    }
+
+    /**
+     * Drops an entry, for example because it was changed and is now held as dirty by the owner.
+     */
+    void invalidate(String code) {
+        if (window.remove(code) == null) {
+            main.remove(code);
+        }
+    }
+
+    int size() {
+        return window.size() + main.size();
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    long evictions() {
+        return evictions;
+    }
+
+    private void recordAccess(String code) {
+        int hash = spread(code.hashCode());
+        boolean added = false;
+        for (int seed : SEEDS) {
+            int slot = index(hash, seed);
+            long word = sketch[slot >>> 4];
+            int shift = (slot & 15) << 2;
+            if (((word >>> shift) & 0xF) < 15) {
+                sketch[slot >>> 4] = word + (1L << shift);
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            age();
+        }
+    }
+
+    private int frequency(String code) {
+        int hash = spread(code.hashCode());
+        int min = 15;
+        for (int seed : SEEDS) {
+            int slot = index(hash, seed);
+            min = Math.min(min, (int) ((sketch[slot >>> 4] >>> ((slot & 15) << 2)) & 0xF));
+        }
+        return min;
+    }
+
+    /**
+     * Halves every counter, so frequencies reflect recent traffic.
+     */
+    private void age() {
+        for (int i = 0; i < sketch.length; i++) {
+            sketch[i] = (sketch[i] >>> 1) & 0x7777_7777_7777_7777L;
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int seed) {
+        int h = (hash + seed) * seed;
+        return (h ^ (h >>> 16)) & sketchMask;
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 15);
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Stock of several warehouses, one shard per warehouse keyed by (almacén, código).
+ *
+ * <p>Every shard is an independent inventory with its own snapshot file ({@code existencias-<almacén>.dat}), its
+ * own {@link InventoryJournal}, {@link StockIndex} and {@link CodeIndex}, so changes in one warehouse never wait
+ * for another and each warehouse is snapshotted and recovered on its own.
+ *
+ * <p>Queries across warehouses run as fork-join tasks. The total stock of a part and where it is held cost one
+ * lookup per warehouse, so they split the warehouses in halves down to one shard per task and use at most as many
+ * cores as there are warehouses. The global low-stock report asks each shard's {@link StockIndex} for its
+ * candidates, one task per warehouse, so that part costs time proportional to the low-stock products rather than
+ * to the catalog; the candidates are then summed over every warehouse in chunks of codes, so the larger part of
+ * the work uses every core of the pool whatever the number of warehouses.
+ *
+ * <p>Shards are read from several pool threads at once, also while other threads change them, so they must be
+ * thread-safe, such as {@link ConcurrentInventory}.
+ */
+public final class WarehouseInventory implements Closeable {
+    private static final Pattern NAME = Pattern.compile("[\\p{L}\\p{N}_-]+");
+    // Candidate codes summed over every warehouse by one task of the low-stock report
+    private static final int LOOKUP_CHUNK = 1024;
+
+    private record Shard(String name, Inventory inventory, InventoryJournal journal, StockIndex index,
+                         CodeIndex codes) {
+    }
+
+    private final Shard[] shards;
+    private final Map<String, Shard> byName = new HashMap<>();
+
+    private WarehouseInventory(Shard[] shards) {
+        this.shards = shards;
+        for (Shard shard : shards) {
+            byName.put(shard.name(), shard);
+        }
+    }
+
+    /**
+     * @param directory The directory holding the warehouse files.
+     * @param warehouse The warehouse name.
+     * @return The snapshot file of the warehouse; its journal and deltas sit next to it.
+     */
+    public static File fileFor(File directory, String warehouse) {
+        return new File(directory, "existencias-" + warehouse + ".dat");
+    }
+
+    /**
+     * Loads every warehouse, in parallel, and opens its journal.
+     *
+     * @param directory  The directory holding the warehouse files.
+     * @param warehouses The warehouse names: letters, digits, {@code _} and {@code -} only, as they name files.
+     * @param loader     Loads the inventory of one snapshot file, journal included, into a thread-safe inventory,
+     *                   such as {@code file -> Main.loadInto(file, new ConcurrentInventory())}.
+     * @param policy     When each warehouse's journal writes a new snapshot.
+     * @return The warehouses.
+     * @throws IOException If a journal cannot be opened; the loader reports its own errors.
+     */
+    public static WarehouseInventory open(File directory, Collection<String> warehouses,
+                                          Function<File, Inventory> loader,
+                                          InventoryJournal.SnapshotPolicy policy) throws IOException {
+        String[] names = new TreeSet<>(warehouses).toArray(new String[0]);
+        if (names.length == 0) {
+            throw new IllegalArgumentException("No warehouses given");
+        }
+        for (String name : names) {
+            if (!NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("Invalid warehouse name: " + name);
+            }
+        }
+        Inventory[] loaded = Arrays.stream(names).parallel()
+                .map(name -> loader.apply(fileFor(directory, name)))
+                .toArray(Inventory[]::new);
+        Shard[] shards = new Shard[names.length];
+        try {
+            for (int i = 0; i < names.length; i++) {
+                StockIndex index = StockIndex.attach(loaded[i]);
+                CodeIndex codes = CodeIndex.attach(fileFor(directory, names[i]), loaded[i]);
+                InventoryJournal journal = InventoryJournal.open(fileFor(directory, names[i]), loaded[i],
+                        Main::writeSnapshot, policy);
+                shards[i] = new Shard(names[i], loaded[i], journal, index, codes);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Shard shard : shards) {
+                if (shard != null) {
+                    try {
+                        shard.journal().close();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+            }
+            throw e;
+        }
+        return new WarehouseInventory(shards);
+    }
+
+    /**
+     * @return The warehouse names, sorted.
+     */
+    public List<String> warehouses() {
+        List<String> names = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            names.add(shard.name());
+        }
+        return names;
+    }
+
+    /**
+     * @return Whether there is a warehouse with that name.
+     */
+    public boolean contains(String warehouse) {
+        return byName.containsKey(warehouse);
+    }
+
+    /**
+     * @param warehouse The warehouse name.
+     * @return The inventory of that warehouse, for changes and lookups that concern it alone.
+     * @throws IllegalArgumentException If there is no such warehouse.
+     */
+    public Inventory inventory(String warehouse) {
+        return shard(warehouse).inventory();
+    }
+
+    /**
+     * @param warehouse The warehouse name.
+     * @return The journal of that warehouse, to sync after changing its inventory.
+     * @throws IllegalArgumentException If there is no such warehouse.
+     */
+    public InventoryJournal journal(String warehouse) {
+        return shard(warehouse).journal();
+    }
+
+    /**
+     * @param warehouse The warehouse name.
+     * @return The stock-level index of that warehouse.
+     * @throws IllegalArgumentException If there is no such warehouse.
+     */
+    public StockIndex index(String warehouse) {
+        return shard(warehouse).index();
+    }
+
+    /**
+     * @param warehouse The warehouse name.
+     * @return The code search index of that warehouse.
+     * @throws IllegalArgumentException If there is no such warehouse.
+     */
+    public CodeIndex codes(String warehouse) {
+        return shard(warehouse).codes();
+    }
+
+    /**
+     * Returns the stock of a product in one warehouse.
+     *
+     * @return The stock, or {@link Inventory#NOT_FOUND} if the warehouse does not hold the product.
+     * @throws IllegalArgumentException If there is no such warehouse.
+     */
+    public int stock(String warehouse, String code) {
+        return shard(warehouse).inventory().stock(code);
+    }
+
+    /**
+     * @param code The product code.
+     * @return The stock of the product summed over every warehouse; 0 if none holds it.
+     */
+    public long totalStock(String code) {
+        return reduceShards(shard -> {
+            int stock = shard.inventory().stock(code);
+            return stock == Inventory.NOT_FOUND ? 0L : (long) stock;
+        }, Long::sum);
+    }
+
+    /**
+     * @param code The product code.
+     * @return The stock of the product in every warehouse that holds it, by warehouse name; empty if none does.
+     */
+    public SortedMap<String, Integer> locations(String code) {
+        return reduceShards(shard -> {
+            SortedMap<String, Integer> found = new TreeMap<>();
+            int stock = shard.inventory().stock(code);
+            if (stock != Inventory.NOT_FOUND) {
+                found.put(shard.name(), stock);
+            }
+            return found;
+        }, WarehouseInventory::merge);
+    }
+
+    /**
+     * Lists the products whose stock summed over every warehouse is at or below a threshold, for reordering.
+     * Such a product is at or below it in every warehouse that holds it, so the candidates come from the
+     * shards' stock indexes and only they are then looked up everywhere, in parallel chunks of codes.
+     *
+     * @param threshold The highest total stock reported.
+     * @return The total stock of each such product, by product code.
+     */
+    public SortedMap<String, Long> lowStock(int threshold) {
+        SortedMap<String, Long> candidates = reduceShards(shard -> {
+            SortedMap<String, Long> low = new TreeMap<>();
+            shard.index().forEachAtOrBelow(threshold, (code, stock) -> {
+                low.put(code, 0L);
+                return true;
+            });
+            return low;
+        }, WarehouseInventory::merge);
+        String[] codes = candidates.keySet().toArray(new String[0]);
+        long[] totals = new long[codes.length];
+        int chunks = (codes.length + LOOKUP_CHUNK - 1) / LOOKUP_CHUNK;
+        if (chunks > 0) {
+            // Each chunk sums its own codes over every warehouse, so chunks write disjoint parts of the totals
+            ForkJoinPool.commonPool().invoke(new SplitTask<>(0, chunks, chunk -> {
+                int end = Math.min(codes.length, (chunk + 1) * LOOKUP_CHUNK);
+                for (int i = chunk * LOOKUP_CHUNK; i < end; i++) {
+                    for (Shard shard : shards) {
+                        int stock = shard.inventory().stock(codes[i]);
+                        totals[i] += stock == Inventory.NOT_FOUND ? 0 : stock;
+                    }
+                }
+                return null;
+            }, (left, right) -> null));
+        }
+        SortedMap<String, Long> report = new TreeMap<>();
+        for (int i = 0; i < codes.length; i++) {
+            if (totals[i] <= threshold) {
+                report.put(codes[i], totals[i]);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Makes the pending changes of every warehouse durable and closes the journals.
+     *
+     * @throws IOException If a journal cannot be closed; the others are still closed.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Shard shard : shards) {
+            try {
+                shard.journal().close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Shard shard(String warehouse) {
+        Shard shard = byName.get(warehouse);
+        if (shard == null) {
+            throw new IllegalArgumentException("Unknown warehouse: " + warehouse);
+        }
+        return shard;
+    }
+
+    private <R> R reduceShards(Function<Shard, R> leaf, BinaryOperator<R> combine) {
+        return ForkJoinPool.commonPool().invoke(new SplitTask<>(0, shards.length, i -> leaf.apply(shards[i]),
+                combine));
+    }
+
+    private static <K, V> SortedMap<K, V> merge(SortedMap<K, V> left, SortedMap<K, V> right) {
+        if (left.size() < right.size()) {
+            right.putAll(left);
+            return right;
+        }
+        left.putAll(right);
+        return left;
+    }
+
+    /**
+     * Computes a result per unit of work, a shard or a chunk of codes, and combines them, splitting the range of
+     * units in halves.
+     */
+    @SuppressWarnings("serial") // ForkJoinTask is Serializable, but these tasks never leave the process
+    private static final class SplitTask<R> extends RecursiveTask<R> {
+        private final int from;
+        private final int to;
+        private final IntFunction<R> leaf;
+        private final BinaryOperator<R> combine;
+
+        SplitTask(int from, int to, IntFunction<R> leaf, BinaryOperator<R> combine) {
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+            this.combine = combine;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from == 1) {
+                return leaf.apply(from);
+            }
+            int mid = (from + to) >>> 1;
+            SplitTask<R> left = new SplitTask<>(from, mid, leaf, combine);
+            left.fork();
+            R right = new SplitTask<>(mid, to, leaf, combine).compute();
+            return combine.apply(left.join(), right);
+        }
+    }
+}
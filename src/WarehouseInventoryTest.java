@@ -0,0 +1,96 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WarehouseInventoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private WarehouseInventory open(String... warehouses) throws IOException {
+        return WarehouseInventory.open(tempDir.toFile(), List.of(warehouses),
+                file -> Main.loadInto(file, new ConcurrentInventory()), InventoryJournal.SnapshotPolicy.DEFAULT);
+    }
+
+    @Test
+    public void testShards_arePersistedIndependently() throws IOException {
+        try (WarehouseInventory almacenes = open("central", "norte")) {
+            almacenes.inventory("central").put("P101", 10);
+            almacenes.inventory("norte").put("P101", 4);
+            almacenes.inventory("norte").put("P102", 7);
+        }
+        try (WarehouseInventory almacenes = open("norte")) {
+            assertEquals(List.of("norte"), almacenes.warehouses());
+            assertEquals(4, almacenes.stock("norte", "P101"), "Each warehouse should reload from its own files.");
+            assertEquals(7, almacenes.stock("norte", "P102"));
+        }
+        Inventory central = Main.loadInto(WarehouseInventory.fileFor(tempDir.toFile(), "central"),
+                new ConcurrentInventory());
+        assertEquals(10, central.stock("P101"));
+        assertEquals(Inventory.NOT_FOUND, central.stock("P102"), "A warehouse should only hold its own stock.");
+        assertThrows(IllegalArgumentException.class, () -> open("../fuera"), "Names must be safe as file names.");
+    }
+
+    @Test
+    public void testAggregates_spanEveryWarehouse() throws IOException {
+        try (WarehouseInventory almacenes = open("central", "norte", "sur")) {
+            almacenes.inventory("central").put("P101", 10);
+            almacenes.inventory("norte").put("P101", 4);
+            almacenes.inventory("central").put("P102", 1);
+            almacenes.inventory("sur").put("P102", 2);
+            almacenes.inventory("norte").put("P103", 2);
+            almacenes.inventory("sur").put("P103", 50);
+            almacenes.inventory("sur").put("P104", 0);
+
+            assertEquals(14, almacenes.totalStock("P101"));
+            assertEquals(0, almacenes.totalStock("P999"), "A part held nowhere should total 0.");
+            assertEquals(Map.of("central", 10, "norte", 4), almacenes.locations("P101"));
+            assertTrue(almacenes.locations("P999").isEmpty());
+            assertEquals(Map.of("P102", 3L, "P104", 0L), almacenes.lowStock(3),
+                    "Low stock should use the total over every warehouse.");
+            assertThrows(IllegalArgumentException.class, () -> almacenes.inventory("oeste"));
+        }
+    }
+
+    @Test
+    public void testLowStock_sumsManyCandidatesInChunks() throws IOException {
+        try (WarehouseInventory almacenes = open("central", "norte")) {
+            Map<String, Long> expected = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                String code = String.format("P%05d", i);
+                almacenes.inventory("central").put(code, i % 3);
+                almacenes.inventory("norte").put(code, i % 2);
+                if (i % 3 + i % 2 <= 2) {
+                    expected.put(code, (long) (i % 3 + i % 2));
+                }
+            }
+            assertEquals(expected, almacenes.lowStock(2), "Every chunk of candidates should be summed.");
+        }
+    }
+
+    @Test
+    public void testMenu_worksInOneWarehouseAndQueriesAll() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        String input = "1\nnorte\n1\nP101\n5\n5\n" + "1\ncentral\n1\nP101\n3\n5\n"
+                + "2\nP101\n" + "3\nP101\n" + "4\n10\n5\n";
+        Main.runWarehouses(tempDir.toFile(), List.of("central", "norte"), new Scanner(new StringReader(input)),
+                new PrintStream(output, true));
+
+        String text = output.toString();
+        assertTrue(text.contains("Stock total de P101: 8"), text);
+        assertTrue(text.contains("central: 3"), text);
+        assertTrue(text.contains("norte: 5"), text);
+        assertTrue(text.contains("P101: 8"), "The low-stock report should list the total.");
+        try (WarehouseInventory almacenes = open("central", "norte")) {
+            assertEquals(5, almacenes.stock("norte", "P101"), "Changes should be journaled per warehouse.");
+        }
+    }
+}